@@ -0,0 +1,234 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Config;
+import org.apache.cassandra.db.Clustering;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.db.marshal.TimestampType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+
+import io.puntanegra.fhir.index.config.IndexOptions;
+import io.puntanegra.fhir.index.config.ResourceOptions;
+import io.puntanegra.fhir.index.lucene.DirectoryType;
+import io.puntanegra.fhir.index.lucene.LuceneService;
+import io.puntanegra.fhir.index.mapper.FhirMapper;
+import io.puntanegra.fhir.index.mapper.KeyMapper;
+import io.puntanegra.fhir.index.metrics.IndexMetrics;
+
+/**
+ * Test data shared by the benchmarks: the index search options, the Cassandra
+ * table of the FHIR resources, and the rows and Lucene documents of the
+ * synthetic corpus. Everything is built in memory, so the benchmarks run
+ * without a Cassandra node. <br>
+ * The corpus options can be set with {@code corpus.*} system properties, see
+ * {@link CorpusOptions}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+final class BenchmarkData {
+
+	/** The synthetic corpus of the benchmarks */
+	static final FhirCorpusGenerator CORPUS = new FhirCorpusGenerator(CorpusOptions.fromSystemProperties());
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Returns the search parameters indexed for each one of the generated
+	 * resource types, the most common ones.
+	 *
+	 * @return the indexed search parameters by resource type
+	 */
+	static Map<String, Set<String>> searchParameters() {
+		Map<String, Set<String>> resources = new LinkedHashMap<>();
+		resources.put("Patient", params("family", "given", "gender", "birthdate", "email", "active", "identifier",
+				"address-city"));
+		resources.put("Observation", params("code", "subject", "date", "value-quantity", "status"));
+		resources.put("Encounter", params("patient", "date", "status", "type", "length"));
+		resources.put("AllergyIntolerance", params("patient", "substance", "criticality", "onset"));
+		return resources;
+	}
+
+	/**
+	 * Returns the search options indexing the {@link #searchParameters()}.
+	 *
+	 * @return the search options
+	 */
+	static ResourceOptions resourceOptions() {
+		try {
+			return new ResourceOptions(null, searchParameters(), null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the value of the {@code search} index option indexing the
+	 * {@link #searchParameters()}.
+	 *
+	 * @return the JSON search options
+	 */
+	static String searchOption() {
+		StringJoiner resources = new StringJoiner(", ", "{resources: {", "}}");
+		searchParameters().forEach((type, params) -> {
+			StringJoiner names = new StringJoiner(", ", type + ": [", "]");
+			params.forEach(name -> names.add("\"" + name + "\""));
+			resources.add(names.toString());
+		});
+		return resources.toString();
+	}
+
+	private static Set<String> params(String... names) {
+		return new HashSet<>(Arrays.asList(names));
+	}
+
+	/**
+	 * Returns the metadata of the FHIR resources table, as created by the
+	 * example keyspace. Cassandra is switched to client mode, so the metadata
+	 * can be built without a node configuration.
+	 *
+	 * @return the table metadata
+	 */
+	static CFMetaData metadata() {
+		Config.setClientMode(true);
+		return CFMetaData.Builder.create("test", "fhir_resources")
+				.withPartitioner(Murmur3Partitioner.instance)
+				.addPartitionKey("resource_id", UTF8Type.instance)
+				.addClusteringColumn("version", Int32Type.instance)
+				.addClusteringColumn("lastupdated", TimestampType.instance)
+				.addRegularColumn("resource_type", UTF8Type.instance)
+				.addRegularColumn("content", UTF8Type.instance)
+				.build();
+	}
+
+	/**
+	 * Returns the partition key of the row of the specified resource.
+	 *
+	 * @param type
+	 *            the resource type
+	 * @param i
+	 *            the resource sequence number
+	 * @return the partition key
+	 */
+	static DecoratedKey key(String type, long i) {
+		return Murmur3Partitioner.instance.decorateKey(UTF8Type.instance.decompose(CORPUS.id(type, i)));
+	}
+
+	/**
+	 * Returns the clustering key of the row of the first version of the
+	 * specified resource.
+	 *
+	 * @param i
+	 *            the resource sequence number
+	 * @return the clustering key
+	 */
+	static Clustering clustering(long i) {
+		ByteBuffer version = Int32Type.instance.decompose(1);
+		ByteBuffer lastUpdated = TimestampType.instance.decompose(CORPUS.lastUpdated(i));
+		return new Clustering(version, lastUpdated);
+	}
+
+	/**
+	 * Returns a new Lucene index in a new temporary directory, using the default
+	 * index options. The directory is removed with {@link LuceneService#delete()}.
+	 *
+	 * @param name
+	 *            the index name
+	 * @return the index
+	 */
+	static LuceneService lucene(String name) {
+		Path path;
+		try {
+			path = Files.createTempDirectory("fhir-index-" + name);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return lucene(name, path, IndexOptions.DEFAULT_DIRECTORY_TYPE, IndexOptions.DEFAULT_MMAP_PRELOAD);
+	}
+
+	/**
+	 * Returns a new Lucene index in the specified directory, using the default
+	 * index options but the directory ones. Merges are throttled by Lucene, as
+	 * there is no Cassandra compaction to share the disk with.
+	 *
+	 * @param name
+	 *            the index name
+	 * @param path
+	 *            the directory path
+	 * @param directoryType
+	 *            the type of the Lucene directory
+	 * @param preloadExtensions
+	 *            the extensions of the memory mapped files to be preloaded
+	 * @return the index
+	 */
+	static LuceneService lucene(String name, Path path, DirectoryType directoryType, Set<String> preloadExtensions) {
+		String mbeanName = String.format("%s:type=LuceneIndex,keyspace=benchmarks,table=fhir_resources,index=%s",
+				IndexMetrics.GROUP, name);
+		LuceneService lucene = new LuceneService();
+		lucene.init(name, mbeanName, path, new WhitespaceAnalyzer(), IndexOptions.DEFAULT_REFRESH_SECONDS,
+				IndexOptions.DEFAULT_MIN_REFRESH_SECONDS, IndexOptions.DEFAULT_RAM_BUFFER_MB, directoryType,
+				preloadExtensions, IndexOptions.DEFAULT_MAX_MERGE_MB, IndexOptions.DEFAULT_MAX_CACHED_MB,
+				LuceneService.mergePolicy(IndexOptions.DEFAULT_SEGMENTS_PER_TIER,
+						IndexOptions.DEFAULT_MAX_MERGED_SEGMENT_MB, IndexOptions.DEFAULT_COMPOUND_FILE_RATIO,
+						IndexOptions.DEFAULT_EXPUNGE_DELETES_RATIO),
+				IndexOptions.DEFAULT_MERGE_THREADS, null, null, null, null);
+		return lucene;
+	}
+
+	/**
+	 * Returns the Lucene document of the specified resource, as built by the
+	 * index when the resource row is written.
+	 *
+	 * @param mapper
+	 *            the FHIR resource mapper
+	 * @param keyMapper
+	 *            the primary key mapper
+	 * @param type
+	 *            the resource type
+	 * @param i
+	 *            the resource sequence number
+	 * @return the document
+	 */
+	static Document document(FhirMapper mapper, KeyMapper keyMapper, String type, long i) {
+		Document document = new Document();
+		keyMapper.addFields(document, key(type, i), clustering(i));
+		mapper.addFields(document, CORPUS.json(type, i));
+		return document;
+	}
+
+	/**
+	 * Writes the first {@code count} resources of the corpus into the
+	 * specified index and commits it.
+	 *
+	 * @param lucene
+	 *            the index
+	 * @param count
+	 *            the number of resources
+	 */
+	static void index(LuceneService lucene, long count) {
+		FhirMapper mapper = new FhirMapper(resourceOptions());
+		KeyMapper keyMapper = new KeyMapper(metadata());
+		for (long i = 0; i < count; i++) {
+			String type = CORPUS.resourceType(i);
+			lucene.upsert(keyMapper.term(key(type, i), clustering(i)), document(mapper, keyMapper, type, i));
+		}
+		lucene.commit();
+	}
+}
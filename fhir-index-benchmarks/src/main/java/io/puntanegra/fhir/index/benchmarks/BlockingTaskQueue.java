@@ -0,0 +1,67 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.puntanegra.fhir.index.FhirIndexException;
+import io.puntanegra.fhir.index.util.BlockingExecutor;
+import io.puntanegra.fhir.index.util.TaskQueue;
+
+/**
+ * The former {@link TaskQueue} implementation, based on an array of single
+ * thread {@link BlockingExecutor}s and a {@link ReentrantReadWriteLock}. It is
+ * kept as the baseline of {@link TaskQueueBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class BlockingTaskQueue {
+
+	private final BlockingExecutor[] pools;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public BlockingTaskQueue(int numThreads, int queuesSize) {
+		pools = new BlockingExecutor[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			pools[i] = new BlockingExecutor(1, queuesSize, Long.MAX_VALUE, TimeUnit.DAYS, 0, TimeUnit.NANOSECONDS,
+					null);
+		}
+	}
+
+	public Future<?> submitAsynchronous(Object id, Runnable task) {
+		lock.readLock().lock();
+		try {
+			int i = Math.abs(id.hashCode() % pools.length);
+			return pools[i].submit(task);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void await() {
+		lock.writeLock().lock();
+		try {
+			Future<?>[] futures = new Future<?>[pools.length];
+			for (int i = 0; i < pools.length; i++) {
+				futures[i] = pools[i].submit(() -> {
+				});
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new FhirIndexException(e, "Task queue await failed");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void shutdown() {
+		for (BlockingExecutor pool : pools) {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.puntanegra.fhir.index.FhirIndexException;
+
+/**
+ * Options of the synthetic FHIR corpus generated by
+ * {@link FhirCorpusGenerator}. <br>
+ * Options are read from a map of strings, so they can be specified as system
+ * properties prefixed with {@link #PROPERTIES_PREFIX}, for example
+ * {@code -Dcorpus.families=1000}. The cardinality options are the number of
+ * distinct values of each search parameter in the whole corpus.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class CorpusOptions {
+
+	/** The prefix of the system properties containing options */
+	public static final String PROPERTIES_PREFIX = "corpus.";
+
+	public static final String SEED_OPTION = "seed";
+	public static final long DEFAULT_SEED = 42;
+
+	public static final String PATIENTS_OPTION = "patients";
+	public static final int DEFAULT_PATIENTS = 100000;
+
+	public static final String FAMILIES_OPTION = "families";
+	public static final int DEFAULT_FAMILIES = 5000;
+
+	public static final String GIVEN_NAMES_OPTION = "given_names";
+	public static final int DEFAULT_GIVEN_NAMES = 1000;
+
+	public static final String CITIES_OPTION = "cities";
+	public static final int DEFAULT_CITIES = 500;
+
+	public static final String OBSERVATION_CODES_OPTION = "observation_codes";
+	public static final int DEFAULT_OBSERVATION_CODES = 12;
+
+	public static final String ENCOUNTER_TYPES_OPTION = "encounter_types";
+	public static final int DEFAULT_ENCOUNTER_TYPES = 6;
+
+	public static final String SUBSTANCES_OPTION = "substances";
+	public static final int DEFAULT_SUBSTANCES = 8;
+
+	public static final String DAYS_OPTION = "days";
+	public static final int DEFAULT_DAYS = 3650;
+
+	public static final String QUANTITY_VALUES_OPTION = "quantity_values";
+	public static final int DEFAULT_QUANTITY_VALUES = 1000;
+
+	public static final String SKEW_OPTION = "skew";
+	public static final double DEFAULT_SKEW = 1;
+
+	public static final String WEIGHTS_OPTION = "weights";
+	public static final String DEFAULT_WEIGHTS = "Patient:1,Observation:6,Encounter:2,AllergyIntolerance:1";
+
+	/** The seed of all the random choices, the same seed generates the same corpus */
+	public final long seed;
+
+	/** The number of distinct patients referenced by the other resources */
+	public final int patients;
+
+	/** The number of distinct family names */
+	public final int families;
+
+	/** The number of distinct given names */
+	public final int givenNames;
+
+	/** The number of distinct address cities */
+	public final int cities;
+
+	/** The number of distinct observation LOINC codes */
+	public final int observationCodes;
+
+	/** The number of distinct encounter types */
+	public final int encounterTypes;
+
+	/** The number of distinct allergy substances */
+	public final int substances;
+
+	/** The number of distinct days of the clinical dates, starting at 2010-01-01 */
+	public final int days;
+
+	/** The number of distinct values of each observation quantity */
+	public final int quantityValues;
+
+	/**
+	 * The skew of the distribution of the values, zero means uniform. The
+	 * greater the skew, the more frequent the first values are, as happens
+	 * with names and codes in real data
+	 */
+	public final double skew;
+
+	/** The relative frequency of each resource type, in iteration order */
+	public final Map<String, Integer> weights;
+
+	/**
+	 * Builds a new {@link CorpusOptions}.
+	 *
+	 * @param options
+	 *            the options by name, missing options take their default value
+	 */
+	public CorpusOptions(Map<String, String> options) {
+		seed = parseSeed(options);
+		patients = parseCardinality(options, PATIENTS_OPTION, DEFAULT_PATIENTS);
+		families = parseCardinality(options, FAMILIES_OPTION, DEFAULT_FAMILIES);
+		givenNames = parseCardinality(options, GIVEN_NAMES_OPTION, DEFAULT_GIVEN_NAMES);
+		cities = parseCardinality(options, CITIES_OPTION, DEFAULT_CITIES);
+		observationCodes = parseCardinality(options, OBSERVATION_CODES_OPTION, DEFAULT_OBSERVATION_CODES);
+		encounterTypes = parseCardinality(options, ENCOUNTER_TYPES_OPTION, DEFAULT_ENCOUNTER_TYPES);
+		substances = parseCardinality(options, SUBSTANCES_OPTION, DEFAULT_SUBSTANCES);
+		days = parseCardinality(options, DAYS_OPTION, DEFAULT_DAYS);
+		quantityValues = parseCardinality(options, QUANTITY_VALUES_OPTION, DEFAULT_QUANTITY_VALUES);
+		skew = parseSkew(options);
+		weights = parseWeights(options);
+	}
+
+	/**
+	 * Returns the options specified as system properties prefixed with
+	 * {@link #PROPERTIES_PREFIX}.
+	 *
+	 * @return the options
+	 */
+	public static CorpusOptions fromSystemProperties() {
+		Map<String, String> options = new HashMap<>();
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(PROPERTIES_PREFIX)) {
+				options.put(name.substring(PROPERTIES_PREFIX.length()), System.getProperty(name));
+			}
+		}
+		return new CorpusOptions(options);
+	}
+
+	private static long parseSeed(Map<String, String> options) {
+		String seedOption = options.get(SEED_OPTION);
+		if (seedOption != null) {
+			try {
+				return Long.parseLong(seedOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a long", SEED_OPTION);
+			}
+		} else {
+			return DEFAULT_SEED;
+		}
+	}
+
+	private static int parseCardinality(Map<String, String> options, String name, int defaultValue) {
+		String option = options.get(name);
+		if (option != null) {
+			int cardinality;
+			try {
+				cardinality = Integer.parseInt(option);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a strictly positive integer", name);
+			}
+			if (cardinality <= 0) {
+				throw new FhirIndexException("'%s' must be strictly positive", name);
+			}
+			return cardinality;
+		} else {
+			return defaultValue;
+		}
+	}
+
+	private static double parseSkew(Map<String, String> options) {
+		String skewOption = options.get(SKEW_OPTION);
+		if (skewOption != null) {
+			double skew;
+			try {
+				skew = Double.parseDouble(skewOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive double", SKEW_OPTION);
+			}
+			if (skew < 0) {
+				throw new FhirIndexException("'%s' must be positive", SKEW_OPTION);
+			}
+			return skew;
+		} else {
+			return DEFAULT_SKEW;
+		}
+	}
+
+	private static Map<String, Integer> parseWeights(Map<String, String> options) {
+		String weightsOption = options.getOrDefault(WEIGHTS_OPTION, DEFAULT_WEIGHTS);
+		Map<String, Integer> weights = new LinkedHashMap<>();
+		for (String entry : weightsOption.split(",")) {
+			String[] parts = entry.trim().split(":");
+			if (parts.length != 2 || !FhirCorpusGenerator.RESOURCE_TYPES.contains(parts[0].trim())) {
+				throw new FhirIndexException("'%s' must be a list of resource type:weight pairs, with types in %s",
+						WEIGHTS_OPTION, FhirCorpusGenerator.RESOURCE_TYPES);
+			}
+			int weight;
+			try {
+				weight = Integer.parseInt(parts[1].trim());
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' weights must be positive integers", WEIGHTS_OPTION);
+			}
+			if (weight < 0) {
+				throw new FhirIndexException("'%s' weights must be positive", WEIGHTS_OPTION);
+			}
+			if (weight > 0) {
+				weights.put(parts[0].trim(), weight);
+			}
+		}
+		if (weights.isEmpty()) {
+			throw new FhirIndexException("'%s' must contain at least a strictly positive weight", WEIGHTS_OPTION);
+		}
+		return weights;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("CorpusOptions [seed=");
+		builder.append(seed);
+		builder.append(", patients=");
+		builder.append(patients);
+		builder.append(", families=");
+		builder.append(families);
+		builder.append(", givenNames=");
+		builder.append(givenNames);
+		builder.append(", cities=");
+		builder.append(cities);
+		builder.append(", observationCodes=");
+		builder.append(observationCodes);
+		builder.append(", encounterTypes=");
+		builder.append(encounterTypes);
+		builder.append(", substances=");
+		builder.append(substances);
+		builder.append(", days=");
+		builder.append(days);
+		builder.append(", quantityValues=");
+		builder.append(quantityValues);
+		builder.append(", skew=");
+		builder.append(skew);
+		builder.append(", weights=");
+		builder.append(weights);
+		builder.append("]");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,156 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.cassandra.cql3.QueryOptions;
+import org.apache.cassandra.cql3.QueryProcessor;
+import org.apache.cassandra.cql3.statements.ParsedStatement;
+import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.service.CassandraDaemon;
+import org.apache.cassandra.service.ClientState;
+import org.apache.cassandra.service.QueryState;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.transport.messages.ResultMessage;
+
+import io.puntanegra.fhir.index.FhirIndexException;
+
+/**
+ * Single Cassandra node running in the current JVM, with all its files in a
+ * local directory, in the same way as Cassandra unit tests do. <br>
+ * The node only listens on the loopback interface for the storage protocol,
+ * and it is accessed with CQL statements executed in-process through the
+ * regular coordinator path, so writes and searches go through the same
+ * indexing and search code as in a real cluster, without client drivers.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+final class EmbeddedCassandra {
+
+	private final Path directory;
+	private final int storagePort;
+
+	/**
+	 * Builds a new {@link EmbeddedCassandra}.
+	 *
+	 * @param directory
+	 *            the directory of the data, commit log and caches
+	 * @param storagePort
+	 *            the loopback port of the storage protocol
+	 */
+	EmbeddedCassandra(Path directory, int storagePort) {
+		this.directory = directory;
+		this.storagePort = storagePort;
+	}
+
+	/**
+	 * Starts the node, returning when it is ready to execute statements.
+	 */
+	void start() {
+		try {
+			Path config = directory.resolve("cassandra.yaml");
+			Files.createDirectories(directory);
+			Files.write(config, yaml().getBytes(StandardCharsets.UTF_8));
+			System.setProperty("cassandra.config", config.toUri().toString());
+			System.setProperty("cassandra.storagedir", directory.toString());
+			System.setProperty("cassandra-foreground", "true");
+			System.setProperty("cassandra.skip_wait_for_gossip_to_settle", "0");
+			CassandraDaemon daemon = new CassandraDaemon(true);
+			daemon.init(null);
+			daemon.start();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Flushes all the tables and stops accepting writes. Cassandra doesn't
+	 * stop all its threads, so the JVM should exit afterwards.
+	 */
+	void stop() {
+		try {
+			StorageService.instance.drain();
+		} catch (Exception e) {
+			throw new FhirIndexException(e, "Error draining Cassandra in %s", directory);
+		}
+	}
+
+	private String yaml() {
+		List<String> lines = Arrays.asList(
+				"cluster_name: fhir-index-benchmarks",
+				"num_tokens: 1",
+				"partitioner: org.apache.cassandra.dht.Murmur3Partitioner",
+				"endpoint_snitch: SimpleSnitch",
+				"seed_provider:",
+				"  - class_name: org.apache.cassandra.locator.SimpleSeedProvider",
+				"    parameters:",
+				"      - seeds: \"127.0.0.1\"",
+				"listen_address: 127.0.0.1",
+				"storage_port: " + storagePort,
+				"ssl_storage_port: " + (storagePort + 1),
+				"rpc_address: 127.0.0.1",
+				"start_rpc: false",
+				"start_native_transport: false",
+				"data_file_directories:",
+				"  - " + directory.resolve("data"),
+				"commitlog_directory: " + directory.resolve("commitlog"),
+				"hints_directory: " + directory.resolve("hints"),
+				"saved_caches_directory: " + directory.resolve("saved_caches"),
+				"commitlog_sync: periodic",
+				"commitlog_sync_period_in_ms: 10000",
+				"disk_access_mode: standard",
+				"hinted_handoff_enabled: false",
+				"dynamic_snitch: false",
+				"write_request_timeout_in_ms: 60000",
+				"read_request_timeout_in_ms: 60000",
+				"range_request_timeout_in_ms: 60000",
+				"request_timeout_in_ms: 60000");
+		return String.join("\n", lines) + "\n";
+	}
+
+	/**
+	 * Prepares the specified CQL statement, so it can be executed many times
+	 * with {@link #execute(ParsedStatement.Prepared, ByteBuffer...)}.
+	 *
+	 * @param cql
+	 *            the CQL statement, with bind markers
+	 * @return the prepared statement
+	 */
+	ParsedStatement.Prepared prepare(String cql) {
+		return QueryProcessor.getStatement(cql, ClientState.forInternalCalls());
+	}
+
+	/**
+	 * Executes the specified CQL statement with consistency level
+	 * {@code ONE}.
+	 *
+	 * @param cql
+	 *            the CQL statement, without bind markers
+	 * @return the result
+	 */
+	ResultMessage execute(String cql) {
+		return execute(prepare(cql));
+	}
+
+	/**
+	 * Executes the specified prepared statement with consistency level
+	 * {@code ONE}.
+	 *
+	 * @param statement
+	 *            the prepared statement
+	 * @param values
+	 *            the values of the bind markers
+	 * @return the result
+	 */
+	ResultMessage execute(ParsedStatement.Prepared statement, ByteBuffer... values) {
+		QueryOptions options = QueryOptions.forInternalCalls(ConsistencyLevel.ONE, Arrays.asList(values));
+		return statement.statement.execute(QueryState.forInternalCalls(), options);
+	}
+}
@@ -0,0 +1,307 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.cassandra.cql3.statements.ParsedStatement;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.db.marshal.TimestampType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.io.util.FileUtils;
+
+import io.puntanegra.fhir.index.config.IndexOptions;
+import io.puntanegra.fhir.index.metrics.IndexMetrics;
+
+/**
+ * End-to-end throughput benchmark of the index in a single Cassandra node
+ * running in the same JVM, see {@link EmbeddedCassandra}. <br>
+ * The benchmark creates the FHIR resources table and its index, and then
+ * inserts the synthetic corpus rows from several writer threads while several
+ * reader threads run {@code expr()} searches. Every few seconds it reports the
+ * write and search throughput, the search latency percentiles, and the number
+ * of documents and size of the index, so changes to the indexing pipeline can
+ * be evaluated offline.
+ * <p>
+ * The benchmark is configured with the following system properties:
+ * <ul>
+ * <li>{@code e2e.directory}: the node directory, a new temporary directory by
+ * default, deleted at the end</li>
+ * <li>{@code e2e.resources}: the number of resources to insert, 1000000 by
+ * default</li>
+ * <li>{@code e2e.seconds}: the max duration of the benchmark, 600 by
+ * default</li>
+ * <li>{@code e2e.writers}: the number of writer threads, 8 by default</li>
+ * <li>{@code e2e.readers}: the number of reader threads, 2 by default</li>
+ * <li>{@code e2e.limit}: the max number of rows of each search, 100 by
+ * default</li>
+ * <li>{@code e2e.queries}: the {@code ;} separated search expressions, run in
+ * turns by each reader</li>
+ * <li>{@code e2e.report_seconds}: the interval between reports, 10 by
+ * default</li>
+ * <li>{@code e2e.storage_port}: the loopback port of the node, 17000 by
+ * default</li>
+ * <li>{@code e2e.index.*}: index options, such as
+ * {@code -De2e.index.refresh_seconds=1}</li>
+ * <li>{@code corpus.*}: the corpus options, see {@link CorpusOptions}</li>
+ * </ul>
+ * Run with
+ * {@code java -cp fhir-index-benchmarks/target/benchmarks.jar io.puntanegra.fhir.index.benchmarks.EndToEndBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class EndToEndBenchmark {
+
+	private static final String KEYSPACE = "test";
+	private static final String TABLE = "fhir_resources";
+	private static final String INDEX = "idx_fhir_resources";
+	private static final String INDEX_PROPERTIES_PREFIX = "e2e.index.";
+	private static final String DEFAULT_QUERIES = "family:Smith;"
+			+ "resource_type:Observation AND code:8867-4;"
+			+ "gender:male AND active:true;"
+			+ "resource_type:Encounter AND type:185349003;"
+			+ "resource_type:AllergyIntolerance AND substance:91935009";
+
+	private final Path directory;
+	private final long resources;
+	private final long seconds;
+	private final int writers;
+	private final int readers;
+	private final int limit;
+	private final String[] queries;
+	private final int reportSeconds;
+
+	private final EmbeddedCassandra cassandra;
+	private final AtomicLong nextResource = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong writeErrors = new AtomicLong();
+	private final AtomicLong searches = new AtomicLong();
+	private final AtomicLong searchErrors = new AtomicLong();
+	private final Recorder searchLatency = new Recorder(3);
+	private final Histogram totalSearchLatency = new Histogram(3);
+	private volatile boolean stopped;
+
+	private EndToEndBenchmark(Path directory) {
+		this.directory = directory;
+		resources = Long.getLong("e2e.resources", 1000000);
+		seconds = Long.getLong("e2e.seconds", 600);
+		writers = Integer.getInteger("e2e.writers", 8);
+		readers = Integer.getInteger("e2e.readers", 2);
+		limit = Integer.getInteger("e2e.limit", 100);
+		queries = System.getProperty("e2e.queries", DEFAULT_QUERIES).split(";");
+		reportSeconds = Integer.getInteger("e2e.report_seconds", 10);
+		cassandra = new EmbeddedCassandra(directory, Integer.getInteger("e2e.storage_port", 17000));
+	}
+
+	private Path indexPath() {
+		return directory.resolve("lucene").resolve(INDEX);
+	}
+
+	private void createSchema() {
+		cassandra.execute(String.format("CREATE KEYSPACE %s WITH replication = "
+				+ "{'class': 'SimpleStrategy', 'replication_factor': 1}", KEYSPACE));
+		cassandra.execute(String.format("CREATE TABLE %s.%s (resource_id text, version int, resource_type text, "
+				+ "state text, lastupdated timestamp, format text, author text, content text, "
+				+ "PRIMARY KEY (resource_id, version, lastupdated))", KEYSPACE, TABLE));
+
+		StringBuilder options = new StringBuilder();
+		options.append(String.format("'%s': '%s'", IndexOptions.DIRECTORY_PATH_OPTION, indexPath()));
+		options.append(String.format(", '%s': '%s'", IndexOptions.REFRESH_SECONDS_OPTION, 1));
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(INDEX_PROPERTIES_PREFIX)) {
+				options.append(String.format(", '%s': '%s'", name.substring(INDEX_PROPERTIES_PREFIX.length()),
+						System.getProperty(name)));
+			}
+		}
+		options.append(String.format(", '%s': '%s'", IndexOptions.SEARCH_OPTION, BenchmarkData.searchOption()));
+		cassandra.execute(String.format("CREATE CUSTOM INDEX %s ON %s.%s (content) "
+				+ "USING 'io.puntanegra.fhir.index.FhirIndex' WITH OPTIONS = {%s}", INDEX, KEYSPACE, TABLE,
+				options));
+	}
+
+	private void write() {
+		ParsedStatement.Prepared insert = cassandra.prepare(String.format(
+				"INSERT INTO %s.%s (resource_id, version, resource_type, state, lastupdated, format, content) "
+						+ "VALUES (?, ?, ?, ?, ?, ?, ?)",
+				KEYSPACE, TABLE));
+		FhirCorpusGenerator corpus = BenchmarkData.CORPUS;
+		ByteBuffer version = Int32Type.instance.decompose(1);
+		ByteBuffer state = UTF8Type.instance.decompose("active");
+		ByteBuffer format = UTF8Type.instance.decompose("json");
+		long i;
+		while (!stopped && (i = nextResource.getAndIncrement()) < resources) {
+			String type = corpus.resourceType(i);
+			try {
+				cassandra.execute(insert, UTF8Type.instance.decompose(corpus.id(type, i)), version,
+						UTF8Type.instance.decompose(type), state,
+						TimestampType.instance.decompose(corpus.lastUpdated(i)), format,
+						UTF8Type.instance.decompose(corpus.json(type, i)));
+				written.incrementAndGet();
+			} catch (RuntimeException e) {
+				writeErrors.incrementAndGet();
+			}
+		}
+	}
+
+	private void read(int reader) {
+		List<ParsedStatement.Prepared> statements = new ArrayList<>();
+		for (String query : queries) {
+			statements.add(cassandra.prepare(String.format("SELECT resource_id FROM %s.%s WHERE expr(%s, '%s') LIMIT %d",
+					KEYSPACE, TABLE, INDEX, query.trim(), limit)));
+		}
+		int next = reader;
+		while (!stopped) {
+			ParsedStatement.Prepared statement = statements.get(next++ % statements.size());
+			long start = System.nanoTime();
+			try {
+				cassandra.execute(statement);
+				searchLatency.recordValue(System.nanoTime() - start);
+				searches.incrementAndGet();
+			} catch (RuntimeException e) {
+				searchErrors.incrementAndGet();
+			}
+		}
+	}
+
+	private void run() throws Exception {
+		System.out.printf("Starting Cassandra in %s%n", directory);
+		cassandra.start();
+		createSchema();
+		System.out.printf("Inserting %d resources with %d writers and searching with %d readers, %s%n", resources,
+				writers, readers, BenchmarkData.CORPUS.getOptions());
+
+		List<Thread> writerThreads = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < writers; i++) {
+			Thread thread = new Thread(this::write, "e2e-writer-" + i);
+			writerThreads.add(thread);
+			threads.add(thread);
+		}
+		for (int i = 0; i < readers; i++) {
+			int reader = i;
+			threads.add(new Thread(() -> read(reader), "e2e-reader-" + i));
+		}
+
+		System.out.printf("%8s %10s %10s %10s %10s %10s %10s %10s %10s %8s%n", "time_s", "written", "writes/s",
+				"search/s", "p50_ms", "p99_ms", "max_ms", "docs", "index_mb", "errors");
+		long start = System.nanoTime();
+		threads.forEach(Thread::start);
+		long lastWritten = 0;
+		long lastSearches = 0;
+		long lastReport = start;
+		Histogram interval = null;
+		boolean writing = true;
+		while (writing && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(seconds)) {
+			long deadline = lastReport + TimeUnit.SECONDS.toNanos(reportSeconds);
+			for (Thread thread : writerThreads) {
+				thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+			}
+			writing = writerThreads.stream().anyMatch(Thread::isAlive);
+			long now = System.nanoTime();
+			double elapsed = (now - lastReport) / 1e9;
+			lastReport = now;
+
+			long totalWritten = written.get();
+			long totalSearches = searches.get();
+			interval = searchLatency.getIntervalHistogram(interval);
+			totalSearchLatency.add(interval);
+			System.out.printf("%8d %10d %10.0f %10.1f %10.2f %10.2f %10.2f %10d %10.1f %8d%n",
+					TimeUnit.NANOSECONDS.toSeconds(now - start), totalWritten,
+					(totalWritten - lastWritten) / elapsed, (totalSearches - lastSearches) / elapsed,
+					millis(interval, 50), millis(interval, 99), millis(interval, 100), docs(),
+					size(indexPath()) / 1048576.0, writeErrors.get() + searchErrors.get());
+			lastWritten = totalWritten;
+			lastSearches = totalSearches;
+		}
+		stopped = true;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		interval = searchLatency.getIntervalHistogram(interval);
+		totalSearchLatency.add(interval);
+		System.out.printf("Total: %d writes in %.1f s, %.0f writes/s, %d searches, %.1f searches/s, "
+				+ "search p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d write errors, %d search errors%n",
+				written.get(), elapsed, written.get() / elapsed, searches.get(), searches.get() / elapsed,
+				millis(totalSearchLatency, 50), millis(totalSearchLatency, 99), millis(totalSearchLatency, 100),
+				writeErrors.get(), searchErrors.get());
+		cassandra.stop();
+		System.out.printf("Index size after flush: %.1f MB%n", size(indexPath()) / 1048576.0);
+	}
+
+	private static double millis(Histogram histogram, double percentile) {
+		if (histogram.getTotalCount() == 0) {
+			return 0;
+		}
+		long nanos = percentile == 100 ? histogram.getMaxValue() : histogram.getValueAtPercentile(percentile);
+		return nanos / 1e6;
+	}
+
+	private static long docs() {
+		try {
+			ObjectName name = new ObjectName(String.format("%s:type=%s,keyspace=%s,table=%s,index=%s,name=Docs",
+					IndexMetrics.GROUP, IndexMetrics.TYPE, KEYSPACE, TABLE, INDEX));
+			return ((Number) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Value")).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the size of the files in the specified directory, skipping the
+	 * files removed while they are being listed, as merged segments are.
+	 */
+	private static long size(Path path) {
+		if (!Files.exists(path)) {
+			return 0;
+		}
+		try (Stream<Path> files = Files.walk(path)) {
+			return files.mapToLong(file -> {
+				try {
+					return Files.isRegularFile(file) ? Files.size(file) : 0;
+				} catch (NoSuchFileException e) {
+					return 0;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).sum();
+		} catch (IOException | UncheckedIOException e) {
+			return -1;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String directoryOption = System.getProperty("e2e.directory");
+		Path directory = directoryOption == null ? Files.createTempDirectory("fhir-index-e2e")
+				: Paths.get(directoryOption);
+		// Cassandra doesn't stop all its threads, so the JVM is always exited
+		int status = 0;
+		try {
+			new EndToEndBenchmark(directory).run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = 1;
+		} finally {
+			if (directoryOption == null) {
+				FileUtils.deleteRecursive(directory.toFile());
+			}
+		}
+		System.exit(status);
+	}
+}
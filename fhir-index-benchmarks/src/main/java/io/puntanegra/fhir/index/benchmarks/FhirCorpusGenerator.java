@@ -0,0 +1,443 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.hl7.fhir.dstu3.model.AllergyIntolerance;
+import org.hl7.fhir.dstu3.model.AllergyIntolerance.AllergyIntoleranceCriticality;
+import org.hl7.fhir.dstu3.model.AllergyIntolerance.AllergyIntoleranceStatus;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.Duration;
+import org.hl7.fhir.dstu3.model.Encounter;
+import org.hl7.fhir.dstu3.model.Encounter.EncounterState;
+import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Observation.ObservationStatus;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Period;
+import org.hl7.fhir.dstu3.model.Quantity;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.puntanegra.fhir.index.FhirIndexException;
+
+/**
+ * Deterministic generator of a synthetic corpus of FHIR Patient, Observation,
+ * Encounter and AllergyIntolerance resources, used to load indexes of any size
+ * in benchmarks and load tests. <br>
+ * Each resource is generated from its sequence number and the seed only, so
+ * the same seed always generates the same corpus, and any range of resources
+ * can be generated in any order or by several threads without generating the
+ * previous ones. The number of distinct values of each search parameter and
+ * the frequency of each resource type are set with {@link CorpusOptions}.
+ * <p>
+ * Run with
+ * {@code java -cp fhir-index-benchmarks/target/benchmarks.jar io.puntanegra.fhir.index.benchmarks.FhirCorpusGenerator <directory> <count> [from]}
+ * to write the resources to a newline delimited JSON file per resource type.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class FhirCorpusGenerator {
+
+	/** The generated resource types */
+	public static final List<String> RESOURCE_TYPES = Collections
+			.unmodifiableList(Arrays.asList("Patient", "Observation", "Encounter", "AllergyIntolerance"));
+
+	/** The FHIR context used to build and serialize resources */
+	public static final FhirContext CONTEXT = FhirContext.forDstu3();
+
+	/** The first day of the clinical dates, 2010-01-01 */
+	public static final long EPOCH = 1262304000000L;
+
+	private static final long DAY_MILLIS = 24L * 3600 * 1000;
+	private static final int MAX_AGE_DAYS = 90 * 365;
+	private static final String UCUM = "http://unitsofmeasure.org";
+	private static final String LOINC = "http://loinc.org";
+	private static final String SNOMED = "http://snomed.info/sct";
+
+	private static final String[] FAMILIES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller",
+			"Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas",
+			"Taylor", "Moore", "Jackson", "Martin", "Lee", "Perez", "Thompson", "White", "Harris", "Sanchez", "Clark",
+			"Ramirez", "Lewis", "Robinson" };
+	private static final String[] GIVEN_NAMES = { "James", "Mary", "John", "Patricia", "Robert", "Jennifer",
+			"Michael", "Linda", "William", "Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica",
+			"Thomas", "Sarah", "Charles", "Karen", "Daniel", "Nancy", "Matthew", "Lisa", "Anthony", "Betty" };
+	private static final String[] CITIES = { "Springfield", "Riverside", "Franklin", "Greenville", "Bristol",
+			"Clinton", "Fairview", "Salem", "Madison", "Georgetown", "Arlington", "Ashland", "Dover", "Oxford",
+			"Jackson", "Burlington", "Manchester", "Milton", "Newport", "Auburn" };
+
+	/** LOINC code, display, UCUM unit, min value and max value */
+	private static final Object[][] OBSERVATION_CODES = {
+			{ "8867-4", "Heart rate", "/min", 40, 180 },
+			{ "8310-5", "Body temperature", "Cel", 35, 41 },
+			{ "29463-7", "Body weight", "kg", 3, 150 },
+			{ "8302-2", "Body height", "cm", 45, 200 },
+			{ "8480-6", "Systolic blood pressure", "mm[Hg]", 80, 200 },
+			{ "8462-4", "Diastolic blood pressure", "mm[Hg]", 40, 120 },
+			{ "9279-1", "Respiratory rate", "/min", 8, 40 },
+			{ "59408-5", "Oxygen saturation", "%", 80, 100 },
+			{ "39156-5", "Body mass index", "kg/m2", 12, 50 },
+			{ "2339-0", "Glucose", "mg/dL", 60, 300 },
+			{ "718-7", "Hemoglobin", "g/dL", 7, 18 },
+			{ "2093-3", "Cholesterol", "mg/dL", 100, 300 } };
+
+	private static final String[][] ENCOUNTER_TYPES = {
+			{ "185349003", "Encounter for check up" },
+			{ "270427003", "Patient-initiated encounter" },
+			{ "185345009", "Encounter for symptom" },
+			{ "390906007", "Follow-up encounter" },
+			{ "50849002", "Emergency room admission" },
+			{ "183452005", "Emergency hospital admission" } };
+
+	private static final String[][] SUBSTANCES = {
+			{ "91935009", "Peanut" },
+			{ "3718001", "Cow's milk" },
+			{ "102263004", "Eggs" },
+			{ "227493005", "Cashew nuts" },
+			{ "418689008", "Grass pollen" },
+			{ "300916003", "Latex" },
+			{ "372687004", "Amoxicillin" },
+			{ "387207008", "Ibuprofen" } };
+
+	private final CorpusOptions options;
+	private final String[] types;
+	private final int[] cumulativeWeights;
+
+	/**
+	 * Builds a new {@link FhirCorpusGenerator}.
+	 *
+	 * @param options
+	 *            the corpus options
+	 */
+	public FhirCorpusGenerator(CorpusOptions options) {
+		this.options = options;
+		types = new String[options.weights.size()];
+		cumulativeWeights = new int[options.weights.size()];
+		int total = 0;
+		int i = 0;
+		for (Map.Entry<String, Integer> entry : options.weights.entrySet()) {
+			total += entry.getValue();
+			types[i] = entry.getKey();
+			cumulativeWeights[i++] = total;
+		}
+	}
+
+	/**
+	 * Returns the corpus options.
+	 *
+	 * @return the options
+	 */
+	public CorpusOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Returns the type of the resource with the specified sequence number,
+	 * following the resource type weights.
+	 *
+	 * @param i
+	 *            the sequence number
+	 * @return the resource type
+	 */
+	public String resourceType(long i) {
+		SplittableRandom random = random("", i);
+		int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		int type = 0;
+		while (value >= cumulativeWeights[type]) {
+			type++;
+		}
+		return types[type];
+	}
+
+	/**
+	 * Returns the logical id of the resource of the specified type and
+	 * sequence number.
+	 *
+	 * @param type
+	 *            the resource type
+	 * @param i
+	 *            the sequence number
+	 * @return the resource id
+	 */
+	public String id(String type, long i) {
+		return type.toLowerCase() + "-" + i;
+	}
+
+	/**
+	 * Returns the last update time of the resource with the specified sequence
+	 * number. Resources are updated one second after the previous one.
+	 *
+	 * @param i
+	 *            the sequence number
+	 * @return the last update time
+	 */
+	public Date lastUpdated(long i) {
+		return new Date(EPOCH + i * 1000);
+	}
+
+	/**
+	 * Returns the resource with the specified sequence number.
+	 *
+	 * @param i
+	 *            the sequence number
+	 * @return the resource
+	 */
+	public IBaseResource resource(long i) {
+		return resource(resourceType(i), i);
+	}
+
+	/**
+	 * Returns the resource of the specified type and sequence number.
+	 *
+	 * @param type
+	 *            the resource type, one of {@link #RESOURCE_TYPES}
+	 * @param i
+	 *            the sequence number
+	 * @return the resource
+	 */
+	public IBaseResource resource(String type, long i) {
+		SplittableRandom random = random(type, i);
+		Resource resource;
+		switch (type) {
+		case "Patient":
+			resource = patient(random, i);
+			break;
+		case "Observation":
+			resource = observation(random);
+			break;
+		case "Encounter":
+			resource = encounter(random);
+			break;
+		case "AllergyIntolerance":
+			resource = allergyIntolerance(random);
+			break;
+		default:
+			throw new FhirIndexException("Unsupported resource type %s", type);
+		}
+		resource.setId(id(type, i));
+		resource.getMeta().setLastUpdated(lastUpdated(i));
+		return resource;
+	}
+
+	/**
+	 * Returns the JSON of the resource with the specified sequence number.
+	 *
+	 * @param i
+	 *            the sequence number
+	 * @return the resource JSON
+	 */
+	public String json(long i) {
+		return json(resourceType(i), i);
+	}
+
+	/**
+	 * Returns the JSON of the resource of the specified type and sequence
+	 * number.
+	 *
+	 * @param type
+	 *            the resource type, one of {@link #RESOURCE_TYPES}
+	 * @param i
+	 *            the sequence number
+	 * @return the resource JSON
+	 */
+	public String json(String type, long i) {
+		return CONTEXT.newJsonParser().encodeResourceToString(resource(type, i));
+	}
+
+	/**
+	 * Writes the resources with the specified sequence numbers to the
+	 * specified directory, in a newline delimited JSON file per resource type
+	 * named after the type, such as {@code Patient.ndjson}. Existing files are
+	 * appended, so a corpus can be written in several calls.
+	 *
+	 * @param directory
+	 *            the directory, created if it doesn't exist
+	 * @param from
+	 *            the first sequence number
+	 * @param count
+	 *            the number of resources
+	 * @return the number of resources written of each type
+	 */
+	public Map<String, Long> write(Path directory, long from, long count) {
+		Map<String, Writer> writers = new HashMap<>();
+		Map<String, Long> counts = new HashMap<>();
+		try {
+			Files.createDirectories(directory);
+			for (long i = from; i < from + count; i++) {
+				String type = resourceType(i);
+				Writer writer = writers.get(type);
+				if (writer == null) {
+					writer = Files.newBufferedWriter(directory.resolve(type + ".ndjson"), StandardCharsets.UTF_8,
+							StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+					writers.put(type, writer);
+				}
+				writer.write(json(type, i));
+				writer.write('\n');
+				counts.merge(type, 1L, Long::sum);
+			}
+		} catch (IOException e) {
+			throw new FhirIndexException(e, "Error writing corpus to %s", directory);
+		} finally {
+			for (Writer writer : writers.values()) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					throw new FhirIndexException(e, "Error closing corpus file in %s", directory);
+				}
+			}
+		}
+		return counts;
+	}
+
+	private Patient patient(SplittableRandom random, long i) {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("urn:oid:2.16.840.1.113883.4.1").setValue(String.format("%09d", i));
+		patient.addName().addFamily(name(FAMILIES, choose(random, options.families)))
+				.addGiven(name(GIVEN_NAMES, choose(random, options.givenNames)));
+		patient.addTelecom().setSystem(ContactPointSystem.EMAIL).setValue("patient" + i + "@example.org");
+		patient.addAddress().setCity(name(CITIES, choose(random, options.cities)));
+		patient.setGender(random.nextBoolean() ? AdministrativeGender.MALE : AdministrativeGender.FEMALE);
+		patient.setBirthDate(new Date(EPOCH - random.nextInt(MAX_AGE_DAYS) * DAY_MILLIS));
+		patient.setActive(random.nextInt(10) != 0);
+		return patient;
+	}
+
+	private Observation observation(SplittableRandom random) {
+		Observation observation = new Observation();
+		observation.setStatus(random.nextInt(20) == 0 ? ObservationStatus.PRELIMINARY : ObservationStatus.FINAL);
+		observation.setSubject(patientReference(random));
+		observation.setEffective(new DateTimeType(date(random)));
+
+		int code = choose(random, options.observationCodes);
+		Object[] definition = OBSERVATION_CODES[code % OBSERVATION_CODES.length];
+		observation.setCode(codeableConcept(LOINC, code(definition[0].toString(), code, OBSERVATION_CODES.length),
+				definition[1].toString()));
+		int min = (Integer) definition[3];
+		int max = (Integer) definition[4];
+		int steps = Math.max(1, options.quantityValues - 1);
+		// Triangular distribution, so central values are more frequent
+		int step = (random.nextInt(steps + 1) + random.nextInt(steps + 1)) / 2;
+		BigDecimal value = BigDecimal.valueOf(min + (max - min) * (double) step / steps).setScale(2,
+				RoundingMode.HALF_UP);
+		String unit = definition[2].toString();
+		observation.setValue(new Quantity().setValue(value).setUnit(unit).setSystem(UCUM).setCode(unit));
+		return observation;
+	}
+
+	private Encounter encounter(SplittableRandom random) {
+		Encounter encounter = new Encounter();
+		encounter.setStatus(random.nextInt(20) == 0 ? EncounterState.INPROGRESS : EncounterState.FINISHED);
+		encounter.setPatient(patientReference(random));
+
+		int type = choose(random, options.encounterTypes);
+		String[] definition = ENCOUNTER_TYPES[type % ENCOUNTER_TYPES.length];
+		encounter.addType(codeableConcept(SNOMED, code(definition[0], type, ENCOUNTER_TYPES.length), definition[1]));
+
+		Date start = date(random);
+		int hours = 1 + choose(random, 24 * 14);
+		encounter.setPeriod(new Period().setStart(start).setEnd(new Date(start.getTime() + hours * 3600000L)));
+		Duration length = new Duration();
+		length.setValue(hours).setUnit("hours").setSystem(UCUM).setCode("h");
+		encounter.setLength(length);
+		return encounter;
+	}
+
+	private AllergyIntolerance allergyIntolerance(SplittableRandom random) {
+		AllergyIntolerance allergy = new AllergyIntolerance();
+		allergy.setStatus(random.nextInt(10) == 0 ? AllergyIntoleranceStatus.UNCONFIRMED
+				: AllergyIntoleranceStatus.CONFIRMED);
+		allergy.setPatient(patientReference(random));
+
+		int substance = choose(random, options.substances);
+		String[] definition = SUBSTANCES[substance % SUBSTANCES.length];
+		allergy.setSubstance(
+				codeableConcept(SNOMED, code(definition[0], substance, SUBSTANCES.length), definition[1]));
+		allergy.setCriticality(random.nextInt(4) == 0 ? AllergyIntoleranceCriticality.HIGH
+				: AllergyIntoleranceCriticality.LOW);
+		allergy.setOnset(date(random));
+		return allergy;
+	}
+
+	private Reference patientReference(SplittableRandom random) {
+		return new Reference("Patient/" + id("Patient", random.nextInt(options.patients)));
+	}
+
+	private Date date(SplittableRandom random) {
+		return new Date(EPOCH + random.nextInt(options.days) * DAY_MILLIS + random.nextInt(86400) * 1000L);
+	}
+
+	private static CodeableConcept codeableConcept(String system, String code, String display) {
+		return new CodeableConcept().addCoding(new Coding().setSystem(system).setCode(code).setDisplay(display));
+	}
+
+	/**
+	 * Returns the k-th value of a vocabulary. Values beyond the vocabulary
+	 * size repeat the vocabulary with a numeric suffix, such as
+	 * {@code Smith2}.
+	 */
+	private static String name(String[] vocabulary, int k) {
+		String name = vocabulary[k % vocabulary.length];
+		return k < vocabulary.length ? name : name + (k / vocabulary.length + 1);
+	}
+
+	/**
+	 * Returns the k-th code of a code system. Codes beyond the known ones
+	 * repeat them with a numeric suffix, such as {@code 8867-4.2}.
+	 */
+	private static String code(String code, int k, int known) {
+		return k < known ? code : code + "." + (k / known + 1);
+	}
+
+	/**
+	 * Returns a random value in {@code [0, n)} following a power law with the
+	 * configured skew, so the first values are the most frequent ones.
+	 */
+	private int choose(SplittableRandom random, int n) {
+		if (options.skew == 0) {
+			return random.nextInt(n);
+		}
+		return (int) Math.min(n - 1, n * Math.pow(random.nextDouble(), 1 + options.skew));
+	}
+
+	private SplittableRandom random(String type, long i) {
+		return new SplittableRandom(options.seed * 0x9e3779b97f4a7c15L + i * 0xbf58476d1ce4e5b9L + type.hashCode());
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: FhirCorpusGenerator <directory> <count> [from]");
+			System.err.println("Options are read from " + CorpusOptions.PROPERTIES_PREFIX + "* system properties");
+			System.exit(1);
+		}
+		Path directory = Paths.get(args[0]);
+		long count = Long.parseLong(args[1]);
+		long from = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		CorpusOptions options = CorpusOptions.fromSystemProperties();
+		System.out.println("Writing " + count + " resources to " + directory + " with " + options);
+
+		long start = System.currentTimeMillis();
+		Map<String, Long> counts = new FhirCorpusGenerator(options).write(directory, from, count);
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Written " + counts + " in " + elapsed + " ms, " + count * 1000 / elapsed + " resources/s");
+	}
+}
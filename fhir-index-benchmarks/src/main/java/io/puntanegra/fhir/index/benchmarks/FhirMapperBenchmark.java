@@ -0,0 +1,64 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.puntanegra.fhir.index.mapper.FhirMapper;
+
+/**
+ * Measures {@link FhirMapper#addFields(Document, String)}, that is, the
+ * parsing, search parameter extraction and Lucene field creation of a single
+ * FHIR resource of each resource type. This is the CPU cost of indexing a row
+ * in Cassandra write threads, excluding the Lucene write.
+ * <p>
+ * Run with {@code java -jar fhir-index-benchmarks/target/benchmarks.jar FhirMapperBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FhirMapperBenchmark {
+
+	private static final int RESOURCES = 1024;
+
+	@Param({ "Patient", "Observation", "Encounter", "AllergyIntolerance" })
+	public String resourceType;
+
+	private FhirMapper mapper;
+	private String[] resources;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		mapper = new FhirMapper(BenchmarkData.resourceOptions());
+		resources = new String[RESOURCES];
+		for (int i = 0; i < RESOURCES; i++) {
+			resources[i] = BenchmarkData.CORPUS.json(resourceType, i);
+		}
+	}
+
+	@Benchmark
+	public Document addFields() {
+		Document document = new Document();
+		mapper.addFields(document, resources[next++ & (RESOURCES - 1)]);
+		return document;
+	}
+}
@@ -0,0 +1,73 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.db.Clustering;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.puntanegra.fhir.index.mapper.KeyEntry;
+import io.puntanegra.fhir.index.mapper.KeyMapper;
+
+/**
+ * Measures the encoding of primary keys into the Lucene key field, done for
+ * each indexed row, and their decoding, done for each search hit.
+ * <p>
+ * Run with {@code java -jar fhir-index-benchmarks/target/benchmarks.jar KeyMapperBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class KeyMapperBenchmark {
+
+	private static final int KEYS = 1024;
+
+	private KeyMapper keyMapper;
+	private DecoratedKey[] keys;
+	private Clustering[] clusterings;
+	private BytesRef[] bytesRefs;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		keyMapper = new KeyMapper(BenchmarkData.metadata());
+		keys = new DecoratedKey[KEYS];
+		clusterings = new Clustering[KEYS];
+		bytesRefs = new BytesRef[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = BenchmarkData.key(BenchmarkData.CORPUS.resourceType(i), i);
+			clusterings[i] = BenchmarkData.clustering(i);
+			bytesRefs[i] = keyMapper.bytesRef(keys[i], clusterings[i]);
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer byteBuffer() {
+		int i = next++ & (KEYS - 1);
+		return keyMapper.byteBuffer(keys[i], clusterings[i]);
+	}
+
+	@Benchmark
+	public Clustering entry() {
+		KeyEntry entry = keyMapper.entry(bytesRefs[next++ & (KEYS - 1)]);
+		return entry.getClustering();
+	}
+}
@@ -0,0 +1,133 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.puntanegra.fhir.index.config.IndexOptions;
+import io.puntanegra.fhir.index.lucene.DirectoryType;
+import io.puntanegra.fhir.index.lucene.LuceneDocumentIterator;
+import io.puntanegra.fhir.index.lucene.LuceneService;
+import io.puntanegra.fhir.index.mapper.KeyMapper;
+import io.puntanegra.fhir.index.query.FhirQueryParser;
+
+/**
+ * Compares the Lucene directory types of the {@code directory_type} and
+ * {@code mmap_preload} index options, in a JVM with a small heap as the
+ * Cassandra ones. The {@code directory} parameter is a directory type,
+ * optionally followed by a colon and the preloaded file extensions. <br>
+ * {@code search} measures searches over an already open index of the first
+ * {@code documents} resources of the synthetic corpus, and {@code open}
+ * measures opening a reader of the index and running its first search. The
+ * index is merged into a single segment, so its files are not compound and
+ * can be preloaded by extension. The OS page cache is not dropped between
+ * measures, so {@code open} shows the cost of the directory itself rather
+ * than the disk reads.
+ * <p>
+ * Run with
+ * {@code java -jar fhir-index-benchmarks/target/benchmarks.jar LuceneDirectoryBenchmark -prof gc}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class LuceneDirectoryBenchmark {
+
+	private static final Set<String> FIELDS = new HashSet<>(Arrays.asList(KeyMapper.FIELD_NAME));
+
+	@Param({ "nrt_caching", "nio", "mmap", "mmap:tim,tip,dvd,dvm" })
+	public String directory;
+
+	@Param({ "100000" })
+	public int documents;
+
+	@Param({ "family:Smith" })
+	public String expression;
+
+	@Param({ "100" })
+	public int limit;
+
+	private Path path;
+	private DirectoryType directoryType;
+	private Set<String> preloadExtensions;
+	private LuceneService lucene;
+	private Query query;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, ParseException {
+		String[] parts = directory.split(":");
+		directoryType = DirectoryType.fromName(parts[0]);
+		if (directoryType == null) {
+			throw new IllegalArgumentException("Unknown directory type " + parts[0]);
+		}
+		preloadExtensions = parts.length > 1 ? new LinkedHashSet<>(Arrays.asList(parts[1].split(",")))
+				: IndexOptions.DEFAULT_MMAP_PRELOAD;
+		path = Files.createTempDirectory("fhir-index-directory");
+		query = new FhirQueryParser(new WhitespaceAnalyzer()).parse(expression);
+
+		lucene = BenchmarkData.lucene("directory", path, directoryType, Collections.emptySet());
+		BenchmarkData.index(lucene, documents);
+		lucene.forceMerge(1, true);
+		lucene.commit();
+		lucene.close();
+		lucene = BenchmarkData.lucene("directory", path, directoryType, preloadExtensions);
+		lucene.refresh();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		lucene.delete();
+	}
+
+	@Benchmark
+	public int search() {
+		int hits = 0;
+		try (LuceneDocumentIterator iterator = lucene.search(query, null, null, limit, FIELDS)) {
+			while (hits < limit && iterator.hasNext()) {
+				iterator.next();
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	@Benchmark
+	public int open() throws IOException {
+		try (Directory luceneDirectory = directoryType.open(path, preloadExtensions,
+				IndexOptions.DEFAULT_MAX_MERGE_MB, IndexOptions.DEFAULT_MAX_CACHED_MB);
+				DirectoryReader reader = DirectoryReader.open(luceneDirectory)) {
+			return new IndexSearcher(reader).search(query, limit).scoreDocs.length;
+		}
+	}
+}
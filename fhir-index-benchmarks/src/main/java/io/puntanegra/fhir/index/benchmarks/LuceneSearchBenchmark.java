@@ -0,0 +1,101 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.utils.Pair;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.puntanegra.fhir.index.lucene.LuceneDocumentIterator;
+import io.puntanegra.fhir.index.lucene.LuceneService;
+import io.puntanegra.fhir.index.mapper.KeyMapper;
+import io.puntanegra.fhir.index.query.FhirQueryParser;
+import io.puntanegra.fhir.index.query.SearchFieldTypes;
+
+/**
+ * Measures searches with {@link LuceneDocumentIterator} over an index of
+ * the first {@code documents} resources of the synthetic corpus, collecting
+ * the first {@code limit} hits and loading their primary keys, as the index does
+ * for each {@code expr()} query. The index is built and committed in a local
+ * temporary directory before the measures.
+ * <p>
+ * Run with {@code java -jar fhir-index-benchmarks/target/benchmarks.jar LuceneSearchBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LuceneSearchBenchmark {
+
+	private static final Set<String> FIELDS = new HashSet<>(Arrays.asList(KeyMapper.FIELD_NAME));
+
+	@Param({ "100000" })
+	public int documents;
+
+	@Param({ "family:Smith", "code:8867-4", "gender:male AND active:true", "value-quantity:[60 TO 100]",
+			"birthdate=ge1980-01-01&gender=male" })
+	public String expression;
+
+	@Param({ "100" })
+	public int limit;
+
+	private LuceneService lucene;
+	private Query query;
+
+	@Setup(Level.Trial)
+	public void setup() throws ParseException {
+		lucene = BenchmarkData.lucene("search");
+		BenchmarkData.index(lucene, documents);
+		lucene.refresh();
+		SearchFieldTypes fieldTypes = SearchFieldTypes.of(BenchmarkData.resourceOptions());
+		query = new FhirQueryParser(new WhitespaceAnalyzer(), fieldTypes).parse(expression);
+		if (search(null) < limit) {
+			throw new IllegalStateException("Less than " + limit + " hits for " + expression);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		lucene.delete();
+	}
+
+	@Benchmark
+	public int search(Blackhole blackhole) {
+		int hits = 0;
+		try (LuceneDocumentIterator iterator = lucene.search(query, null, null, limit, FIELDS)) {
+			while (hits < limit && iterator.hasNext()) {
+				Pair<Document, ScoreDoc> hit = iterator.next();
+				if (blackhole != null) {
+					blackhole.consume(hit.left);
+				}
+				hits++;
+			}
+		}
+		return hits;
+	}
+}
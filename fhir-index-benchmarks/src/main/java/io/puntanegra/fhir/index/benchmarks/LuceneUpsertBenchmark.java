@@ -0,0 +1,84 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.puntanegra.fhir.index.lucene.LuceneService;
+import io.puntanegra.fhir.index.mapper.FhirMapper;
+import io.puntanegra.fhir.index.mapper.KeyMapper;
+
+/**
+ * Measures the throughput of {@link LuceneService#upsert(Term, Document)} with
+ * already built documents of the synthetic corpus, written to an index in a
+ * local temporary directory. Documents are written in a loop, so once all of
+ * them have been written each upsert replaces a previous version. The index is
+ * committed at the end of each iteration, so the measures include the flushes
+ * and merges caused by the writes.
+ * <p>
+ * Run with {@code java -jar fhir-index-benchmarks/target/benchmarks.jar LuceneUpsertBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LuceneUpsertBenchmark {
+
+	/** The number of distinct documents, that is, of primary keys */
+	@Param({ "100000" })
+	public int documents;
+
+	private LuceneService lucene;
+	private Term[] terms;
+	private Document[] docs;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		FhirMapper mapper = new FhirMapper(BenchmarkData.resourceOptions());
+		KeyMapper keyMapper = new KeyMapper(BenchmarkData.metadata());
+		terms = new Term[documents];
+		docs = new Document[documents];
+		for (int i = 0; i < documents; i++) {
+			String type = BenchmarkData.CORPUS.resourceType(i);
+			terms[i] = keyMapper.term(BenchmarkData.key(type, i), BenchmarkData.clustering(i));
+			docs[i] = BenchmarkData.document(mapper, keyMapper, type, i);
+		}
+		lucene = BenchmarkData.lucene("upsert");
+	}
+
+	@TearDown(Level.Iteration)
+	public void commit() {
+		lucene.commit();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		lucene.delete();
+	}
+
+	@Benchmark
+	public long upsert() {
+		int i = next++ % documents;
+		return lucene.upsert(terms[i], docs[i]);
+	}
+}
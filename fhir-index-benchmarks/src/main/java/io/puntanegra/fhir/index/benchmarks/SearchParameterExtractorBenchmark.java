@@ -0,0 +1,109 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import io.puntanegra.fhir.index.search.SearchParamExtractor;
+import io.puntanegra.fhir.index.search.datatypes.AbstractSearchParam;
+import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
+import io.puntanegra.fhir.index.search.extractor.SearchParameterExtractorFactory;
+
+/**
+ * Measures each one of the search parameter extractors on an already parsed
+ * resource, using a representative search parameter of each type:
+ * <ul>
+ * <li>{@code TOKEN}: {@code Observation.code}</li>
+ * <li>{@code STRING}: {@code Patient.family}</li>
+ * <li>{@code DATE}: {@code Patient.birthdate}</li>
+ * <li>{@code QUANTITY}: {@code Observation.value-quantity}</li>
+ * <li>{@code NUMBER}: {@code Encounter.length}</li>
+ * <li>{@code REFERENCE}: {@code Observation.subject}</li>
+ * </ul>
+ * <p>
+ * Run with {@code java -jar fhir-index-benchmarks/target/benchmarks.jar SearchParameterExtractorBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SearchParameterExtractorBenchmark {
+
+	private static final int RESOURCES = 1024;
+
+	@Param({ "TOKEN", "STRING", "DATE", "QUANTITY", "NUMBER", "REFERENCE" })
+	public SearchParamTypes type;
+
+	private SearchParamExtractor extractor;
+	private RuntimeSearchParam searchParam;
+	private IBaseResource[] resources;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		String resourceType;
+		String paramName;
+		switch (type) {
+		case TOKEN:
+			resourceType = "Observation";
+			paramName = "code";
+			break;
+		case STRING:
+			resourceType = "Patient";
+			paramName = "family";
+			break;
+		case DATE:
+			resourceType = "Patient";
+			paramName = "birthdate";
+			break;
+		case QUANTITY:
+			resourceType = "Observation";
+			paramName = "value-quantity";
+			break;
+		case NUMBER:
+			resourceType = "Encounter";
+			paramName = "length";
+			break;
+		case REFERENCE:
+			resourceType = "Observation";
+			paramName = "subject";
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported search parameter type " + type);
+		}
+
+		searchParam = FhirCorpusGenerator.CONTEXT.getResourceDefinition(resourceType).getSearchParam(paramName);
+		extractor = SearchParameterExtractorFactory.getInstance(FhirCorpusGenerator.CONTEXT).getParameterExtractor(type);
+		resources = new IBaseResource[RESOURCES];
+		for (int i = 0; i < RESOURCES; i++) {
+			resources[i] = BenchmarkData.CORPUS.resource(resourceType, i);
+		}
+		if (extract().isEmpty()) {
+			throw new IllegalStateException("No values extracted for " + resourceType + "." + paramName);
+		}
+	}
+
+	@Benchmark
+	public Set<AbstractSearchParam> extract() {
+		return extractor.extractValues(resources[next++ & (RESOURCES - 1)], searchParam);
+	}
+}
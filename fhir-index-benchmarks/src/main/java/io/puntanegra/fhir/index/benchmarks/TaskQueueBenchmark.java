@@ -0,0 +1,93 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.puntanegra.fhir.index.util.TaskQueue;
+
+/**
+ * Compares the throughput of {@link TaskQueue} against the former
+ * {@link BlockingTaskQueue} when several producers submit small tasks, as
+ * Cassandra write threads do with asynchronous indexing. Producers block while
+ * the queues are full, so the submission rate is bounded by the execution rate.
+ * <p>
+ * Run with {@code java -jar fhir-index-benchmarks/target/benchmarks.jar TaskQueueBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(8)
+public class TaskQueueBenchmark {
+
+	private static final int TASKS = 1000;
+
+	@Param({ "4" })
+	public int threads;
+
+	@Param({ "50" })
+	public int queuesSize;
+
+	/** CPU cost of each task, in JMH tokens */
+	@Param({ "100" })
+	public int work;
+
+	private TaskQueue taskQueue;
+	private BlockingTaskQueue blockingQueue;
+
+	@State(Scope.Thread)
+	public static class Producer {
+		private long key = Thread.currentThread().getId() << 32;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		taskQueue = new TaskQueue(threads, queuesSize);
+		blockingQueue = new BlockingTaskQueue(threads, queuesSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		taskQueue.shutdown();
+		blockingQueue.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public void taskQueue(Producer producer) {
+		Runnable task = () -> Blackhole.consumeCPU(work);
+		for (int i = 0; i < TASKS; i++) {
+			taskQueue.submitAsynchronous(producer.key++, task);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public void blockingTaskQueue(Producer producer) {
+		Runnable task = () -> Blackhole.consumeCPU(work);
+		for (int i = 0; i < TASKS; i++) {
+			blockingQueue.submitAsynchronous(producer.key++, task);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package io.puntanegra.fhir.index.benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.puntanegra.fhir.index.util.TaskQueue;
+import io.puntanegra.fhir.index.util.VirtualThreads;
+
+/**
+ * Compares the throughput of {@link TaskQueue} with dedicated platform threads
+ * against {@link TaskQueue} running in virtual threads, for tasks mixing CPU
+ * work, bounded by a per-core semaphore as JSON parsing is, with blocking I/O,
+ * emulated with a sleep.
+ * <p>
+ * Requires Java 21 or later. Run with
+ * {@code java -jar fhir-index-benchmarks/target/benchmarks.jar VirtualThreadsBenchmark}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(8)
+public class VirtualThreadsBenchmark {
+
+	private static final int TASKS = 1000;
+
+	/** The number of platform threads, as the indexing_threads option */
+	@Param({ "8" })
+	public int platformThreads;
+
+	/** The number of ordered queues run in virtual threads */
+	@Param({ "256" })
+	public int virtualQueues;
+
+	/** CPU cost of each task, in JMH tokens */
+	@Param({ "1000" })
+	public int work;
+
+	/** Blocking time of each task, in microseconds */
+	@Param({ "100" })
+	public int blockingMicros;
+
+	private TaskQueue platformQueue;
+	private TaskQueue virtualQueue;
+	private Semaphore cpuPermits;
+
+	@State(Scope.Thread)
+	public static class Producer {
+		private long key = Thread.currentThread().getId() << 32;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		ExecutorService executor = VirtualThreads.newExecutor("benchmark");
+		if (executor == null) {
+			throw new IllegalStateException("Virtual threads require Java 21 or later");
+		}
+		platformQueue = new TaskQueue(platformThreads, 50);
+		virtualQueue = new TaskQueue(virtualQueues, 50, null, false, executor);
+		cpuPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		platformQueue.shutdown();
+		virtualQueue.shutdown();
+	}
+
+	private void task() {
+		LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(blockingMicros));
+		cpuPermits.acquireUninterruptibly();
+		try {
+			Blackhole.consumeCPU(work);
+		} finally {
+			cpuPermits.release();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public void platformThreads(Producer producer) {
+		for (int i = 0; i < TASKS; i++) {
+			platformQueue.submitAsynchronous(producer.key++, null, this::task);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TASKS)
+	public void virtualThreads(Producer producer) {
+		for (int i = 0; i < TASKS; i++) {
+			virtualQueue.submitAsynchronous(producer.key++, null, this::task);
+		}
+	}
+}
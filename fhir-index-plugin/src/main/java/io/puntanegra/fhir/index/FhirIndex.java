@@ -101,6 +101,10 @@ public class FhirIndex implements Index {
 	}
 
 	public Callable<?> getBlockingFlushTask() {
+		if (!service.commitsOnFlush()) {
+			// commits are periodic and the gap is replayed on restart
+			return null;
+		}
 		return () -> {
 			logger.info("Flushing Lucene index {}", name);
 			service.commit();
@@ -119,15 +123,23 @@ public class FhirIndex implements Index {
 
 	public Callable<?> getInitializationTask() {
 		logger.info("Getting initialization task of {}", name);
-		if (table.isEmpty() || SystemKeyspace.isIndexBuilt(table.keyspace.getName(), config.name)) {
+		if (table.isEmpty()) {
 			logger.info("Index {} doesn't need (re)building", name);
+			service.discardRecoveredJournal();
 			return null;
+		} else if (SystemKeyspace.isIndexBuilt(table.keyspace.getName(), config.name)) {
+			logger.info("Index {} doesn't need (re)building", name);
+			return service.replayTask();
 		} else {
 			logger.info("Index {} needs (re)building", name);
 			return () -> {
 				table.forceBlockingFlush();
 				service.truncate();
+				service.discardRecoveredJournal();
 				table.indexManager.buildIndexBlocking(this);
+				if (!service.commitsOnFlush()) {
+					service.checkpoint();
+				}
 				return null;
 			};
 		}
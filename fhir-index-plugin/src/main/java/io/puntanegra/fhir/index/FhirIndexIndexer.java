@@ -18,16 +18,17 @@
 
 package io.puntanegra.fhir.index;
 
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.cassandra.db.Clustering;
 import org.apache.cassandra.db.DecoratedKey;
 import org.apache.cassandra.db.DeletionTime;
 import org.apache.cassandra.db.RangeTombstone;
-import org.apache.cassandra.db.marshal.UTF8Type;
-import org.apache.cassandra.db.rows.Cell;
 import org.apache.cassandra.db.rows.Row;
 import org.apache.cassandra.index.Index;
 import org.apache.cassandra.index.transactions.IndexTransaction;
@@ -35,8 +36,6 @@ import org.apache.cassandra.utils.concurrent.OpOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.puntanegra.fhir.index.util.ByteBufferUtils;
-
 /**
  * Lucene-based {@link Index.Indexer} that processes events emitted during partition updates.
  *
@@ -53,6 +52,7 @@ public class FhirIndexIndexer implements Index.Indexer {
 	private final OpOrder.Group opGroup;
 	private final IndexTransaction.Type transactionType;
 	private final Map<Clustering, Optional<Row>> rows;
+	private final Set<Clustering> unchanged = new HashSet<>();
 
 	/**
 	 * Builds a new {@link FhirIndexIndexer} for tables with wide rows.
@@ -102,7 +102,13 @@ public class FhirIndexIndexer implements Index.Indexer {
 	@Override
 	public void updateRow(Row oldRowData, Row newRowData) {
 		logger.trace("Updating row {}: {} to {}", this.transactionType, oldRowData, newRowData);
-		index(newRowData);
+		if (service.isUnchanged(oldRowData, newRowData, nowInSec)) {
+			logger.trace("Skipping update of row with unchanged indexed columns {}", newRowData.clustering());
+			unchanged.add(newRowData.clustering());
+			rows.remove(newRowData.clustering());
+		} else {
+			index(newRowData);
+		}
 	}
 
 	@Override
@@ -120,6 +126,7 @@ public class FhirIndexIndexer implements Index.Indexer {
 	public void index(Row row) {
 		if (!row.isStatic()) {
 			Clustering clustering = row.clustering();
+			unchanged.remove(clustering);
 			if (service.needsReadBeforeWrite(key, row)) {
 				rows.put(clustering, Optional.empty());
 			} else {
@@ -129,11 +136,20 @@ public class FhirIndexIndexer implements Index.Indexer {
 	}
 
 	public void finish() {
+		// Nothing to index, such as an update with unchanged indexed columns
+		if (rows.isEmpty()) {
+			return;
+		}
+
 		// Read required rows from storage engine
+		long start = System.nanoTime();
 		service.read(key, nowInSec, opGroup).forEachRemaining(unfiltered -> {
 			Row row = (Row) unfiltered;
-			rows.put(row.clustering(), Optional.of(row));
+			if (!unchanged.contains(row.clustering())) {
+				rows.put(row.clustering(), Optional.of(row));
+			}
 		});
+		service.metrics.readBeforeWrite.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
 
 		// Write rows to Lucene index
 		rows.forEach((clustering, optional) -> optional.ifPresent(row -> {
@@ -151,25 +167,6 @@ public class FhirIndexIndexer implements Index.Indexer {
 	private void delete() {
 		service.delete(key);
 		rows.clear();
-	}
-
-	@SuppressWarnings("unused")
-	private boolean insertInIndex(final String indexResourceType, Row row) {
-		// only index in the correct lucene index.
-		// this code checks if the resourceType is the same as the index.
-		// TODO: externalizar resource_type
-
-		for (Cell cell : row.cells()) {
-			String columnname = cell.column().name.toString();
-			if ("resource_type".equals(columnname)) {
-				String resourceType = ByteBufferUtils.toString(cell.value(), UTF8Type.instance);
-
-				if (indexResourceType.equals(resourceType)) {
-					return true;
-				}
-				return false;
-			}
-		}
-		return false;
+		unchanged.clear();
 	}
 }
@@ -18,7 +18,12 @@
 
 package io.puntanegra.fhir.index;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.NavigableSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.db.Clustering;
@@ -38,16 +43,24 @@ import org.apache.lucene.search.ScoreDoc;
 
 import io.puntanegra.fhir.index.cache.SearchCacheUpdater;
 import io.puntanegra.fhir.index.lucene.LuceneDocumentIterator;
+import io.puntanegra.fhir.index.metrics.QueryTrace;
+import io.puntanegra.fhir.index.metrics.QueryTrace.Phase;
 
 /**
  * {@link UnfilteredPartitionIterator} for retrieving rows from Cassandra
  * partition table.
+ * <br>
+ * If the service has a read executor, up to {@link #READ_AHEAD} partitions are
+ * read concurrently, while they are still returned in the Lucene order.
  *
  * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
  *
  */
 public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 
+	/** The max number of partitions read concurrently with a read executor */
+	public static final int READ_AHEAD = 16;
+
 	private final ReadCommand command;
 	private final ColumnFamilyStore table;
 	private final ReadOrderGroup orderGroup;
@@ -59,6 +72,11 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 	private final SearchCacheUpdater cacheUpdater;
 	private Pair<Document, ScoreDoc> nextDoc;
 
+	private final ExecutorService readExecutor;
+	private final Deque<Future<UnfilteredRowIterator>> reads = new ArrayDeque<>();
+	private final QueryTrace trace;
+	private int partitions;
+
 	/**
 	 * Constructor taking the Cassandra read data and the Lucene results
 	 * iterator.
@@ -75,9 +93,12 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 	 *            the documents iterator
 	 * @param cacheUpdater
 	 *            the search cache updater
+	 * @param trace
+	 *            the trace of the search phases
 	 */
 	public FhirIndexSearcher(FhirIndexService service, ReadCommand command, ColumnFamilyStore table,
-			ReadOrderGroup orderGroup, LuceneDocumentIterator documents, SearchCacheUpdater cacheUpdater) {
+			ReadOrderGroup orderGroup, LuceneDocumentIterator documents, SearchCacheUpdater cacheUpdater,
+			QueryTrace trace) {
 
 		this.command = command;
 		this.table = table;
@@ -87,6 +108,8 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 		this.service = service;
 		this.comparator = service.metadata.comparator;
 		this.cacheUpdater = cacheUpdater;
+		this.readExecutor = service.readExecutor;
+		this.trace = trace;
 	}
 
 	@Override
@@ -105,6 +128,10 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 			return true;
 		}
 
+		if (readExecutor != null) {
+			return hasNextConcurrent();
+		}
+
 		if (nextDoc == null) {
 			if (!documents.hasNext()) {
 				return false;
@@ -112,7 +139,7 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 			nextDoc = documents.next();
 		}
 
-		DecoratedKey key = service.decoratedKey(nextDoc.left);
+		DecoratedKey key = decoratedKey(nextDoc.left);
 		NavigableSet<Clustering> clusterings = clusterings(key);
 
 		if (clusterings.isEmpty()) {
@@ -131,6 +158,56 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 		return true;
 	}
 
+	private boolean hasNextConcurrent() {
+		while (true) {
+			while (reads.size() < READ_AHEAD && (reads.isEmpty() || !documents.needsFetch()) && scheduleRead()) {
+				// Keep reading ahead
+			}
+			if (reads.isEmpty()) {
+				return false;
+			}
+			UnfilteredRowIterator data = get(reads.poll());
+			if (!data.isEmpty()) {
+				next = data;
+				return true;
+			}
+			data.close();
+		}
+	}
+
+	/**
+	 * Submits the read of the next partition to the read executor.
+	 *
+	 * @return {@code true} if there was a next partition, {@code false}
+	 *         otherwise
+	 */
+	private boolean scheduleRead() {
+		if (nextDoc == null) {
+			if (!documents.hasNext()) {
+				return false;
+			}
+			nextDoc = documents.next();
+		}
+		DecoratedKey key = decoratedKey(nextDoc.left);
+		NavigableSet<Clustering> clusterings = clusterings(key);
+		if (!clusterings.isEmpty()) {
+			ClusteringIndexFilter filter = new ClusteringIndexNamesFilter(clusterings, false);
+			reads.add(readExecutor.submit(() -> read(key, filter)));
+		}
+		return true;
+	}
+
+	private static UnfilteredRowIterator get(Future<UnfilteredRowIterator> read) {
+		try {
+			return read.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FhirIndexException(e, "Interrupted while reading partition");
+		} catch (ExecutionException e) {
+			throw new FhirIndexException(e.getCause(), "Error reading partition");
+		}
+	}
+
 	@Override
 	public UnfilteredRowIterator next() {
 		if (next == null) {
@@ -138,6 +215,9 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 		}
 		UnfilteredRowIterator result = next;
 		next = null;
+		if (result != null) {
+			partitions++;
+		}
 		return result;
 	}
 
@@ -152,24 +232,32 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 			if (next != null) {
 				next.close();
 			}
+			while (!reads.isEmpty()) {
+				get(reads.poll()).close();
+			}
 		} finally {
 			documents.close();
+			trace.setPartitions(partitions);
+			service.searched(trace);
 		}
 	}
 
 	public UnfilteredRowIterator read(DecoratedKey key, ClusteringIndexFilter filter) {
-		return SinglePartitionReadCommand.create(isForThrift(), table.metadata, command.nowInSec(),
-				command.columnFilter(), command.rowFilter(), command.limits(), key, filter)
+		long start = System.nanoTime();
+		UnfilteredRowIterator data = SinglePartitionReadCommand.create(isForThrift(), table.metadata,
+				command.nowInSec(), command.columnFilter(), command.rowFilter(), command.limits(), key, filter)
 				.queryMemtableAndDisk(table, orderGroup.baseReadOpOrderGroup());
+		trace.add(Phase.PARTITION_READ, start);
+		return data;
 	}
 
 	private NavigableSet<Clustering> clusterings(DecoratedKey key) {
 
 		NavigableSet<Clustering> clusterings = service.clusterings();
-		Clustering clustering = service.clustering(nextDoc.left);
+		Clustering clustering = clustering(nextDoc.left);
 
 		Clustering lastClustering = null;
-		while (nextDoc != null && key.getKey().equals(service.decoratedKey(nextDoc.left).getKey())
+		while (nextDoc != null && key.getKey().equals(decoratedKey(nextDoc.left).getKey())
 				&& (lastClustering == null || comparator.compare(lastClustering, clustering) < 0)) {
 			if (command.selectsKey(key) && command.selectsClustering(key, clustering)) {
 				lastClustering = clustering;
@@ -178,7 +266,7 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 			}
 			if (documents.hasNext()) {
 				nextDoc = documents.next();
-				clustering = service.clustering(nextDoc.left);
+				clustering = clustering(nextDoc.left);
 			} else {
 				nextDoc = null;
 			}
@@ -188,4 +276,18 @@ public class FhirIndexSearcher implements UnfilteredPartitionIterator {
 		}
 		return clusterings;
 	}
+
+	private DecoratedKey decoratedKey(Document document) {
+		long start = System.nanoTime();
+		DecoratedKey key = service.decoratedKey(document);
+		trace.add(Phase.KEY_DECODING, start);
+		return key;
+	}
+
+	private Clustering clustering(Document document) {
+		long start = System.nanoTime();
+		Clustering clustering = service.clustering(document);
+		trace.add(Phase.KEY_DECODING, start);
+		return clustering;
+	}
 }
@@ -18,45 +18,69 @@
 package io.puntanegra.fhir.index;
 
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.db.Clustering;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.LivenessInfo;
 import org.apache.cassandra.db.PartitionColumns;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.ReadOrderGroup;
 import org.apache.cassandra.db.SinglePartitionReadCommand;
+import org.apache.cassandra.db.commitlog.CommitLog;
+import org.apache.cassandra.db.commitlog.ReplayPosition;
 import org.apache.cassandra.db.filter.ClusteringIndexNamesFilter;
 import org.apache.cassandra.db.filter.ColumnFilter;
 import org.apache.cassandra.db.filter.RowFilter;
 import org.apache.cassandra.db.filter.RowFilter.Expression;
+import org.apache.cassandra.db.lifecycle.SSTableSet;
+import org.apache.cassandra.db.lifecycle.View;
 import org.apache.cassandra.db.marshal.UTF8Type;
 import org.apache.cassandra.db.partitions.PartitionIterator;
 import org.apache.cassandra.db.partitions.PartitionUpdate;
 import org.apache.cassandra.db.partitions.UnfilteredPartitionIterator;
 import org.apache.cassandra.db.rows.Cell;
 import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.db.rows.Unfiltered;
 import org.apache.cassandra.db.rows.UnfilteredRowIterator;
 import org.apache.cassandra.index.Index.Indexer;
 import org.apache.cassandra.index.Index.Searcher;
 import org.apache.cassandra.index.transactions.IndexTransaction.Type;
 import org.apache.cassandra.io.sstable.SSTable;
+import org.apache.cassandra.io.sstable.format.SSTableReader;
 import org.apache.cassandra.schema.IndexMetadata;
+import org.apache.cassandra.utils.FBUtilities;
 import org.apache.cassandra.utils.concurrent.OpOrder;
 import org.apache.cassandra.utils.concurrent.OpOrder.Group;
-import org.apache.lucene.document.DateTools.Resolution;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.CachingWrapperQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
@@ -70,17 +94,29 @@ import io.puntanegra.fhir.index.cache.SearchCacheEntry;
 import io.puntanegra.fhir.index.cache.SearchCacheUpdater;
 import io.puntanegra.fhir.index.config.IndexOptions;
 import io.puntanegra.fhir.index.lucene.LuceneDocumentIterator;
-import io.puntanegra.fhir.index.lucene.LuceneService;
+import io.puntanegra.fhir.index.lucene.LuceneIndexGroup;
+import io.puntanegra.fhir.index.lucene.LuceneQueryCache;
 import io.puntanegra.fhir.index.mapper.FhirMapper;
 import io.puntanegra.fhir.index.mapper.KeyMapper;
 import io.puntanegra.fhir.index.mapper.PartitionMapper;
 import io.puntanegra.fhir.index.mapper.TokenMapper;
+import io.puntanegra.fhir.index.metrics.IndexMetrics;
+import io.puntanegra.fhir.index.metrics.IndexingTrace;
+import io.puntanegra.fhir.index.metrics.QueryTrace;
+import io.puntanegra.fhir.index.metrics.QueryTrace.Phase;
+import io.puntanegra.fhir.index.query.FhirQueryParser;
+import io.puntanegra.fhir.index.query.SearchFieldTypes;
+import io.puntanegra.fhir.index.query.SearchHints;
 import io.puntanegra.fhir.index.util.ByteBufferUtils;
+import io.puntanegra.fhir.index.util.IndexingJournal;
 import io.puntanegra.fhir.index.util.TaskQueue;
+import io.puntanegra.fhir.index.util.TimeCounter;
+import io.puntanegra.fhir.index.util.TimeWindows;
+import io.puntanegra.fhir.index.util.VirtualThreads;
 
 /**
  * Service that implement the logic behind the index. It reads the Cassandra's
- * index configuration and passes to {@link LuceneService} to create the index.
+ * index configuration and passes to {@link LuceneIndexGroup} to create the index.
  * <br>
  * It also creates the mappers required to process any CRUD operation on the
  * {@link SSTable}
@@ -92,51 +128,148 @@ public class FhirIndexService {
 
 	protected static final Logger logger = LoggerFactory.getLogger(FhirIndexService.class);
 
+	/** Lucene commit data key for the commit log segment covered by a commit */
+	public static final String COMMITLOG_SEGMENT = "commitlog_segment";
+
+	/** Lucene commit data key for the commit log position covered by a commit */
+	public static final String COMMITLOG_POSITION = "commitlog_position";
+
 	public ColumnFamilyStore table;
 	public IndexMetadata config;
 	public CFMetaData metadata;
 	public String name;
 
-	public LuceneService lucene;
+	public LuceneIndexGroup lucene;
 	public TaskQueue queue;
+	private IndexingJournal journal;
 	public IndexOptions indexOptions;
 	public TokenMapper tokenMapper;
 	public PartitionMapper partitionMapper;
 	public FhirMapper fhirMapper;
+	private SearchFieldTypes fieldTypes;
 	public boolean mapsMultiCells;
 
 	public SearchCache searchCache;
+	private final AtomicLong droppedRows = new AtomicLong();
+	private final AtomicLong skippedUpdates = new AtomicLong();
+	private final AtomicLong consistentReadTimeouts = new AtomicLong();
+	public LuceneQueryCache queryCache;
 	private KeyMapper keyMapper;
 
+	/** The index metrics, registered in the Cassandra metrics registry */
+	public IndexMetrics metrics;
+
+	private ScheduledExecutorService committer;
+	private ScheduledExecutorService expunger;
+
+	/** The virtual threads executor for partition reads, {@code null} if not used */
+	public ExecutorService readExecutor;
+
+	/** Bounds the concurrent parsing when indexing in virtual threads */
+	private Semaphore parsePermits;
+	private volatile long committedGeneration = -1;
+
 	public FhirIndexService() {
 	}
 
 	public void build(ColumnFamilyStore cfStore, IndexMetadata cfg) {
 		table = cfStore;
-		config = cfg;
-		metadata = table.metadata;
+		build(cfStore.metadata, cfg);
+	}
 
-		CFMetaData metadata = table.metadata;
+	/**
+	 * Builds the index of the specified table metadata, without the table
+	 * store, which is only needed to read rows and SSTables.
+	 *
+	 * @param metadata
+	 *            the indexed table metadata
+	 * @param cfg
+	 *            the index metadata
+	 */
+	void build(CFMetaData metadata, IndexMetadata cfg) {
+		config = cfg;
+		this.metadata = metadata;
 		name = config.name;
 
 		// Setup cache, index and write queue
 		indexOptions = new IndexOptions(metadata, config);
 
-		String mbeanName = String.format("com.stratio.cassandra.lucene:type=Lucene,keyspace=%s,table=%s,index=%s",
+		String mbeanName = String.format("%s:type=LuceneIndex,keyspace=%s,table=%s,index=%s", IndexMetrics.GROUP,
 				metadata.ksName, metadata.cfName, name);
 
 		searchCache = new SearchCache(metadata, indexOptions.searchCacheSize);
-		lucene = new LuceneService();
-		lucene.init(name, mbeanName, indexOptions.path, indexOptions.search.defaultAnalyzer,
-				indexOptions.refreshSeconds, indexOptions.ramBufferMB, indexOptions.maxMergeMB,
-				indexOptions.maxCachedMB, searchCache::invalidate);
-		queue = new TaskQueue(indexOptions.indexingThreads, indexOptions.indexingQueuesSize);
+		queryCache = indexOptions.queryCacheMB > 0 ? new LuceneQueryCache(indexOptions.queryCacheMB) : null;
+		lucene = new LuceneIndexGroup(name, mbeanName, indexOptions, queryCache, searchCache::invalidate);
+		metrics = new IndexMetrics(metadata.ksName, metadata.cfName, name);
+		lucene.setRefreshListener(nanos -> metrics.refresh.update(nanos, TimeUnit.NANOSECONDS));
+		if (indexOptions.indexingThreads > 0 && indexOptions.indexingJournalMB > 0) {
+			Path journalPath = indexOptions.path.resolveSibling(indexOptions.path.getFileName() + "_journal");
+			journal = new IndexingJournal(journalPath, indexOptions.indexingJournalMB,
+					indexOptions.indexingThreads);
+		}
+		ExecutorService indexingExecutor = null;
+		if (indexOptions.virtualThreads) {
+			readExecutor = VirtualThreads.newExecutor(name + "-reader");
+			if (indexOptions.indexingThreads > 0) {
+				indexingExecutor = VirtualThreads.newExecutor(name + "-indexer");
+			}
+			if (indexingExecutor != null) {
+				parsePermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+			}
+		}
+		queue = new TaskQueue(indexOptions.indexingThreads, indexOptions.indexingQueuesSize, journal,
+				indexOptions.indexingRebalance, indexingExecutor);
+		if (!commitsOnFlush()) {
+			long interval = (long) (indexOptions.commitIntervalSeconds * 1000);
+			committer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + "-committer"));
+			committer.scheduleWithFixedDelay(this::scheduledCheckpoint, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		if (indexOptions.expungeDeletesRatio > 0) {
+			long interval = indexOptions.expungeIntervalSeconds;
+			expunger = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + "-expunger"));
+			expunger.scheduleWithFixedDelay(this::scheduledExpunge, interval, interval, TimeUnit.SECONDS);
+		}
 
 		// Setup mappers
 		fhirMapper = new FhirMapper(indexOptions.search);
+		fieldTypes = SearchFieldTypes.of(indexOptions.search);
 		tokenMapper = new TokenMapper();
 		partitionMapper = new PartitionMapper(metadata);
 		keyMapper = new KeyMapper(metadata);
+
+		registerGauges();
+	}
+
+	private void registerGauges() {
+		metrics.gauge("Docs", lucene::getNumDocs);
+		metrics.gauge("DeletedDocs", lucene::getNumDeletedDocs);
+		metrics.gauge("DeletedRatio", () -> {
+			long deleted = lucene.getNumDeletedDocs();
+			long total = lucene.getNumDocs() + deleted;
+			return total == 0 ? 0 : (double) deleted / total;
+		});
+		metrics.gauge("Segments", lucene::getSegmentCount);
+		metrics.gauge("SortedSegments", lucene::getSortedSegmentCount);
+		metrics.gauge("RamBufferUsedBytes", lucene::getRamBufferUsedBytes);
+		metrics.gauge("MaxSegmentDeletedRatio", lucene::getMaxSegmentDeletedRatio);
+		metrics.gauge("Expunges", lucene::getExpunges);
+		metrics.gauge("Merges", lucene::getMerges);
+		metrics.gauge("RunningMerges", lucene::getRunningMerges);
+		metrics.gauge("MergeTimeMillis", lucene::getMergeTimeMillis);
+		metrics.gauge("MergedBytes", lucene::getMergedBytes);
+		metrics.gauge("MergeThrottledMillis", lucene::getMergeThrottledMillis);
+		metrics.gauge("StalenessSeconds", lucene::getStalenessSeconds);
+		metrics.gauge("IndexingQueueDepth", () -> Arrays.stream(queue.getQueueDepths()).sum());
+		for (int i = 0; i < queue.getThreads(); i++) {
+			int thread = i;
+			metrics.gauge("IndexingQueueDepth", IndexMetrics.THREAD_LABEL, String.valueOf(thread),
+					() -> queue.getQueueDepth(thread));
+		}
+		metrics.gauge("IndexingRebalances", queue::getRebalances);
+		metrics.gauge("DroppedRows", droppedRows::get);
+		metrics.gauge("SkippedUpdates", skippedUpdates::get);
+		metrics.gauge("ConsistentReadTimeouts", consistentReadTimeouts::get);
+		metrics.gauge("QueryCacheHitRate", this::getQueryCacheHitRate);
 	}
 
 	public String getName() {
@@ -144,10 +277,259 @@ public class FhirIndexService {
 	}
 
 	/**
-	 * Commits the pending changes.
+	 * Commits the pending changes. The queued indexing tasks are waited for,
+	 * but new writes are not blocked meanwhile. The indexing journal segments
+	 * of the committed tasks are discarded.
 	 */
 	public final void commit() {
-		queue.submitSynchronous(lucene::commit);
+		queue.submitCommit(() -> {
+			long start = System.nanoTime();
+			lucene.commit();
+			metrics.commit.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		});
+	}
+
+	/**
+	 * Returns if the index is committed on each memtable flush. Otherwise it is
+	 * periodically committed with {@link #checkpoint()}.
+	 *
+	 * @return {@code true} if the index is committed on flush
+	 */
+	public boolean commitsOnFlush() {
+		return indexOptions.commitIntervalSeconds == 0;
+	}
+
+	/**
+	 * Commits all the writes done up to now, recording in the Lucene commit the
+	 * commit log position they cover. The in-flight Cassandra writes and the
+	 * queued indexing tasks are waited for, so all the mutations before that
+	 * position are in the commit. After a restart, the rows flushed to SSTables
+	 * after that position are reindexed, see {@link #replayTask()}.
+	 */
+	public void checkpoint() {
+		long generation = lucene.getWrittenGeneration();
+		ReplayPosition position = CommitLog.instance.getContext();
+		OpOrder.Barrier barrier = Keyspace.writeOrder.newBarrier();
+		barrier.issue();
+		barrier.await();
+		Map<String, String> commitData = new HashMap<>();
+		commitData.put(COMMITLOG_SEGMENT, String.valueOf(position.segment));
+		commitData.put(COMMITLOG_POSITION, String.valueOf(position.position));
+		queue.submitCommit(() -> {
+			long start = System.nanoTime();
+			lucene.commit(commitData);
+			metrics.commit.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		});
+		committedGeneration = generation;
+		logger.debug("Checkpointed {} at {}", name, position);
+	}
+
+	private void scheduledCheckpoint() {
+		try {
+			if (lucene.getWrittenGeneration() != committedGeneration) {
+				checkpoint();
+			}
+		} catch (Exception e) {
+			logger.error("Error committing " + name, e);
+		}
+	}
+
+	/**
+	 * Expunges the deleted documents of the segments above the configured
+	 * deleted documents ratio, if the current time is inside the expunge
+	 * windows. Rows keep being indexed meanwhile.
+	 */
+	private void scheduledExpunge() {
+		try {
+			TimeWindows windows = indexOptions.expungeWindows;
+			if (windows == null || windows.containsNow()) {
+				lucene.expungeDeletes(indexOptions.expungeDeletesRatio);
+			}
+		} catch (Exception e) {
+			logger.error("Error expunging deleted documents of " + name, e);
+		}
+	}
+
+	/**
+	 * Returns the commit log position covered by the last commit of all the
+	 * Lucene indexes, if any.
+	 *
+	 * @return the committed position, maybe {@code null}
+	 */
+	private ReplayPosition committedPosition() {
+		ReplayPosition min = null;
+		for (Map<String, String> commitData : lucene.getCommitData()) {
+			String segment = commitData.get(COMMITLOG_SEGMENT);
+			String position = commitData.get(COMMITLOG_POSITION);
+			if (segment == null || position == null) {
+				return null;
+			}
+			ReplayPosition replayPosition = new ReplayPosition(Long.parseLong(segment), Integer.parseInt(position));
+			if (min == null || replayPosition.compareTo(min) < 0) {
+				min = replayPosition;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Returns a task reindexing the rows whose indexing could have been lost if
+	 * the node crashed before committing:
+	 * <li>The rows recorded in the indexing journal, which were still queued or
+	 * not committed.</li>
+	 * <li>The rows written to the SSTables flushed after the last commit, if the
+	 * index is not committed on flush. The rows still in the commit log don't
+	 * need it, because they are replayed through the index. If the last commit
+	 * has no commit log position, the task just records the current one.</li>
+	 *
+	 * @return the replay task, {@code null} if there is nothing to replay
+	 */
+	public Callable<?> replayTask() {
+		Callable<?> gapTask = gapTask();
+		if (journal == null || !journal.hasRecovered()) {
+			return gapTask;
+		}
+		return () -> {
+			replayJournal();
+			return gapTask == null ? null : gapTask.call();
+		};
+	}
+
+	private Callable<?> gapTask() {
+		if (commitsOnFlush()) {
+			return null;
+		}
+		ReplayPosition position = committedPosition();
+		if (position == null) {
+			return () -> {
+				checkpoint();
+				return null;
+			};
+		}
+		boolean gap = table.getLiveSSTables().stream().anyMatch(sstable -> isFlushedAfter(sstable, position));
+		if (!gap) {
+			return null;
+		}
+		return () -> {
+			try (ColumnFamilyStore.RefViewFragment view = table
+					.selectAndReference(View.select(SSTableSet.CANONICAL, sstable -> isFlushedAfter(sstable, position)))) {
+				logger.info("Reindexing {} SSTables flushed after the last commit of {} at {}", view.sstables.size(),
+						name, position);
+				table.indexManager.rebuildIndexesBlocking(view.sstables, Collections.singleton(name));
+			}
+			checkpoint();
+			return null;
+		};
+	}
+
+	/**
+	 * Reindexes the rows recorded in the indexing journal segments found at
+	 * startup, reading their current state from the table, and commits.
+	 */
+	private void replayJournal() {
+		TimeCounter time = TimeCounter.create().start();
+		long count = journal.replay(this::replay);
+		lucene.commit();
+		journal.discardRecovered();
+		logger.info("Replayed {} indexing journal entries of {} in {}", count, name, time.stop());
+	}
+
+	/**
+	 * Discards the indexing journal segments found at startup, because the
+	 * index is going to be rebuilt or the table is empty.
+	 */
+	public void discardRecoveredJournal() {
+		if (journal != null) {
+			journal.discardRecovered();
+		}
+	}
+
+	/**
+	 * Returns the indexing journal entry identifying the specified row.
+	 *
+	 * @param key
+	 *            the partition key
+	 * @param clustering
+	 *            the clustering key, {@code null} for the whole partition
+	 * @return the journal entry, {@code null} if there is no journal
+	 */
+	private ByteBuffer journalEntry(DecoratedKey key, Clustering clustering) {
+		if (journal == null) {
+			return null;
+		}
+		ByteBuffer partitionKey = key.getKey();
+		int size = 2 * Integer.BYTES + partitionKey.remaining();
+		ByteBuffer[] values = clustering == null ? null : clustering.getRawValues();
+		if (values != null) {
+			for (ByteBuffer value : values) {
+				size += Integer.BYTES + value.remaining();
+			}
+		}
+		ByteBuffer entry = ByteBuffer.allocate(size);
+		entry.putInt(partitionKey.remaining()).put(partitionKey.duplicate());
+		entry.putInt(values == null ? -1 : values.length);
+		if (values != null) {
+			for (ByteBuffer value : values) {
+				entry.putInt(value.remaining()).put(value.duplicate());
+			}
+		}
+		entry.flip();
+		return entry;
+	}
+
+	/**
+	 * Reindexes the row identified by the specified journal entry with its
+	 * current state in the table.
+	 */
+	private void replay(ByteBuffer entry) {
+		DecoratedKey key = metadata.decorateKey(readBytes(entry));
+		int size = entry.getInt();
+		if (size < 0) {
+			Term term = term(key);
+			if (term == null) {
+				logger.warn("Skipping indexing journal partition delete of {} without term", key);
+			} else {
+				lucene.delete(TokenMapper.value(key.getToken()), term);
+			}
+			return;
+		}
+		ByteBuffer[] values = new ByteBuffer[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = readBytes(entry);
+		}
+		Clustering clustering = size == 0 ? Clustering.EMPTY : new Clustering(values);
+		int nowInSec = FBUtilities.nowInSeconds();
+		Row row = null;
+		try (OpOrder.Group opGroup = table.readOrdering.start();
+				UnfilteredRowIterator rows = read(key, clusterings(clustering), nowInSec, opGroup)) {
+			while (rows.hasNext()) {
+				Unfiltered unfiltered = rows.next();
+				if (unfiltered.isRow()) {
+					row = (Row) unfiltered;
+				}
+			}
+			if (row != null && row.hasLiveData(nowInSec) && isIndexed(row)) {
+				indexRow(key, row);
+			} else {
+				lucene.delete(TokenMapper.value(key.getToken()), term(key, clustering));
+			}
+		}
+	}
+
+	private static ByteBuffer readBytes(ByteBuffer entry) {
+		int length = entry.getInt();
+		ByteBuffer bytes = entry.slice();
+		bytes.limit(length);
+		entry.position(entry.position() + length);
+		return bytes;
+	}
+
+	/**
+	 * Returns if the specified {@link SSTableReader} may contain mutations
+	 * written after the specified commit log position.
+	 */
+	private static boolean isFlushedAfter(SSTableReader sstable, ReplayPosition position) {
+		return sstable.getSSTableMetadata().replayPosition.compareTo(position) > 0;
 	}
 
 	/**
@@ -155,20 +537,52 @@ public class FhirIndexService {
 	 */
 	public final void truncate() {
 		queue.submitSynchronous(lucene::truncate);
+		clearQueryCache();
 	}
 
 	/**
 	 * Completely deletes the index.
 	 */
 	public void delete() {
+		if (committer != null) {
+			committer.shutdownNow();
+		}
+		if (expunger != null) {
+			expunger.shutdownNow();
+		}
 		queue.shutdown();
+		if (readExecutor != null) {
+			readExecutor.shutdown();
+		}
+		if (journal != null) {
+			journal.delete();
+		}
+		metrics.release();
 		lucene.delete();
+		clearQueryCache();
+	}
+
+	private void clearQueryCache() {
+		if (queryCache != null) {
+			queryCache.clear();
+		}
+	}
+
+	/**
+	 * Returns the ratio of Lucene query cache lookups served from the cache.
+	 *
+	 * @return the query cache hit rate, {@code 0} if caching is disabled
+	 */
+	public double getQueryCacheHitRate() {
+		return queryCache == null ? 0 : queryCache.getHitRate();
 	}
 
 	/**
 	 * Upserts the specified {@link Row} to Lucene Index. <br>
 	 * Based on the {@link Row} information, it creates a Lucene
-	 * {@link Document} and calls the upsert on the {@link LuceneService}.
+	 * {@link Document} and calls the upsert on the {@link LuceneIndexGroup}.
+	 * If the row resource type is not indexed, the row is deleted instead,
+	 * because it may have been indexed with a previous resource type.
 	 *
 	 * @param key
 	 *            the partition key
@@ -176,10 +590,168 @@ public class FhirIndexService {
 	 *            the row to be upserted
 	 */
 	public void upsert(DecoratedKey key, Row row) {
-		queue.submitAsynchronous(key, () -> document(key, row).ifPresent(document -> {
+		if (!isIndexed(row)) {
+			droppedRows.incrementAndGet();
+			delete(key, row);
+			return;
+		}
+		queue.submitAsynchronous(TokenMapper.value(key.getToken()), journalEntry(key, row.clustering()), () -> indexRow(key, row));
+	}
+
+	private void indexRow(DecoratedKey key, Row row) {
+		IndexingTrace trace = new IndexingTrace();
+		Optional<Document> maybeDocument;
+		if (parsePermits == null) {
+			maybeDocument = document(key, row, trace);
+		} else {
+			parsePermits.acquireUninterruptibly();
+			try {
+				maybeDocument = document(key, row, trace);
+			} finally {
+				parsePermits.release();
+			}
+		}
+		maybeDocument.ifPresent(document -> {
+			long start = System.nanoTime();
 			Term term = term(key, row);
-			lucene.upsert(term, document);
-		}));
+			start = trace.add(IndexingTrace.Phase.KEY_MAPPING, start);
+			lucene.upsert(document.get(FhirMapper.RESOURCE_TYPE_FIELD), TokenMapper.value(key.getToken()), term,
+					document);
+			trace.add(IndexingTrace.Phase.LUCENE_UPSERT, start);
+			metrics.record(trace);
+		});
+	}
+
+	/**
+	 * Returns if the specified {@link Row} contains a FHIR Resource of an
+	 * indexed type. The resource type is read from the resource type column, so
+	 * rows of not indexed types are discarded without parsing their JSON
+	 * content. If there is no resource type column, the row has no resource
+	 * type or no resources are defined in the index, the row is indexed.
+	 *
+	 * @param row
+	 *            the row to be indexed
+	 * @return {@code true} if the row has to be indexed, {@code false}
+	 *         otherwise
+	 */
+	private boolean isIndexed(Row row) {
+		if (indexOptions.resourceTypeColumn == null || indexOptions.search.resources.isEmpty()) {
+			return true;
+		}
+		Cell cell = row.getCell(indexOptions.resourceTypeColumn);
+		if (cell == null || ByteBufferUtils.isEmpty(cell.value())) {
+			return true;
+		}
+		String resourceType = ByteBufferUtils.toString(cell.value(), UTF8Type.instance);
+		if (indexOptions.search.resources.containsKey(resourceType)) {
+			return true;
+		}
+		logger.trace("Discarding row of not indexed resource type {}", resourceType);
+		return false;
+	}
+
+	/**
+	 * Returns if the update of a row doesn't change its indexed columns, so the
+	 * indexed document doesn't need to be updated. The columns are compared by
+	 * value, so an update rewriting the same FHIR resource is skipped too,
+	 * unless it changes the TTL or the deletion of the row or the columns.
+	 * Updates are counted as skipped if this method returns {@code true}.
+	 *
+	 * @param oldRow
+	 *            the row before the update
+	 * @param newRow
+	 *            the row after the update
+	 * @param nowInSec
+	 *            the current time in seconds
+	 * @return {@code true} if the indexed columns are unchanged
+	 */
+	public boolean isUnchanged(Row oldRow, Row newRow, int nowInSec) {
+		if (!isUnchanged(oldRow, newRow, indexOptions.targetColumn, indexOptions.resourceTypeColumn, nowInSec)) {
+			return false;
+		}
+		skippedUpdates.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns if the update of a row doesn't change the specified indexed
+	 * columns, nor the liveness of the row.
+	 *
+	 * @param oldRow
+	 *            the row before the update
+	 * @param newRow
+	 *            the row after the update
+	 * @param targetColumn
+	 *            the column with the FHIR resource
+	 * @param resourceTypeColumn
+	 *            the column with the resource type, {@code null} if none
+	 * @param nowInSec
+	 *            the current time in seconds
+	 * @return {@code true} if the indexed columns are unchanged
+	 */
+	static boolean isUnchanged(Row oldRow, Row newRow, ColumnDefinition targetColumn,
+			ColumnDefinition resourceTypeColumn, int nowInSec) {
+		return oldRow.hasLiveData(nowInSec) && newRow.hasLiveData(nowInSec) && sameLiveness(oldRow, newRow)
+				&& sameValue(oldRow, newRow, targetColumn, nowInSec)
+				&& (resourceTypeColumn == null || sameValue(oldRow, newRow, resourceTypeColumn, nowInSec));
+	}
+
+	private static boolean sameLiveness(Row oldRow, Row newRow) {
+		LivenessInfo oldInfo = oldRow.primaryKeyLivenessInfo();
+		LivenessInfo newInfo = newRow.primaryKeyLivenessInfo();
+		return oldInfo.ttl() == newInfo.ttl() && oldInfo.localExpirationTime() == newInfo.localExpirationTime()
+				&& oldRow.deletion().equals(newRow.deletion());
+	}
+
+	private static boolean sameValue(Row oldRow, Row newRow, ColumnDefinition column, int nowInSec) {
+		Cell oldCell = oldRow.getCell(column);
+		Cell newCell = newRow.getCell(column);
+		if (oldCell == null || newCell == null) {
+			return oldCell == newCell;
+		}
+		return oldCell.isLive(nowInSec) == newCell.isLive(nowInSec) && oldCell.ttl() == newCell.ttl()
+				&& oldCell.localDeletionTime() == newCell.localDeletionTime()
+				&& oldCell.value().equals(newCell.value());
+	}
+
+	/**
+	 * Returns the number of row updates not indexed because their indexed
+	 * columns were unchanged.
+	 *
+	 * @return the number of skipped updates
+	 */
+	public long getSkippedUpdates() {
+		return skippedUpdates.get();
+	}
+
+	/**
+	 * Returns the number of rows discarded because their resource type is not
+	 * indexed.
+	 *
+	 * @return the number of discarded rows
+	 */
+	public long getDroppedRows() {
+		return droppedRows.get();
+	}
+
+	/**
+	 * Returns the number of rows queued for asynchronous indexing in each
+	 * indexing thread.
+	 *
+	 * @return the indexing queue depths
+	 */
+	public int[] getIndexingQueueDepths() {
+		return queue.getQueueDepths();
+	}
+
+	/**
+	 * Returns the number of times a partition range has been moved from a busy
+	 * indexing thread to a less loaded one.
+	 *
+	 * @return the number of indexing rebalances
+	 */
+	public long getIndexingRebalances() {
+		return queue.getRebalances();
 	}
 
 	/**
@@ -191,9 +763,9 @@ public class FhirIndexService {
 	 *            the row to be deleted
 	 */
 	public void delete(DecoratedKey key, Row row) {
-		queue.submitAsynchronous(key, () -> {
+		queue.submitAsynchronous(TokenMapper.value(key.getToken()), journalEntry(key, row.clustering()), () -> {
 			Term term = term(key, row);
-			lucene.delete(term);
+			lucene.delete(TokenMapper.value(key.getToken()), term);
 		});
 	}
 
@@ -204,9 +776,13 @@ public class FhirIndexService {
 	 *            the partition key
 	 */
 	public void delete(DecoratedKey key) {
-		queue.submitAsynchronous(key, () -> {
-			Term term = term(key);
-			lucene.delete(term);
+		Term term = term(key);
+		if (term == null) {
+			logger.warn("Skipping delete of partition {} without term", key);
+			return;
+		}
+		queue.submitAsynchronous(TokenMapper.value(key.getToken()), journalEntry(key, null), () -> {
+			lucene.delete(TokenMapper.value(key.getToken()), term);
 		});
 	}
 
@@ -220,9 +796,9 @@ public class FhirIndexService {
 	public Searcher searcher(ReadCommand command) {
 		// Parse search
 		String expression = expression(command);
+		QueryTrace trace = new QueryTrace(expression);
+		long start = System.nanoTime();
 		// Search search = SearchBuilder.fromJson(expression).build();
-		Sort sort = null;// new Sort(new SortField("family",
-							// SortField.Type.STRING));
 
 		// Try luck with cache
 		Optional<SearchCacheEntry> optional = searchCache.get(expression, command);
@@ -230,15 +806,77 @@ public class FhirIndexService {
 			logger.debug("Search cache hits");
 			SearchCacheEntry entry = optional.get();
 			Query query = entry.getQuery();
+			Sort sort = sort(query);
 			ScoreDoc after = entry.getScoreDoc();
 			SearchCacheUpdater cacheUpdater = entry.updater();
-			return (ReadOrderGroup orderGroup) -> read(query, sort, after, command, orderGroup, cacheUpdater);
+			trace.add(Phase.PARSE, start);
+			return (ReadOrderGroup orderGroup) -> read(query, sort, after, command, orderGroup, cacheUpdater, trace);
 		} else {
 			logger.debug("Search cache fails");
-			Query query = new CachingWrapperQuery(query(expression, command));
+			Query query = query(expression, command);
+			Sort sort = sort(query);
 			searchCache.put(expression, command, query);
 			SearchCacheUpdater cacheUpdater = searchCache.updater(expression, command, query);
-			return (ReadOrderGroup orderGroup) -> read(query, sort, null, command, orderGroup, cacheUpdater);
+			trace.add(Phase.PARSE, start);
+			return (ReadOrderGroup orderGroup) -> read(query, sort, null, command, orderGroup, cacheUpdater, trace);
+		}
+	}
+
+	/**
+	 * Returns the sort of the hits of the specified query. Indexes sorted by
+	 * token return the hits of unscored and token range queries in token
+	 * order, so the search can early terminate. Scored queries keep the
+	 * relevance order.
+	 *
+	 * @param query
+	 *            the search query
+	 * @return the token sort, {@code null} for relevance order
+	 */
+	private Sort sort(Query query) {
+		return indexOptions.sortByToken && isTokenSortable(query) ? TokenMapper.sort() : null;
+	}
+
+	/**
+	 * Returns if the hits of the specified query can be returned in token
+	 * order without losing relevance, because the query doesn't score them or
+	 * it is a token range query.
+	 *
+	 * @param query
+	 *            the search query
+	 * @return {@code true} if the query can be sorted by token
+	 */
+	static boolean isTokenSortable(Query query) {
+		return !isScored(SearchHints.of(query).query()) || TokenMapper.isTokenRange(query);
+	}
+
+	private static boolean isScored(Query query) {
+		if (query instanceof MatchAllDocsQuery || query instanceof ConstantScoreQuery) {
+			return false;
+		} else if (query instanceof MultiTermQuery) {
+			return ((MultiTermQuery) query).getRewriteMethod() != MultiTermQuery.CONSTANT_SCORE_REWRITE;
+		} else if (query instanceof BooleanQuery) {
+			for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+				if (clause.isScoring() && isScored(clause.getQuery())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the metrics of the specified finished search, logging it if it
+	 * is slower than the slow query threshold.
+	 *
+	 * @param trace
+	 *            the trace of the search phases
+	 */
+	public void searched(QueryTrace trace) {
+		metrics.record(trace);
+		if (indexOptions.slowQueryMs > 0
+				&& trace.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(indexOptions.slowQueryMs)) {
+			logger.warn("Slow search in {}: {} [{}]", name, trace.getExpression(), trace);
 		}
 	}
 
@@ -254,6 +892,15 @@ public class FhirIndexService {
 	 * @return the k globally best results
 	 */
 	public PartitionIterator postProcess(PartitionIterator partitions, ReadCommand command) {
+		long start = System.nanoTime();
+		try {
+			return postProcess(partitions);
+		} finally {
+			metrics.postProcess.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private PartitionIterator postProcess(PartitionIterator partitions) {
 
 		// Search search = search(command);
 		//
@@ -418,13 +1065,60 @@ public class FhirIndexService {
 	 *            the Cassandra read order group
 	 * @param cacheUpdater
 	 *            the search cache updater
+	 * @param trace
+	 *            the trace of the search phases
 	 * @return the local {@link Row}s satisfying the search
 	 */
 	private UnfilteredPartitionIterator read(Query query, Sort sort, ScoreDoc after, ReadCommand command,
-			ReadOrderGroup orderGroup, SearchCacheUpdater cacheUpdater) {
+			ReadOrderGroup orderGroup, SearchCacheUpdater cacheUpdater, QueryTrace trace) {
 		int limit = command.limits().count();
-		LuceneDocumentIterator documents = lucene.search(query, sort, after, limit, fieldsToLoad());
-		return new FhirIndexSearcher(this, command, table, orderGroup, documents, cacheUpdater);
+		if (isConsistent(query)) {
+			long start = System.nanoTime();
+			waitForWrites();
+			trace.add(Phase.CONSISTENCY_WAIT, start);
+		}
+		LuceneDocumentIterator documents = lucene.search(query, sort, after, limit, fieldsToLoad(), trace);
+		return new FhirIndexSearcher(this, command, table, orderGroup, documents, cacheUpdater, trace);
+	}
+
+	/**
+	 * Returns if the specified search must see all the writes acknowledged
+	 * before it started, as requested by the {@code _consistent} hint or the
+	 * index options.
+	 */
+	private boolean isConsistent(Query query) {
+		return SearchHints.of(query).get(SearchHints.CONSISTENT).map(Boolean::parseBoolean)
+				.orElse(indexOptions.consistentReads);
+	}
+
+	/**
+	 * Waits until the Lucene searchers see all the writes acknowledged before
+	 * calling this method, or until the consistent reads timeout elapses. Only
+	 * the indexes with pending writes are refreshed. With asynchronous
+	 * indexing, the acknowledged writes may still be queued, so the queue is
+	 * drained first. The timeout covers both the queue drain and the refresh.
+	 */
+	private void waitForWrites() {
+		TimeCounter time = TimeCounter.create().start();
+		long timeout = indexOptions.consistentReadsTimeoutMs;
+		long deadline = System.currentTimeMillis() + timeout;
+		if (!queue.await(timeout)
+				|| !lucene.waitForWrites(Math.max(0, deadline - System.currentTimeMillis()))) {
+			consistentReadTimeouts.incrementAndGet();
+			logger.warn("Consistent search in {} timed out after {} ms, results may not include the last writes",
+					name, indexOptions.consistentReadsTimeoutMs);
+		}
+		logger.debug("Waited for writes in {} in {}", name, time.stop());
+	}
+
+	/**
+	 * Returns the number of consistent searches that have timed out waiting
+	 * for the previous writes.
+	 *
+	 * @return the number of timed out consistent searches
+	 */
+	public long getConsistentReadTimeouts() {
+		return consistentReadTimeouts.get();
 	}
 
 	private Set<String> fieldsToLoad() {
@@ -456,8 +1150,7 @@ public class FhirIndexService {
 	 */
 	private Query query(String expression, ReadCommand command) {
 		try {
-			QueryParser queryParser = new QueryParser("query", this.indexOptions.search.defaultAnalyzer);
-			queryParser.setDateResolution(Resolution.SECOND);
+			FhirQueryParser queryParser = new FhirQueryParser(this.indexOptions.search.defaultAnalyzer, fieldTypes);
 			Query searchQuery = queryParser.parse(expression);
 			
 			return searchQuery;
@@ -487,22 +1180,27 @@ public class FhirIndexService {
 	 * @return the Lucene {@link Document} to be inserted in the index.
 	 */
 	public Optional<Document> document(DecoratedKey key, Row row) {
+		return document(key, row, new IndexingTrace());
+	}
+
+	private Optional<Document> document(DecoratedKey key, Row row, IndexingTrace trace) {
 		Document document = new Document();
 
 		Cell cell = row.getCell(this.indexOptions.targetColumn);
-		ByteBuffer value = cell.value();
-		if (cell != null && !ByteBufferUtils.isEmpty(value)) {
-			String json = ByteBufferUtils.toString(value, UTF8Type.instance);
-			fhirMapper.addFields(document, json);
+		if (cell != null && !ByteBufferUtils.isEmpty(cell.value())) {
+			String json = ByteBufferUtils.toString(cell.value(), UTF8Type.instance);
+			fhirMapper.addFields(document, json, trace);
 		}
 
 		if (document.getFields().isEmpty()) {
 			return Optional.empty();
 		} else {
+			long start = System.nanoTime();
 			Clustering clustering = row.clustering();
 			tokenMapper.addFields(document, key);
 			partitionMapper.addFields(document, key);
 			keyMapper.addFields(document, key, clustering);
+			trace.add(IndexingTrace.Phase.KEY_MAPPING, start);
 			return Optional.of(document);
 		}
 	}
@@ -541,7 +1239,7 @@ public class FhirIndexService {
 	 * @return a Lucene {@link Term} representing {@code key}
 	 */
 	private Term term(DecoratedKey key) {
-		return null;// partitionMapper.term(key);
+		return partitionMapper.term(key);
 	}
 
 	/**
@@ -3,7 +3,10 @@ package io.puntanegra.fhir.index.config;
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.cassandra.config.CFMetaData;
 import org.apache.cassandra.config.ColumnDefinition;
@@ -12,7 +15,10 @@ import org.apache.cassandra.schema.IndexMetadata;
 import org.apache.cassandra.utils.ByteBufferUtil;
 
 import io.puntanegra.fhir.index.FhirIndexException;
+import io.puntanegra.fhir.index.lucene.DirectoryType;
+import io.puntanegra.fhir.index.lucene.PreloadMMapDirectory;
 import io.puntanegra.fhir.index.util.JsonSerializer;
+import io.puntanegra.fhir.index.util.TimeWindows;
 
 /**
  * FHIR Index configuration options parser.
@@ -25,6 +31,12 @@ public class IndexOptions {
 	public static final String REFRESH_SECONDS_OPTION = "refresh_seconds";
 	public static final double DEFAULT_REFRESH_SECONDS = 60;
 
+	public static final String MIN_REFRESH_SECONDS_OPTION = "min_refresh_seconds";
+	public static final double DEFAULT_MIN_REFRESH_SECONDS = 0.1;
+
+	public static final String COMMIT_INTERVAL_SECONDS_OPTION = "commit_interval_seconds";
+	public static final double DEFAULT_COMMIT_INTERVAL_SECONDS = 0;
+
 	public static final String RAM_BUFFER_MB_OPTION = "ram_buffer_mb";
 	public static final int DEFAULT_RAM_BUFFER_MB = 64;
 
@@ -34,15 +46,79 @@ public class IndexOptions {
 	public static final String MAX_CACHED_MB_OPTION = "max_cached_mb";
 	public static final int DEFAULT_MAX_CACHED_MB = 30;
 
+	public static final String DIRECTORY_TYPE_OPTION = "directory_type";
+	public static final DirectoryType DEFAULT_DIRECTORY_TYPE = DirectoryType.NRT_CACHING;
+
+	public static final String MMAP_PRELOAD_OPTION = "mmap_preload";
+	public static final Set<String> DEFAULT_MMAP_PRELOAD = Collections.emptySet();
+
+	public static final String SEGMENTS_PER_TIER_OPTION = "segments_per_tier";
+	public static final double DEFAULT_SEGMENTS_PER_TIER = 10;
+
+	public static final String MAX_MERGED_SEGMENT_MB_OPTION = "max_merged_segment_mb";
+	public static final int DEFAULT_MAX_MERGED_SEGMENT_MB = 5120;
+
+	public static final String COMPOUND_FILE_RATIO_OPTION = "compound_file_ratio";
+	public static final double DEFAULT_COMPOUND_FILE_RATIO = 0.1;
+
+	public static final String MERGE_THREADS_OPTION = "merge_threads";
+	public static final int DEFAULT_MERGE_THREADS = 0;
+
+	public static final String MERGE_THROUGHPUT_MB_PER_SEC_OPTION = "merge_throughput_mb_per_sec";
+	public static final String COMPACTION_THROUGHPUT = "compaction";
+	public static final Double DEFAULT_MERGE_THROUGHPUT_MB_PER_SEC = 0.0;
+
+	public static final String EXPUNGE_DELETES_RATIO_OPTION = "expunge_deletes_ratio";
+	public static final double DEFAULT_EXPUNGE_DELETES_RATIO = 0;
+
+	public static final String EXPUNGE_INTERVAL_SECONDS_OPTION = "expunge_interval_seconds";
+	public static final int DEFAULT_EXPUNGE_INTERVAL_SECONDS = 600;
+
+	public static final String EXPUNGE_WINDOWS_OPTION = "expunge_windows";
+	public static final TimeWindows DEFAULT_EXPUNGE_WINDOWS = null;
+
+	public static final String SORT_BY_TOKEN_OPTION = "sort_by_token";
+	public static final boolean DEFAULT_SORT_BY_TOKEN = false;
+
 	public static final String INDEXING_THREADS_OPTION = "indexing_threads";
 	public static final int DEFAULT_INDEXING_THREADS = 0;
 
 	public static final String INDEXING_QUEUES_SIZE_OPTION = "indexing_queues_size";
 	public static final int DEFAULT_INDEXING_QUEUES_SIZE = 50;
 
+	public static final String INDEXING_JOURNAL_MB_OPTION = "indexing_journal_mb";
+	public static final int DEFAULT_INDEXING_JOURNAL_MB = 0;
+
+	public static final String INDEXING_REBALANCE_OPTION = "indexing_rebalance";
+	public static final boolean DEFAULT_INDEXING_REBALANCE = false;
+
+	public static final String VIRTUAL_THREADS_OPTION = "virtual_threads";
+	public static final boolean DEFAULT_VIRTUAL_THREADS = false;
+
 	public static final String SEARCH_CACHE_SIZE_OPTION = "search_cache_size";
 	public static final int DEFAULT_SEARCH_CACHE_SIZE = 16;
 
+	public static final String QUERY_CACHE_MB_OPTION = "query_cache_mb";
+	public static final int DEFAULT_QUERY_CACHE_MB = 32;
+
+	public static final String PARTITION_BY_RESOURCE_TYPE_OPTION = "partition_by_resource_type";
+	public static final boolean DEFAULT_PARTITION_BY_RESOURCE_TYPE = false;
+
+	public static final String SHARDS_OPTION = "shards";
+	public static final int DEFAULT_SHARDS = 1;
+
+	public static final String SEARCH_THREADS_OPTION = "search_threads";
+	public static final int DEFAULT_SEARCH_THREADS = 0;
+
+	public static final String CONSISTENT_READS_OPTION = "consistent_reads";
+	public static final boolean DEFAULT_CONSISTENT_READS = false;
+
+	public static final String CONSISTENT_READS_TIMEOUT_MS_OPTION = "consistent_reads_timeout_ms";
+	public static final int DEFAULT_CONSISTENT_READS_TIMEOUT_MS = 5000;
+
+	public static final String SLOW_QUERY_MS_OPTION = "slow_query_ms";
+	public static final int DEFAULT_SLOW_QUERY_MS = 0;
+
 	public static final String DIRECTORY_PATH_OPTION = "directory_path";
 	public static final String INDEXES_DIR_NAME = "lucene";
 
@@ -55,11 +131,27 @@ public class IndexOptions {
 	/** The path of the directory where the index files will be stored */
 	public final Path path;
 
-	public final String resourceTypeColumn;
+	/**
+	 * ColumnDefinition of the column storing the FHIR Resource type, maybe
+	 * {@code null}
+	 */
+	public final ColumnDefinition resourceTypeColumn;
 
 	/** The Lucene index searcher refresh frequency, in seconds */
 	public final double refreshSeconds;
 
+	/**
+	 * The min time between Lucene index searcher refreshes when a search is
+	 * waiting for recent writes, in seconds
+	 */
+	public final double minRefreshSeconds;
+
+	/**
+	 * The time between Lucene commits, in seconds. Zero means commit on each
+	 * memtable flush
+	 */
+	public final double commitIntervalSeconds;
+
 	/** The Lucene's max RAM buffer size, in MB */
 	public final int ramBufferMB;
 
@@ -69,15 +161,109 @@ public class IndexOptions {
 	/** The Lucene's max cache size, in MB */
 	public final int maxCachedMB;
 
+	/** The type of the Lucene directory */
+	public final DirectoryType directoryType;
+
+	/**
+	 * The extensions of the Lucene files preloaded into the page cache by the
+	 * memory mapped directory
+	 */
+	public final Set<String> mmapPreload;
+
+	/** The number of segments of similar size allowed by the Lucene merge policy */
+	public final double segmentsPerTier;
+
+	/** The max size of the segments produced by normal merges, in MB */
+	public final int maxMergedSegmentMB;
+
+	/**
+	 * The max size of a merged segment using a compound file, as a ratio of
+	 * the total index size
+	 */
+	public final double compoundFileRatio;
+
+	/** The max number of merge threads, zero means autodetect them */
+	public final int mergeThreads;
+
+	/**
+	 * The max merge write rate, in MB per second. Zero, the default, means
+	 * Lucene's adaptive throttling, and {@code null} means sharing the
+	 * Cassandra compaction throughput
+	 */
+	public final Double mergeThroughputMBPerSec;
+
+	/**
+	 * The ratio of deleted documents of a segment above which its deleted
+	 * documents are expunged in background. Zero means no expunge
+	 */
+	public final double expungeDeletesRatio;
+
+	/** The time between checks of the segments deleted documents, in seconds */
+	public final int expungeIntervalSeconds;
+
+	/**
+	 * The daily time windows when deleted documents can be expunged,
+	 * {@code null} means any time
+	 */
+	public final TimeWindows expungeWindows;
+
+	/**
+	 * If merged segments are sorted by partition token, so unscored and token
+	 * range searches return their hits in token order
+	 */
+	public final boolean sortByToken;
+
 	/** The number of asynchronous indexing threads */
 	public final int indexingThreads;
 
 	/** The size of the asynchronous indexing queues */
 	public final int indexingQueuesSize;
 
+	/**
+	 * The size of the asynchronous indexing journal segments, in MB. Zero
+	 * means no journal
+	 */
+	public final int indexingJournalMB;
+
+	/**
+	 * If the partitions of a busy asynchronous indexing thread can be moved to
+	 * a less loaded one
+	 */
+	public final boolean indexingRebalance;
+
+	/**
+	 * If asynchronous indexing and partition reads run in virtual threads,
+	 * when supported by the JDK
+	 */
+	public final boolean virtualThreads;
+
 	/** The max size of the search cache */
 	public final int searchCacheSize;
 
+	/** The max memory used by the Lucene query cache, in MB */
+	public final int queryCacheMB;
+
+	/** If each resource type is stored in its own Lucene index */
+	public final boolean partitionByResourceType;
+
+	/** The number of token shards of each Lucene index */
+	public final int shards;
+
+	/** The number of threads searching index segments concurrently */
+	public final int searchThreads;
+
+	/** If searches must see all the writes acknowledged before them */
+	public final boolean consistentReads;
+
+	/** The max time a consistent search waits for previous writes, in ms */
+	public final int consistentReadsTimeoutMs;
+
+	/**
+	 * The min duration of a search to be logged with its phases, in ms. Zero
+	 * means no slow query log
+	 */
+	public final int slowQueryMs;
+
 	/** ColumnDefinition of the target column associated with the index **/
 	public final ColumnDefinition targetColumn;
 
@@ -93,13 +279,36 @@ public class IndexOptions {
 	public IndexOptions(CFMetaData tableMetadata, IndexMetadata indexMetadata) {
 		Map<String, String> options = indexMetadata.options;
 		refreshSeconds = parseRefresh(options);
-		resourceTypeColumn = parseResourceTypeColumn(options);
+		minRefreshSeconds = parseMinRefresh(options);
+		commitIntervalSeconds = parseCommitInterval(options);
+		resourceTypeColumn = parseResourceTypeColumn(options, tableMetadata);
 		ramBufferMB = parseRamBufferMB(options);
 		maxMergeMB = parseMaxMergeMB(options);
 		maxCachedMB = parseMaxCachedMB(options);
+		directoryType = parseDirectoryType(options);
+		mmapPreload = parseMmapPreload(options);
+		segmentsPerTier = parseSegmentsPerTier(options);
+		maxMergedSegmentMB = parseMaxMergedSegmentMB(options);
+		compoundFileRatio = parseCompoundFileRatio(options);
+		mergeThreads = parseMergeThreads(options);
+		mergeThroughputMBPerSec = parseMergeThroughput(options);
+		expungeDeletesRatio = parseExpungeDeletesRatio(options);
+		expungeIntervalSeconds = parseExpungeIntervalSeconds(options);
+		expungeWindows = parseExpungeWindows(options);
+		sortByToken = parseSortByToken(options);
 		indexingThreads = parseIndexingThreads(options);
 		indexingQueuesSize = parseIndexingQueuesSize(options);
+		indexingJournalMB = parseIndexingJournalMB(options);
+		indexingRebalance = parseIndexingRebalance(options);
+		virtualThreads = parseVirtualThreads(options);
 		searchCacheSize = parseSearchCacheSize(options);
+		queryCacheMB = parseQueryCacheMB(options);
+		partitionByResourceType = parsePartitionByResourceType(options);
+		shards = parseShards(options);
+		searchThreads = parseSearchThreads(options);
+		consistentReads = parseConsistentReads(options);
+		consistentReadsTimeoutMs = parseConsistentReadsTimeoutMs(options);
+		slowQueryMs = parseSlowQueryMs(options);
 		path = parsePath(options, tableMetadata, indexMetadata);
 		search = parseSearchOptions(options);
 
@@ -108,9 +317,6 @@ public class IndexOptions {
 
 	}
 
-	private String parseResourceTypeColumn(Map<String, String> options) {
-		return options.get(RESOURCE_TYPE_COLUMN);
-	}
 
 	/**
 	 * Validates the specified index options.
@@ -122,14 +328,38 @@ public class IndexOptions {
 	 */
 	public static void validateOptions(Map<String, String> options, CFMetaData metadata) {
 		parseRefresh(options);
+		parseMinRefresh(options);
+		parseCommitInterval(options);
 		parseRamBufferMB(options);
 		parseMaxMergeMB(options);
 		parseMaxCachedMB(options);
+		parseDirectoryType(options);
+		parseMmapPreload(options);
+		parseSegmentsPerTier(options);
+		parseMaxMergedSegmentMB(options);
+		parseCompoundFileRatio(options);
+		parseMergeThreads(options);
+		parseMergeThroughput(options);
+		parseExpungeDeletesRatio(options);
+		parseExpungeIntervalSeconds(options);
+		parseExpungeWindows(options);
+		parseSortByToken(options);
 		parseIndexingThreads(options);
 		parseIndexingQueuesSize(options);
+		parseIndexingJournalMB(options);
+		parseIndexingRebalance(options);
+		parseVirtualThreads(options);
 		parseSearchCacheSize(options);
+		parseQueryCacheMB(options);
+		parsePartitionByResourceType(options);
+		parseShards(options);
+		parseSearchThreads(options);
+		parseConsistentReads(options);
+		parseConsistentReadsTimeoutMs(options);
+		parseSlowQueryMs(options);
 		parseSearchOptions(options);
 		parsePath(options, metadata, null);
+		parseResourceTypeColumn(options, metadata);
 	}
 
 	private static double parseRefresh(Map<String, String> options) {
@@ -150,6 +380,42 @@ public class IndexOptions {
 		}
 	}
 
+	private static double parseMinRefresh(Map<String, String> options) {
+		String minRefreshOption = options.get(MIN_REFRESH_SECONDS_OPTION);
+		if (minRefreshOption != null) {
+			double minRefreshSeconds;
+			try {
+				minRefreshSeconds = Double.parseDouble(minRefreshOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive double", MIN_REFRESH_SECONDS_OPTION);
+			}
+			if (minRefreshSeconds < 0) {
+				throw new FhirIndexException("'%s' must be positive", MIN_REFRESH_SECONDS_OPTION);
+			}
+			return minRefreshSeconds;
+		} else {
+			return DEFAULT_MIN_REFRESH_SECONDS;
+		}
+	}
+
+	private static double parseCommitInterval(Map<String, String> options) {
+		String commitIntervalOption = options.get(COMMIT_INTERVAL_SECONDS_OPTION);
+		if (commitIntervalOption != null) {
+			double commitIntervalSeconds;
+			try {
+				commitIntervalSeconds = Double.parseDouble(commitIntervalOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive double", COMMIT_INTERVAL_SECONDS_OPTION);
+			}
+			if (commitIntervalSeconds < 0) {
+				throw new FhirIndexException("'%s' must be positive", COMMIT_INTERVAL_SECONDS_OPTION);
+			}
+			return commitIntervalSeconds;
+		} else {
+			return DEFAULT_COMMIT_INTERVAL_SECONDS;
+		}
+	}
+
 	private static int parseRamBufferMB(Map<String, String> options) {
 		String ramBufferSizeOption = options.get(RAM_BUFFER_MB_OPTION);
 		if (ramBufferSizeOption != null) {
@@ -204,6 +470,202 @@ public class IndexOptions {
 		}
 	}
 
+	private static DirectoryType parseDirectoryType(Map<String, String> options) {
+		String directoryTypeOption = options.get(DIRECTORY_TYPE_OPTION);
+		if (directoryTypeOption != null) {
+			DirectoryType directoryType = DirectoryType.fromName(directoryTypeOption.trim().toLowerCase());
+			if (directoryType == null) {
+				throw new FhirIndexException("'%s' must be one of mmap, nio or nrt_caching", DIRECTORY_TYPE_OPTION);
+			}
+			return directoryType;
+		} else {
+			return DEFAULT_DIRECTORY_TYPE;
+		}
+	}
+
+	private static Set<String> parseMmapPreload(Map<String, String> options) {
+		String mmapPreloadOption = options.get(MMAP_PRELOAD_OPTION);
+		if (mmapPreloadOption != null && !mmapPreloadOption.trim().isEmpty()) {
+			if (parseDirectoryType(options) != DirectoryType.MMAP) {
+				throw new FhirIndexException("'%s' requires '%s' mmap", MMAP_PRELOAD_OPTION, DIRECTORY_TYPE_OPTION);
+			}
+			Set<String> extensions = new LinkedHashSet<>();
+			for (String extension : mmapPreloadOption.split(",")) {
+				extension = extension.trim();
+				if (extension.startsWith(".")) {
+					extension = extension.substring(1);
+				}
+				if (extension.isEmpty()) {
+					throw new FhirIndexException("'%s' must be a comma separated list of file extensions or %s",
+							MMAP_PRELOAD_OPTION, PreloadMMapDirectory.ALL_EXTENSIONS);
+				}
+				extensions.add(extension);
+			}
+			return Collections.unmodifiableSet(extensions);
+		} else {
+			return DEFAULT_MMAP_PRELOAD;
+		}
+	}
+
+	private static double parseSegmentsPerTier(Map<String, String> options) {
+		String segmentsPerTierOption = options.get(SEGMENTS_PER_TIER_OPTION);
+		if (segmentsPerTierOption != null) {
+			double segmentsPerTier;
+			try {
+				segmentsPerTier = Double.parseDouble(segmentsPerTierOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a double greater than or equal to 2",
+						SEGMENTS_PER_TIER_OPTION);
+			}
+			if (segmentsPerTier < 2) {
+				throw new FhirIndexException("'%s' must be greater than or equal to 2", SEGMENTS_PER_TIER_OPTION);
+			}
+			return segmentsPerTier;
+		} else {
+			return DEFAULT_SEGMENTS_PER_TIER;
+		}
+	}
+
+	private static int parseMaxMergedSegmentMB(Map<String, String> options) {
+		String maxMergedSegmentMBOption = options.get(MAX_MERGED_SEGMENT_MB_OPTION);
+		if (maxMergedSegmentMBOption != null) {
+			int maxMergedSegmentMB;
+			try {
+				maxMergedSegmentMB = Integer.parseInt(maxMergedSegmentMBOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a strictly positive integer", MAX_MERGED_SEGMENT_MB_OPTION);
+			}
+			if (maxMergedSegmentMB <= 0) {
+				throw new FhirIndexException("'%s' must be strictly positive", MAX_MERGED_SEGMENT_MB_OPTION);
+			}
+			return maxMergedSegmentMB;
+		} else {
+			return DEFAULT_MAX_MERGED_SEGMENT_MB;
+		}
+	}
+
+	private static double parseCompoundFileRatio(Map<String, String> options) {
+		String compoundFileRatioOption = options.get(COMPOUND_FILE_RATIO_OPTION);
+		if (compoundFileRatioOption != null) {
+			double compoundFileRatio;
+			try {
+				compoundFileRatio = Double.parseDouble(compoundFileRatioOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a double between 0 and 1", COMPOUND_FILE_RATIO_OPTION);
+			}
+			if (compoundFileRatio < 0 || compoundFileRatio > 1) {
+				throw new FhirIndexException("'%s' must be between 0 and 1", COMPOUND_FILE_RATIO_OPTION);
+			}
+			return compoundFileRatio;
+		} else {
+			return DEFAULT_COMPOUND_FILE_RATIO;
+		}
+	}
+
+	private static int parseMergeThreads(Map<String, String> options) {
+		String mergeThreadsOption = options.get(MERGE_THREADS_OPTION);
+		if (mergeThreadsOption != null) {
+			int mergeThreads;
+			try {
+				mergeThreads = Integer.parseInt(mergeThreadsOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive integer", MERGE_THREADS_OPTION);
+			}
+			if (mergeThreads < 0) {
+				throw new FhirIndexException("'%s' must be positive", MERGE_THREADS_OPTION);
+			}
+			return mergeThreads;
+		} else {
+			return DEFAULT_MERGE_THREADS;
+		}
+	}
+
+	private static Double parseMergeThroughput(Map<String, String> options) {
+		String mergeThroughputOption = options.get(MERGE_THROUGHPUT_MB_PER_SEC_OPTION);
+		if (mergeThroughputOption != null && COMPACTION_THROUGHPUT.equals(mergeThroughputOption.trim())) {
+			return null;
+		} else if (mergeThroughputOption != null) {
+			double mergeThroughput;
+			try {
+				mergeThroughput = Double.parseDouble(mergeThroughputOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive double or '%s'",
+						MERGE_THROUGHPUT_MB_PER_SEC_OPTION, COMPACTION_THROUGHPUT);
+			}
+			if (mergeThroughput < 0) {
+				throw new FhirIndexException("'%s' must be positive", MERGE_THROUGHPUT_MB_PER_SEC_OPTION);
+			}
+			return mergeThroughput;
+		} else {
+			return DEFAULT_MERGE_THROUGHPUT_MB_PER_SEC;
+		}
+	}
+
+	private static double parseExpungeDeletesRatio(Map<String, String> options) {
+		String expungeDeletesRatioOption = options.get(EXPUNGE_DELETES_RATIO_OPTION);
+		if (expungeDeletesRatioOption != null) {
+			double expungeDeletesRatio;
+			try {
+				expungeDeletesRatio = Double.parseDouble(expungeDeletesRatioOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a double between 0 and 1", EXPUNGE_DELETES_RATIO_OPTION);
+			}
+			if (expungeDeletesRatio < 0 || expungeDeletesRatio >= 1) {
+				throw new FhirIndexException("'%s' must be between 0 and 1, excluding 1", EXPUNGE_DELETES_RATIO_OPTION);
+			}
+			return expungeDeletesRatio;
+		} else {
+			return DEFAULT_EXPUNGE_DELETES_RATIO;
+		}
+	}
+
+	private static int parseExpungeIntervalSeconds(Map<String, String> options) {
+		String expungeIntervalOption = options.get(EXPUNGE_INTERVAL_SECONDS_OPTION);
+		if (expungeIntervalOption != null) {
+			int expungeInterval;
+			try {
+				expungeInterval = Integer.parseInt(expungeIntervalOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a strictly positive integer",
+						EXPUNGE_INTERVAL_SECONDS_OPTION);
+			}
+			if (expungeInterval <= 0) {
+				throw new FhirIndexException("'%s' must be strictly positive", EXPUNGE_INTERVAL_SECONDS_OPTION);
+			}
+			return expungeInterval;
+		} else {
+			return DEFAULT_EXPUNGE_INTERVAL_SECONDS;
+		}
+	}
+
+	private static TimeWindows parseExpungeWindows(Map<String, String> options) {
+		String expungeWindowsOption = options.get(EXPUNGE_WINDOWS_OPTION);
+		if (expungeWindowsOption != null && !expungeWindowsOption.trim().isEmpty()) {
+			try {
+				return TimeWindows.parse(expungeWindowsOption);
+			} catch (IllegalArgumentException e) {
+				throw new FhirIndexException("'%s' must be a comma separated list of HH:mm-HH:mm windows",
+						EXPUNGE_WINDOWS_OPTION);
+			}
+		} else {
+			return DEFAULT_EXPUNGE_WINDOWS;
+		}
+	}
+
+	private static boolean parseSortByToken(Map<String, String> options) {
+		String sortByTokenOption = options.get(SORT_BY_TOKEN_OPTION);
+		if (sortByTokenOption != null) {
+			if ("true".equalsIgnoreCase(sortByTokenOption)) {
+				return true;
+			} else if ("false".equalsIgnoreCase(sortByTokenOption)) {
+				return false;
+			}
+			throw new FhirIndexException("'%s' must be a boolean", SORT_BY_TOKEN_OPTION);
+		} else {
+			return DEFAULT_SORT_BY_TOKEN;
+		}
+	}
+
 	private static int parseIndexingThreads(Map<String, String> options) {
 		String indexPoolNumQueuesOption = options.get(INDEXING_THREADS_OPTION);
 		if (indexPoolNumQueuesOption != null) {
@@ -235,6 +697,52 @@ public class IndexOptions {
 		}
 	}
 
+	private static int parseIndexingJournalMB(Map<String, String> options) {
+		String indexingJournalOption = options.get(INDEXING_JOURNAL_MB_OPTION);
+		if (indexingJournalOption != null) {
+			int indexingJournalMB;
+			try {
+				indexingJournalMB = Integer.parseInt(indexingJournalOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive integer", INDEXING_JOURNAL_MB_OPTION);
+			}
+			if (indexingJournalMB < 0 || indexingJournalMB > 1024) {
+				throw new FhirIndexException("'%s' must be between 0 and 1024", INDEXING_JOURNAL_MB_OPTION);
+			}
+			return indexingJournalMB;
+		} else {
+			return DEFAULT_INDEXING_JOURNAL_MB;
+		}
+	}
+
+	private static boolean parseIndexingRebalance(Map<String, String> options) {
+		String indexingRebalanceOption = options.get(INDEXING_REBALANCE_OPTION);
+		if (indexingRebalanceOption != null) {
+			if ("true".equalsIgnoreCase(indexingRebalanceOption)) {
+				return true;
+			} else if ("false".equalsIgnoreCase(indexingRebalanceOption)) {
+				return false;
+			}
+			throw new FhirIndexException("'%s' must be a boolean", INDEXING_REBALANCE_OPTION);
+		} else {
+			return DEFAULT_INDEXING_REBALANCE;
+		}
+	}
+
+	private static boolean parseVirtualThreads(Map<String, String> options) {
+		String virtualThreadsOption = options.get(VIRTUAL_THREADS_OPTION);
+		if (virtualThreadsOption != null) {
+			if ("true".equalsIgnoreCase(virtualThreadsOption)) {
+				return true;
+			} else if ("false".equalsIgnoreCase(virtualThreadsOption)) {
+				return false;
+			}
+			throw new FhirIndexException("'%s' must be a boolean", VIRTUAL_THREADS_OPTION);
+		} else {
+			return DEFAULT_VIRTUAL_THREADS;
+		}
+	}
+
 	private static int parseSearchCacheSize(Map<String, String> options) {
 		String searchCacheSizeOption = options.get(SEARCH_CACHE_SIZE_OPTION);
 		if (searchCacheSizeOption != null) {
@@ -253,6 +761,140 @@ public class IndexOptions {
 		}
 	}
 
+	private static int parseQueryCacheMB(Map<String, String> options) {
+		String queryCacheMBOption = options.get(QUERY_CACHE_MB_OPTION);
+		if (queryCacheMBOption != null) {
+			int queryCacheMB;
+			try {
+				queryCacheMB = Integer.parseInt(queryCacheMBOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive integer", QUERY_CACHE_MB_OPTION);
+			}
+			if (queryCacheMB < 0) {
+				throw new FhirIndexException("'%s' must be positive", QUERY_CACHE_MB_OPTION);
+			}
+			return queryCacheMB;
+		} else {
+			return DEFAULT_QUERY_CACHE_MB;
+		}
+	}
+
+	private static boolean parsePartitionByResourceType(Map<String, String> options) {
+		String partitionOption = options.get(PARTITION_BY_RESOURCE_TYPE_OPTION);
+		if (partitionOption != null) {
+			if ("true".equalsIgnoreCase(partitionOption)) {
+				return true;
+			} else if ("false".equalsIgnoreCase(partitionOption)) {
+				return false;
+			}
+			throw new FhirIndexException("'%s' must be a boolean", PARTITION_BY_RESOURCE_TYPE_OPTION);
+		} else {
+			return DEFAULT_PARTITION_BY_RESOURCE_TYPE;
+		}
+	}
+
+	private static int parseShards(Map<String, String> options) {
+		String shardsOption = options.get(SHARDS_OPTION);
+		if (shardsOption != null) {
+			int shards;
+			try {
+				shards = Integer.parseInt(shardsOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a strictly positive integer", SHARDS_OPTION);
+			}
+			if (shards <= 0) {
+				throw new FhirIndexException("'%s' must be strictly positive", SHARDS_OPTION);
+			}
+			return shards;
+		} else {
+			return DEFAULT_SHARDS;
+		}
+	}
+
+	private static int parseSearchThreads(Map<String, String> options) {
+		String searchThreadsOption = options.get(SEARCH_THREADS_OPTION);
+		if (searchThreadsOption != null) {
+			int searchThreads;
+			try {
+				searchThreads = Integer.parseInt(searchThreadsOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive integer", SEARCH_THREADS_OPTION);
+			}
+			if (searchThreads < 0) {
+				throw new FhirIndexException("'%s' must be positive", SEARCH_THREADS_OPTION);
+			}
+			return searchThreads;
+		} else {
+			return DEFAULT_SEARCH_THREADS;
+		}
+	}
+
+	private static boolean parseConsistentReads(Map<String, String> options) {
+		String consistentReadsOption = options.get(CONSISTENT_READS_OPTION);
+		if (consistentReadsOption != null) {
+			if ("true".equalsIgnoreCase(consistentReadsOption)) {
+				return true;
+			} else if ("false".equalsIgnoreCase(consistentReadsOption)) {
+				return false;
+			}
+			throw new FhirIndexException("'%s' must be a boolean", CONSISTENT_READS_OPTION);
+		} else {
+			return DEFAULT_CONSISTENT_READS;
+		}
+	}
+
+	private static int parseConsistentReadsTimeoutMs(Map<String, String> options) {
+		String timeoutOption = options.get(CONSISTENT_READS_TIMEOUT_MS_OPTION);
+		if (timeoutOption != null) {
+			int timeout;
+			try {
+				timeout = Integer.parseInt(timeoutOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a strictly positive integer",
+						CONSISTENT_READS_TIMEOUT_MS_OPTION);
+			}
+			if (timeout <= 0) {
+				throw new FhirIndexException("'%s' must be strictly positive", CONSISTENT_READS_TIMEOUT_MS_OPTION);
+			}
+			return timeout;
+		} else {
+			return DEFAULT_CONSISTENT_READS_TIMEOUT_MS;
+		}
+	}
+
+	private static int parseSlowQueryMs(Map<String, String> options) {
+		String slowQueryOption = options.get(SLOW_QUERY_MS_OPTION);
+		if (slowQueryOption != null) {
+			int slowQueryMs;
+			try {
+				slowQueryMs = Integer.parseInt(slowQueryOption);
+			} catch (NumberFormatException e) {
+				throw new FhirIndexException("'%s' must be a positive integer", SLOW_QUERY_MS_OPTION);
+			}
+			if (slowQueryMs < 0) {
+				throw new FhirIndexException("'%s' must be positive", SLOW_QUERY_MS_OPTION);
+			}
+			return slowQueryMs;
+		} else {
+			return DEFAULT_SLOW_QUERY_MS;
+		}
+	}
+
+	private static ColumnDefinition parseResourceTypeColumn(Map<String, String> options, CFMetaData metadata) {
+		String columnName = options.get(RESOURCE_TYPE_COLUMN);
+		if (columnName != null) {
+			ColumnDefinition column = metadata.getColumnDefinition(ByteBufferUtil.bytes(columnName));
+			if (column == null) {
+				throw new FhirIndexException("'%s' column '%s' doesn't exist", RESOURCE_TYPE_COLUMN, columnName);
+			}
+			if (!column.isRegular()) {
+				throw new FhirIndexException("'%s' must be a regular column", RESOURCE_TYPE_COLUMN);
+			}
+			return column;
+		}
+		return null;
+	}
+
 	private static Path parsePath(Map<String, String> options, CFMetaData tableMetadata, IndexMetadata indexMetadata) {
 		String pathOption = options.get(DIRECTORY_PATH_OPTION);
 		if (pathOption != null) {
@@ -289,18 +931,64 @@ public class IndexOptions {
 		builder.append(resourceTypeColumn);
 		builder.append(", refreshSeconds=");
 		builder.append(refreshSeconds);
+		builder.append(", minRefreshSeconds=");
+		builder.append(minRefreshSeconds);
+		builder.append(", commitIntervalSeconds=");
+		builder.append(commitIntervalSeconds);
 		builder.append(", ramBufferMB=");
 		builder.append(ramBufferMB);
 		builder.append(", maxMergeMB=");
 		builder.append(maxMergeMB);
 		builder.append(", maxCachedMB=");
 		builder.append(maxCachedMB);
+		builder.append(", directoryType=");
+		builder.append(directoryType.getName());
+		builder.append(", mmapPreload=");
+		builder.append(mmapPreload);
+		builder.append(", segmentsPerTier=");
+		builder.append(segmentsPerTier);
+		builder.append(", maxMergedSegmentMB=");
+		builder.append(maxMergedSegmentMB);
+		builder.append(", compoundFileRatio=");
+		builder.append(compoundFileRatio);
+		builder.append(", mergeThreads=");
+		builder.append(mergeThreads);
+		builder.append(", mergeThroughputMBPerSec=");
+		builder.append(mergeThroughputMBPerSec == null ? COMPACTION_THROUGHPUT : mergeThroughputMBPerSec);
+		builder.append(", expungeDeletesRatio=");
+		builder.append(expungeDeletesRatio);
+		builder.append(", expungeIntervalSeconds=");
+		builder.append(expungeIntervalSeconds);
+		builder.append(", expungeWindows=");
+		builder.append(expungeWindows);
+		builder.append(", sortByToken=");
+		builder.append(sortByToken);
 		builder.append(", indexingThreads=");
 		builder.append(indexingThreads);
 		builder.append(", indexingQueuesSize=");
 		builder.append(indexingQueuesSize);
+		builder.append(", indexingJournalMB=");
+		builder.append(indexingJournalMB);
+		builder.append(", indexingRebalance=");
+		builder.append(indexingRebalance);
+		builder.append(", virtualThreads=");
+		builder.append(virtualThreads);
 		builder.append(", searchCacheSize=");
 		builder.append(searchCacheSize);
+		builder.append(", queryCacheMB=");
+		builder.append(queryCacheMB);
+		builder.append(", partitionByResourceType=");
+		builder.append(partitionByResourceType);
+		builder.append(", shards=");
+		builder.append(shards);
+		builder.append(", searchThreads=");
+		builder.append(searchThreads);
+		builder.append(", consistentReads=");
+		builder.append(consistentReads);
+		builder.append(", consistentReadsTimeoutMs=");
+		builder.append(consistentReadsTimeoutMs);
+		builder.append(", slowQueryMs=");
+		builder.append(slowQueryMs);
 		builder.append(", targetColumn=");
 		builder.append(targetColumn);
 		builder.append("]");
@@ -25,9 +25,17 @@ public class ResourceOptions {
 	@JsonProperty("resources")
 	public final Map<String, Set<String>> resources = new HashMap<String, Set<String>>();
 
+	/**
+	 * Per resource type refresh frequency, in seconds. Only used when the index
+	 * is partitioned by resource type.
+	 */
+	@JsonProperty("refresh_seconds")
+	public final Map<String, Double> refreshSeconds = new HashMap<String, Double>();
+
 	@JsonCreator
 	public ResourceOptions(@JsonProperty("default_analyzer") String analyzer,
-			@JsonProperty("resources") Map<String, Set<String>> resources)
+			@JsonProperty("resources") Map<String, Set<String>> resources,
+			@JsonProperty("refresh_seconds") Map<String, Double> refreshSeconds)
 			throws InstantiationException, IllegalAccessException, ClassNotFoundException {
 		if (analyzer == null) {
 			this.defaultAnalyzer = new WhitespaceAnalyzer();
@@ -38,6 +46,15 @@ public class ResourceOptions {
 		if (resources != null) {
 			this.resources.putAll(resources);
 		}
+
+		if (refreshSeconds != null) {
+			refreshSeconds.forEach((type, seconds) -> {
+				if (seconds == null || seconds <= 0) {
+					throw new IllegalArgumentException("refresh_seconds of " + type + " must be strictly positive");
+				}
+			});
+			this.refreshSeconds.putAll(refreshSeconds);
+		}
 	}
 
 }
@@ -0,0 +1,97 @@
+package io.puntanegra.fhir.index.lucene;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The implementations of the Lucene directory storing the index files. <br>
+ * Memory mapped and NIO directories read the index files through the OS page
+ * cache, so the index data doesn't use the Cassandra JVM heap. The NRT caching
+ * directory keeps small flushed and merged segments in heap until they are
+ * committed.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public enum DirectoryType {
+
+	/** Memory mapped files, optionally preloaded into the page cache */
+	MMAP,
+
+	/** Positional reads with NIO file channels */
+	NIO,
+
+	/**
+	 * The platform default directory, with small new segments cached in heap
+	 */
+	NRT_CACHING;
+
+	private static final Logger logger = LoggerFactory.getLogger(DirectoryType.class);
+
+	/**
+	 * Returns the name of this type in the index options.
+	 *
+	 * @return the option name
+	 */
+	public String getName() {
+		return name().toLowerCase();
+	}
+
+	/**
+	 * Returns the type with the specified name in the index options.
+	 *
+	 * @param name
+	 *            the option name
+	 * @return the type, or {@code null} if there is no such type
+	 */
+	public static DirectoryType fromName(String name) {
+		for (DirectoryType type : values()) {
+			if (type.getName().equals(name)) {
+				return type;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Opens or creates a directory of this type.
+	 *
+	 * @param path
+	 *            the directory path
+	 * @param preloadExtensions
+	 *            the extensions of the memory mapped files to be preloaded,
+	 *            {@code *} means all the files
+	 * @param maxMergeMB
+	 *            the max size of the merged segments cached in heap, in MB
+	 * @param maxCachedMB
+	 *            the max size of all the segments cached in heap, in MB
+	 * @return the directory
+	 * @throws IOException
+	 *             if the directory can't be opened
+	 */
+	public Directory open(Path path, Set<String> preloadExtensions, int maxMergeMB, int maxCachedMB)
+			throws IOException {
+		switch (this) {
+		case MMAP:
+			if (!MMapDirectory.UNMAP_SUPPORTED) {
+				logger.warn("Memory mapped files of {} can't be unmapped in this JVM, they will be released on GC",
+						path);
+			}
+			return preloadExtensions.isEmpty() ? new MMapDirectory(path)
+					: new PreloadMMapDirectory(path, preloadExtensions);
+		case NIO:
+			return new NIOFSDirectory(path);
+		default:
+			return new NRTCachingDirectory(FSDirectory.open(path), maxMergeMB, maxCachedMB);
+		}
+	}
+}
@@ -17,30 +17,52 @@
  */
 package io.puntanegra.fhir.index.lucene;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.utils.CloseableIterator;
 import org.apache.cassandra.utils.Pair;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.search.EarlyTerminatingSortingCollector;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.puntanegra.fhir.index.FhirIndexException;
+import io.puntanegra.fhir.index.metrics.QueryTrace;
+import io.puntanegra.fhir.index.metrics.QueryTrace.Phase;
 import io.puntanegra.fhir.index.util.TimeCounter;
 
 /**
  * {@link Iterator} for retrieving Lucene {@link Document}s satisfying a
- * {@link Query} from an {@link IndexSearcher}.
+ * {@link Query} from one or more {@link IndexSearcher}s. <br>
+ * When there are several searchers, each of them is searched for its top hits
+ * and the results are merged, so the iteration follows the same order as a
+ * single index would do. If a search pool is provided, the searchers are
+ * searched in parallel, with the calling thread searching the first of them.
+ * The {@link ScoreDoc#shardIndex} of the returned documents identifies the
+ * searcher where they were found. <br>
+ * If the indexes are sorted by the search sort, the search of the first page
+ * stops collecting hits from each sorted segment as soon as it has a full
+ * page.
  *
  * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
  *
@@ -49,10 +71,13 @@ public class LuceneDocumentIterator implements CloseableIterator<Pair<Document,
 
 	private static final Logger logger = LoggerFactory.getLogger(LuceneDocumentIterator.class);
 
-	private final SearcherManager manager;
+	private final List<SearcherManager> managers;
+	private final ExecutorService searchPool;
 	private final Query query;
 	private final Integer page;
 	private final Set<String> fields;
+	private final Sort indexSort;
+	private final QueryTrace trace;
 	private final Deque<Pair<Document, ScoreDoc>> documents = new LinkedList<>();
 	private Sort sort;
 	private ScoreDoc after;
@@ -62,8 +87,8 @@ public class LuceneDocumentIterator implements CloseableIterator<Pair<Document,
 	 * Builds a new iterator over the {@link Document}s satisfying the specified
 	 * {@link Query}.
 	 *
-	 * @param manager
-	 *            the index searcher manager
+	 * @param managers
+	 *            the searcher managers of the indexes to be searched
 	 * @param query
 	 *            the query to be satisfied by the documents
 	 * @param sort
@@ -74,57 +99,198 @@ public class LuceneDocumentIterator implements CloseableIterator<Pair<Document,
 	 *            the max number of documents to be retrieved
 	 * @param fields
 	 *            the names of the fields to be loaded
+	 * @param indexSort
+	 *            the sort of the merged segments, {@code null} means unsorted
 	 */
 	LuceneDocumentIterator(SearcherManager manager, Query query, Sort sort, ScoreDoc after, Integer limit,
-			Set<String> fields) {
-		this.manager = manager;
+			Set<String> fields, Sort indexSort) {
+		this(Collections.singletonList(manager), null, query, sort, after, limit, fields, indexSort, null);
+	}
+
+	/**
+	 * Builds a new iterator over the {@link Document}s satisfying the specified
+	 * {@link Query} in several indexes.
+	 *
+	 * @param managers
+	 *            the searcher managers of the indexes to be searched
+	 * @param searchPool
+	 *            the pool used to search the indexes in parallel, {@code null}
+	 *            means sequential search
+	 * @param query
+	 *            the query to be satisfied by the documents
+	 * @param sort
+	 *            the sort in which the documents are going to be retrieved
+	 * @param after
+	 *            a pointer to the start document (not included)
+	 * @param limit
+	 *            the max number of documents to be retrieved
+	 * @param fields
+	 *            the names of the fields to be loaded
+	 * @param indexSort
+	 *            the sort of the merged segments, {@code null} means unsorted
+	 * @param trace
+	 *            the trace where the search and stored fields load times are
+	 *            added, {@code null} means no tracing
+	 */
+	LuceneDocumentIterator(List<SearcherManager> managers, ExecutorService searchPool, Query query, Sort sort,
+			ScoreDoc after, Integer limit, Set<String> fields, Sort indexSort, QueryTrace trace) {
+		this.managers = managers;
+		this.searchPool = searchPool;
 		this.query = query;
 		this.sort = sort;
 		this.after = after;
 		this.page = limit < Integer.MAX_VALUE ? limit + 1 : limit;
 		this.fields = fields;
+		this.indexSort = indexSort;
+		this.trace = trace;
 	}
 
 	private void fetch() {
 		try {
-			IndexSearcher searcher = manager.acquire();
-
+			IndexSearcher[] searchers = new IndexSearcher[managers.size()];
 			try {
+				for (int i = 0; i < searchers.length; i++) {
+					searchers[i] = managers.get(i).acquire();
+				}
 
 				TimeCounter time = TimeCounter.create().start();
+				long start = System.nanoTime();
 
 				// Search for top documents
-				TopDocs topDocs = null;
-				if (this.sort != null) {
-					sort = sort.rewrite(searcher);
-					topDocs = searcher.searchAfter(after, query, page, sort);
-				} else {
-					topDocs = searcher.searchAfter(after, query, page);
-				}
+				TopDocs topDocs = searchers.length == 1 ? search(searchers[0], after) : search(searchers);
 				ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+				if (trace != null) {
+					start = trace.add(Phase.LUCENE_SEARCH, start);
+					trace.addHits(scoreDocs.length);
+				}
 
 				// Check inf mayHaveMore
 				mayHaveMore = scoreDocs.length == page;
 
 				// Collect the documents from query result
 				for (ScoreDoc scoreDoc : scoreDocs) {
+					// single searchers may set the shard index to their slice
+					IndexSearcher searcher = searchers.length == 1 ? searchers[0] : searchers[scoreDoc.shardIndex];
 					Document document = searcher.doc(scoreDoc.doc, fields);
 					documents.add(Pair.create(document, scoreDoc));
 					after = scoreDoc;
 				}
 
+				if (trace != null) {
+					trace.add(Phase.STORED_FIELDS, start);
+				}
 				logger.debug("Get page with {} documents in {}", scoreDocs.length, time.stop());
 
 			} finally {
-				manager.release(searcher);
+				for (int i = 0; i < searchers.length; i++) {
+					if (searchers[i] != null) {
+						managers.get(i).release(searchers[i]);
+					}
+				}
 			}
 
 		} catch (Exception e) {
-			e.printStackTrace();
 			throw new FhirIndexException(e, "Error searching in with %s and %s", query, sort);
 		}
 	}
 
+	private TopDocs search(IndexSearcher searcher, ScoreDoc after) throws IOException {
+		if (this.sort != null) {
+			Sort rewritten = sort.rewrite(searcher);
+			if (after == null && indexSort != null
+					&& EarlyTerminatingSortingCollector.canEarlyTerminate(rewritten, indexSort)) {
+				// the collector counts the hits before the starting point, so
+				// only the first page can be early terminated
+				TopFieldCollector collector = TopFieldCollector.create(rewritten, page, null, true, false, false);
+				searcher.search(query, new EarlyTerminatingSortingCollector(collector, rewritten, page, indexSort));
+				return collector.topDocs();
+			}
+			return searcher.searchAfter(after, query, page, rewritten);
+		} else {
+			return searcher.searchAfter(after, query, page);
+		}
+	}
+
+	/**
+	 * Searches each one of the specified {@link IndexSearcher}s and merges
+	 * their top hits.
+	 *
+	 * @param searchers
+	 *            the searchers
+	 * @return the merged top hits
+	 * @throws IOException
+	 *             if there are search errors
+	 */
+	private TopDocs search(IndexSearcher[] searchers) throws IOException {
+		TopDocs[] hits = this.sort == null ? new TopDocs[searchers.length] : new TopFieldDocs[searchers.length];
+		if (searchPool == null) {
+			for (int i = 0; i < searchers.length; i++) {
+				hits[i] = search(searchers[i], after(i, searchers[i]));
+			}
+			return merge(hits);
+		}
+
+		List<Future<TopDocs>> futures = new ArrayList<>(searchers.length - 1);
+		try {
+			for (int i = 1; i < searchers.length; i++) {
+				IndexSearcher searcher = searchers[i];
+				ScoreDoc searcherAfter = after(i, searcher);
+				futures.add(searchPool.submit(() -> search(searcher, searcherAfter)));
+			}
+			hits[0] = search(searchers[0], after(0, searchers[0]));
+			for (int i = 1; i < searchers.length; i++) {
+				hits[i] = futures.get(i - 1).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FhirIndexException(e, "Interrupted while searching %s", query);
+		} catch (ExecutionException e) {
+			throw new FhirIndexException(e.getCause(), "Error searching %s", query);
+		} finally {
+			futures.forEach(future -> future.cancel(false));
+		}
+		return merge(hits);
+	}
+
+	private TopDocs merge(TopDocs[] hits) throws IOException {
+		if (this.sort == null) {
+			return TopDocs.merge(page, hits);
+		} else {
+			return TopDocs.merge(sort, page, (TopFieldDocs[]) hits);
+		}
+	}
+
+	/**
+	 * Returns the starting {@link ScoreDoc} to be used in the specified
+	 * searcher. Hits with the same score or sort values are merged by searcher
+	 * index, so the searchers before the last returned hit skip all the ties
+	 * and the searchers after it include all of them.
+	 *
+	 * @param index
+	 *            the index of the searcher
+	 * @param searcher
+	 *            the searcher
+	 * @return the searcher starting point, {@code null} for the first page
+	 */
+	private ScoreDoc after(int index, IndexSearcher searcher) {
+		if (after == null) {
+			return null;
+		}
+		int maxDoc = searcher.getIndexReader().maxDoc();
+		int doc;
+		if (index < after.shardIndex) {
+			doc = Math.max(0, maxDoc - 1);
+		} else if (index == after.shardIndex) {
+			doc = Math.min(after.doc, Math.max(0, maxDoc - 1));
+		} else {
+			doc = -1;
+		}
+		if (after instanceof FieldDoc) {
+			return new FieldDoc(doc, after.score, ((FieldDoc) after).fields);
+		}
+		return new ScoreDoc(doc, after.score);
+	}
+
 	/**
 	 * Returns {@code true} if the iteration has more {@link Document}s. (In
 	 * other words, returns {@code true} if {@link #next} would return an
@@ -0,0 +1,711 @@
+package io.puntanegra.fhir.index.lucene;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.db.compaction.CompactionManager;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import io.puntanegra.fhir.index.FhirIndexException;
+import io.puntanegra.fhir.index.config.IndexOptions;
+import io.puntanegra.fhir.index.mapper.FhirMapper;
+import io.puntanegra.fhir.index.mapper.TokenMapper;
+import io.puntanegra.fhir.index.metrics.QueryTrace;
+import io.puntanegra.fhir.index.query.SearchHints;
+
+/**
+ * Group of physical Lucene indexes ({@link LuceneService}) backing a single
+ * FHIR index. <br>
+ * By default the group has a single Lucene index. If the index is partitioned
+ * by resource type, each resource type defined in the index configuration is
+ * stored in its own Lucene index, with its own writer, searcher manager and
+ * refresh frequency. Resources of types not defined in the configuration are
+ * stored in a default partition.
+ * <p>
+ * Each partition can be further split by token in several shards, each one
+ * with its own directory, writer and searcher manager, so concurrent writes
+ * don't serialize on a single writer and searches use several threads.
+ * <p>
+ * Writes are routed by the resource type and the partitioner token of the
+ * indexed document. Searches are routed by the {@code _type} hint or a required
+ * {@code resource_type} clause, and are executed in all the partitions when
+ * there is no such clause. When several shards are searched they are searched
+ * in parallel and their top hits are merged.
+ * <p>
+ * NOTE: rows are not expected to change their resource type, so upserts don't
+ * delete the row from the other partitions.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class LuceneIndexGroup {
+
+	private static final Logger logger = LoggerFactory.getLogger(LuceneIndexGroup.class);
+
+	/** The name of the partition for the resource types without their own */
+	public static final String DEFAULT_PARTITION = "_default";
+
+	/** The prefix of the shard directory names */
+	public static final String SHARD_PREFIX = "shard_";
+
+	/** The max number of queued segment search tasks per search thread */
+	public static final int SEGMENT_QUEUE_SIZE_PER_THREAD = 8;
+
+	private final String name;
+	private final Path path;
+	private final Analyzer analyzer;
+	private final boolean partitioned;
+	private final int shards;
+
+	/** The shards of each partition by partition name */
+	private final Map<String, List<LuceneService>> partitions = new LinkedHashMap<>();
+
+	/** The pool searching shards in parallel, {@code null} if single index */
+	private final ExecutorService searchPool;
+
+	/** The pool searching segments in parallel, {@code null} if disabled */
+	private final ExecutorService segmentPool;
+
+	/** The limiter of the merge writes of all the shards, maybe {@code null} */
+	private final RateLimiter mergeRateLimiter;
+
+	/** The partition names by analyzed resource type */
+	private final Map<String, String> partitionsByTerm = new HashMap<>();
+
+	/**
+	 * Builds a new {@link LuceneIndexGroup}.
+	 *
+	 * @param name
+	 *            the index name
+	 * @param mbeanName
+	 *            the JMX MBean object name
+	 * @param options
+	 *            the index options
+	 * @param queryCache
+	 *            the query cache shared by all the partitions
+	 * @param refreshTask
+	 *            action to be done during the refresh of any partition
+	 */
+	public LuceneIndexGroup(String name, String mbeanName, IndexOptions options, LuceneQueryCache queryCache,
+			Runnable refreshTask) {
+		this.name = name;
+		this.path = options.path;
+		this.analyzer = options.search.defaultAnalyzer;
+		this.partitioned = options.partitionByResourceType;
+		this.shards = options.shards;
+		this.segmentPool = segmentPool(options.searchThreads);
+		this.mergeRateLimiter = mergeRateLimiter(options.mergeThroughputMBPerSec);
+
+		if (partitioned) {
+			for (String type : options.search.resources.keySet()) {
+				double refresh = options.search.refreshSeconds.getOrDefault(type, options.refreshSeconds);
+				partitions.put(type, shards(type, mbeanName, options, path.resolve(type), refresh, queryCache,
+						refreshTask));
+				partitionsByTerm.put(analyze(type), type);
+			}
+			partitions.put(DEFAULT_PARTITION, shards(DEFAULT_PARTITION, mbeanName, options,
+					path.resolve(DEFAULT_PARTITION), options.refreshSeconds, queryCache, refreshTask));
+			logger.info("Index {} partitioned by resource type {}", name, partitions.keySet());
+		} else {
+			partitions.put(DEFAULT_PARTITION,
+					shards(null, mbeanName, options, path, options.refreshSeconds, queryCache, refreshTask));
+		}
+		if (shards > 1) {
+			logger.info("Index {} split in {} shards", name, shards);
+		}
+
+		int numServices = partitions.size() * shards;
+		if (numServices > 1) {
+			int numThreads = Math.min(numServices, Runtime.getRuntime().availableProcessors());
+			searchPool = Executors.newFixedThreadPool(numThreads, new NamedThreadFactory(name + "-search"));
+		} else {
+			searchPool = null;
+		}
+	}
+
+	/**
+	 * Returns a new bounded pool for searching segments concurrently, shared by
+	 * all the shards. Segment searches are submitted from the shard search
+	 * threads or the Cassandra read threads, so this pool is separated from
+	 * both of them and from the indexing queue. When the pool is saturated, the
+	 * submitting thread searches the segments itself.
+	 */
+	private ExecutorService segmentPool(int numThreads) {
+		if (numThreads == 0) {
+			return null;
+		}
+		logger.info("Index {} searching segments with {} threads", name, numThreads);
+		return new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(numThreads * SEGMENT_QUEUE_SIZE_PER_THREAD),
+				new NamedThreadFactory(name + "-segment-search"), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Returns the limiter of the merge writes. By default there is none, so
+	 * merges are throttled by Lucene alone. Otherwise, a fixed rate is shared
+	 * by all the shards of this index, or, if {@code mbPerSec} is
+	 * {@code null}, merges share the Cassandra compaction rate limiter, which
+	 * follows {@code compaction_throughput_mb_per_sec} and its changes with
+	 * {@code nodetool setcompactionthroughput}.
+	 */
+	private RateLimiter mergeRateLimiter(Double mbPerSec) {
+		if (mbPerSec == null) {
+			logger.info("Index {} merges sharing the compaction throughput", name);
+			return CompactionManager.instance.getRateLimiter();
+		} else if (mbPerSec == 0) {
+			return null;
+		}
+		logger.info("Index {} merges throttled to {} MB/s", name, mbPerSec);
+		return RateLimiter.create(mbPerSec * 1024 * 1024);
+	}
+
+	private List<LuceneService> shards(String partition, String mbeanName, IndexOptions options, Path path,
+			double refresh, LuceneQueryCache queryCache, Runnable refreshTask) {
+		String serviceName = partition == null ? name : name + "." + partition;
+		String serviceMBeanName = partition == null ? mbeanName : mbeanName + ",partition=" + partition;
+		if (shards == 1) {
+			return Collections.singletonList(
+					service(serviceName, serviceMBeanName, options, path, refresh, queryCache, refreshTask));
+		}
+		List<LuceneService> services = new ArrayList<>(shards);
+		for (int i = 0; i < shards; i++) {
+			services.add(service(serviceName + "." + SHARD_PREFIX + i, serviceMBeanName + ",shard=" + i, options,
+					path.resolve(SHARD_PREFIX + i), refresh, queryCache, refreshTask));
+		}
+		return services;
+	}
+
+	private LuceneService service(String serviceName, String serviceMBeanName, IndexOptions options, Path path,
+			double refresh, LuceneQueryCache queryCache, Runnable refreshTask) {
+		MergePolicy mergePolicy = LuceneService.mergePolicy(options.segmentsPerTier, options.maxMergedSegmentMB,
+				options.compoundFileRatio, options.expungeDeletesRatio);
+		if (options.sortByToken) {
+			mergePolicy = LuceneService.mergePolicy(mergePolicy, TokenMapper.sort());
+		}
+		LuceneService service = new LuceneService();
+		service.init(serviceName, serviceMBeanName, path, options.search.defaultAnalyzer, refresh,
+				options.minRefreshSeconds, options.ramBufferMB, options.directoryType, options.mmapPreload,
+				options.maxMergeMB, options.maxCachedMB, mergePolicy, options.mergeThreads, mergeRateLimiter,
+				queryCache, segmentPool, refreshTask);
+		return service;
+	}
+
+	/**
+	 * Returns the first token produced by the index analyzer for the
+	 * {@code resource_type} field.
+	 */
+	private String analyze(String resourceType) {
+		try (TokenStream stream = analyzer.tokenStream(FhirMapper.RESOURCE_TYPE_FIELD, resourceType)) {
+			CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+			stream.reset();
+			String value = stream.incrementToken() ? term.toString() : resourceType;
+			stream.end();
+			return value;
+		} catch (IOException e) {
+			throw new FhirIndexException(e, "Error analyzing resource type %s", resourceType);
+		}
+	}
+
+	/**
+	 * Returns if each resource type is stored in its own Lucene index.
+	 *
+	 * @return {@code true} if the index is partitioned by resource type
+	 */
+	public boolean isPartitioned() {
+		return partitioned;
+	}
+
+	/**
+	 * Returns the number of token shards of each partition.
+	 *
+	 * @return the number of shards
+	 */
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * Returns all the Lucene indexes of this group.
+	 *
+	 * @return the Lucene indexes
+	 */
+	public Collection<LuceneService> all() {
+		List<LuceneService> services = new ArrayList<>(partitions.size() * shards);
+		partitions.values().forEach(services::addAll);
+		return Collections.unmodifiableCollection(services);
+	}
+
+	/**
+	 * Returns the shards of the Lucene index where the documents of the
+	 * specified resource type are stored.
+	 *
+	 * @param resourceType
+	 *            the FHIR Resource type
+	 * @return the Lucene index shards
+	 */
+	public List<LuceneService> partition(String resourceType) {
+		if (partitioned && resourceType != null) {
+			List<LuceneService> services = partitions.get(resourceType);
+			if (services != null) {
+				return services;
+			}
+		}
+		return partitions.get(DEFAULT_PARTITION);
+	}
+
+	/**
+	 * Returns the index of the shard where the documents with the specified
+	 * partitioner token are stored. Murmur3 tokens are uniformly distributed,
+	 * so they are used as they are.
+	 *
+	 * @param token
+	 *            the partitioner token
+	 * @return the shard index
+	 */
+	public int shard(long token) {
+		return (int) Math.floorMod(token, (long) shards);
+	}
+
+	/**
+	 * Upserts the specified {@link Document} in the partition of its resource
+	 * type and the shard of its token.
+	 *
+	 * @param resourceType
+	 *            the FHIR Resource type of the document
+	 * @param token
+	 *            the partitioner token of the document
+	 * @param term
+	 *            the {@link Term} to identify the document(s) to be deleted
+	 * @param document
+	 *            the {@link Document} to be added
+	 */
+	public void upsert(String resourceType, long token, Term term, Document document) {
+		partition(resourceType).get(shard(token)).upsert(term, document);
+	}
+
+	/**
+	 * Deletes all the {@link Document}s containing the specified {@link Term}
+	 * in the shard of the specified token of all the partitions.
+	 *
+	 * @param token
+	 *            the partitioner token of the documents
+	 * @param term
+	 *            the {@link Term} identifying the documents to be deleted
+	 */
+	public void delete(long token, Term term) {
+		int shard = shard(token);
+		partitions.values().forEach(services -> services.get(shard).delete(term));
+	}
+
+	/**
+	 * Commits the pending changes of all the shards.
+	 */
+	public void commit() {
+		all().forEach(LuceneService::commit);
+	}
+
+	/**
+	 * Commits the pending changes of all the shards, storing the specified
+	 * user data in their commits.
+	 *
+	 * @param commitData
+	 *            the data to be stored in the commits
+	 */
+	public void commit(Map<String, String> commitData) {
+		all().forEach(service -> service.commit(commitData));
+	}
+
+	/**
+	 * Returns the user data stored in the last commit of each shard.
+	 *
+	 * @return the last commit data of each shard
+	 */
+	public List<Map<String, String>> getCommitData() {
+		List<Map<String, String>> commitData = new ArrayList<>();
+		all().forEach(service -> commitData.add(service.getCommitData()));
+		return commitData;
+	}
+
+	/**
+	 * Returns the sum of the last write generations of all the shards. It
+	 * grows with every write, so it can be used to detect changes.
+	 *
+	 * @return the sum of the write generations
+	 */
+	public long getWrittenGeneration() {
+		return all().stream().mapToLong(LuceneService::getWrittenGeneration).sum();
+	}
+
+	/**
+	 * Deletes all the {@link Document}s of all the shards.
+	 */
+	public void truncate() {
+		all().forEach(LuceneService::truncate);
+	}
+
+	/**
+	 * Refreshes the readers of all the shards.
+	 */
+	public void refresh() {
+		all().forEach(LuceneService::refresh);
+	}
+
+	/**
+	 * Closes all the shards.
+	 */
+	public void close() {
+		try {
+			all().forEach(LuceneService::close);
+		} finally {
+			shutdownPools();
+		}
+	}
+
+	/**
+	 * Closes all the shards and removes all their files.
+	 */
+	public void delete() {
+		try {
+			all().forEach(LuceneService::delete);
+		} finally {
+			shutdownPools();
+			if ((partitioned || shards > 1) && path.toFile().exists()) {
+				FileUtils.deleteRecursive(path.toFile());
+			}
+		}
+	}
+
+	private void shutdownPools() {
+		if (searchPool != null) {
+			searchPool.shutdown();
+		}
+		if (segmentPool != null) {
+			segmentPool.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the total number of {@link Document}s in all the shards.
+	 *
+	 * @return the number of {@link Document}s
+	 */
+	public long getNumDocs() {
+		return all().stream().mapToLong(LuceneService::getNumDocs).sum();
+	}
+
+	/**
+	 * Returns the total number of deleted {@link Document}s in all the shards.
+	 *
+	 * @return the number of deleted {@link Document}s
+	 */
+	public long getNumDeletedDocs() {
+		return all().stream().mapToLong(LuceneService::getNumDeletedDocs).sum();
+	}
+
+	/**
+	 * Waits until the searchers of all the shards see all the writes done
+	 * before calling this method. All the shards are requested to reopen their
+	 * searchers before waiting for any of them, so they reopen concurrently.
+	 *
+	 * @param timeoutMillis
+	 *            the max time to wait, in milliseconds
+	 * @return {@code true} if all the writes are searchable, {@code false} if
+	 *         the timeout has elapsed
+	 */
+	public boolean waitForWrites(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		List<LuceneService> services = new ArrayList<>(all());
+		long[] generations = new long[services.size()];
+		for (int i = 0; i < generations.length; i++) {
+			generations[i] = services.get(i).getWrittenGeneration();
+			services.get(i).requestGeneration(generations[i]);
+		}
+		for (int i = 0; i < generations.length; i++) {
+			long remaining = Math.max(0, deadline - System.currentTimeMillis());
+			if (!services.get(i).waitForGeneration(generations[i], remaining)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the total number of searcher reopens in all the shards.
+	 *
+	 * @return the number of reopens
+	 */
+	public long getReopens() {
+		return all().stream().mapToLong(service -> service.getRefresher().getReopens()).sum();
+	}
+
+	/**
+	 * Returns the mean latency of the searcher reopens in all the shards, in
+	 * milliseconds.
+	 *
+	 * @return the mean reopen latency
+	 */
+	public double getMeanReopenMillis() {
+		long reopens = getReopens();
+		return reopens == 0 ? 0 : all().stream().mapToDouble(service -> {
+			NRTRefresher refresher = service.getRefresher();
+			return refresher.getMeanReopenMillis() * refresher.getReopens();
+		}).sum() / reopens;
+	}
+
+	/**
+	 * Returns the total number of segments in all the shards.
+	 *
+	 * @return the number of segments
+	 */
+	public int getSegmentCount() {
+		return all().stream().mapToInt(LuceneService::getSegmentCount).sum();
+	}
+
+	/**
+	 * Returns the total number of segments sorted by token in all the shards.
+	 *
+	 * @return the number of sorted segments
+	 */
+	public int getSortedSegmentCount() {
+		return all().stream().mapToInt(LuceneService::getSortedSegmentCount).sum();
+	}
+
+	/**
+	 * Returns the RAM used by the index writers of all the shards, in bytes.
+	 *
+	 * @return the used RAM buffer in bytes
+	 */
+	public long getRamBufferUsedBytes() {
+		return all().stream().mapToLong(LuceneService::getRamBufferUsedBytes).sum();
+	}
+
+	/**
+	 * Returns the highest ratio of deleted documents of the segments of all
+	 * the shards.
+	 *
+	 * @return the max segment deleted documents ratio
+	 */
+	public double getMaxSegmentDeletedRatio() {
+		return all().stream().mapToDouble(LuceneService::getMaxSegmentDeletedRatio).max().orElse(0);
+	}
+
+	/**
+	 * Expunges the deleted documents of the segments of all the shards having
+	 * at least the specified ratio of deleted documents. Shards are expunged
+	 * one after another, so they don't merge at the same time.
+	 *
+	 * @param ratio
+	 *            the min ratio of deleted documents of the merged segments
+	 * @return the number of expunged shards
+	 */
+	public int expungeDeletes(double ratio) {
+		int expunged = 0;
+		for (LuceneService service : all()) {
+			if (service.expungeDeletes(ratio)) {
+				expunged++;
+			}
+		}
+		return expunged;
+	}
+
+	/**
+	 * Returns the number of background expunges of deleted documents in all
+	 * the shards.
+	 *
+	 * @return the number of expunges
+	 */
+	public long getExpunges() {
+		return all().stream().mapToLong(LuceneService::getExpunges).sum();
+	}
+
+	/**
+	 * Returns the number of finished segment merges in all the shards.
+	 *
+	 * @return the number of merges
+	 */
+	public long getMerges() {
+		return all().stream().mapToLong(LuceneService::getMerges).sum();
+	}
+
+	/**
+	 * Returns the number of segment merges running now in all the shards.
+	 *
+	 * @return the number of running merges
+	 */
+	public int getRunningMerges() {
+		return all().stream().mapToInt(LuceneService::getRunningMerges).sum();
+	}
+
+	/**
+	 * Returns the total duration of the finished segment merges in all the
+	 * shards, in milliseconds.
+	 *
+	 * @return the merge time in milliseconds
+	 */
+	public long getMergeTimeMillis() {
+		return all().stream().mapToLong(LuceneService::getMergeTimeMillis).sum();
+	}
+
+	/**
+	 * Returns the total size of the segments merged in all the shards, in
+	 * bytes.
+	 *
+	 * @return the merged bytes
+	 */
+	public long getMergedBytes() {
+		return all().stream().mapToLong(LuceneService::getMergedBytes).sum();
+	}
+
+	/**
+	 * Returns the time the segment merges of all the shards have been waiting
+	 * for the merge rate limiter, in milliseconds.
+	 *
+	 * @return the throttled time in milliseconds
+	 */
+	public long getMergeThrottledMillis() {
+		return all().stream().mapToLong(LuceneService::getMergeThrottledMillis).sum();
+	}
+
+	/**
+	 * Sets the listener to be notified with the latency of each searcher
+	 * reopen in any of the shards, in nanoseconds.
+	 *
+	 * @param listener
+	 *            the reopen latency listener, {@code null} means none
+	 */
+	public void setRefreshListener(LongConsumer listener) {
+		all().forEach(service -> service.getRefresher().setReopenListener(listener));
+	}
+
+	/**
+	 * Returns the age of the oldest write not visible to searches in any of
+	 * the shards, in seconds.
+	 *
+	 * @return the current staleness
+	 */
+	public double getStalenessSeconds() {
+		return all().stream().mapToDouble(service -> service.getRefresher().getStalenessSeconds()).max().orElse(0);
+	}
+
+	/**
+	 * Finds the top {@code count} hits for {@code query} and sorting the hits
+	 * by {@code sort} in the partitions selected by the query.
+	 *
+	 * @param query
+	 *            the {@link Query} to search for, maybe containing hints
+	 * @param sort
+	 *            the {@link Sort} to be applied
+	 * @param after
+	 *            the starting {@link ScoreDoc}
+	 * @param count
+	 *            the max number of results to be collected
+	 * @param fields
+	 *            the names of the fields to be loaded
+	 * @param trace
+	 *            the trace of the search phases, {@code null} means no tracing
+	 * @return the found documents
+	 */
+	public LuceneDocumentIterator search(Query query, Sort sort, ScoreDoc after, Integer count, Set<String> fields,
+			QueryTrace trace) {
+		SearchHints hints = SearchHints.of(query);
+		Optional<String> type = hints.get(SearchHints.RESOURCE_TYPE);
+		Query searchQuery = hints.query();
+
+		Collection<LuceneService> services;
+		if (!partitioned) {
+			services = all();
+			if (type.isPresent()) {
+				searchQuery = filter(searchQuery, type.get());
+			}
+		} else if (type.isPresent()) {
+			services = partition(type.get());
+			if (services == partitions.get(DEFAULT_PARTITION)) {
+				// the default partition contains several resource types
+				searchQuery = filter(searchQuery, type.get());
+			}
+		} else {
+			type = resourceType(searchQuery);
+			services = type.isPresent() ? partition(type.get()) : all();
+		}
+
+		logger.debug("Searching in {}\n" + "shards: {}\n" + "count: {}\n" + "after: {}\n" + "query: {}\n"
+				+ " sort: {}", name, services.size(), count, after, searchQuery, sort);
+		List<SearcherManager> managers = new ArrayList<>(services.size());
+		services.forEach(service -> managers.add(service.searcherManager()));
+		Sort indexSort = services.iterator().next().getIndexSort();
+		return new LuceneDocumentIterator(managers, searchPool, searchQuery, sort, after, count, fields, indexSort,
+				trace);
+	}
+
+	/**
+	 * Adds to the specified query a filter by the specified resource type.
+	 */
+	private Query filter(Query query, String resourceType) {
+		BooleanQuery.Builder builder = new BooleanQuery.Builder();
+		builder.add(query, Occur.MUST);
+		builder.add(new TermQuery(new Term(FhirMapper.RESOURCE_TYPE_FIELD, analyze(resourceType))), Occur.FILTER);
+		return builder.build();
+	}
+
+	/**
+	 * Returns the resource type required by the specified query, if any.
+	 */
+	private Optional<String> resourceType(Query query) {
+		if (query instanceof TermQuery) {
+			return resourceType((TermQuery) query);
+		} else if (query instanceof BooleanQuery) {
+			for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+				if (clause.isRequired() && clause.getQuery() instanceof TermQuery) {
+					Optional<String> type = resourceType((TermQuery) clause.getQuery());
+					if (type.isPresent()) {
+						return type;
+					}
+				}
+			}
+		}
+		return Optional.empty();
+	}
+
+	private Optional<String> resourceType(TermQuery query) {
+		Term term = query.getTerm();
+		if (FhirMapper.RESOURCE_TYPE_FIELD.equals(term.field())) {
+			String type = partitionsByTerm.get(term.text());
+			return Optional.of(type == null ? DEFAULT_PARTITION : type);
+		}
+		return Optional.empty();
+	}
+}
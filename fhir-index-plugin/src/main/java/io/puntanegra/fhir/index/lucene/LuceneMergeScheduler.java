@@ -0,0 +1,87 @@
+package io.puntanegra.fhir.index.lucene;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+
+/**
+ * {@link ConcurrentMergeScheduler} with a configurable number of merge threads
+ * and counting the merges, their duration and their size. <br>
+ * Lucene's adaptive merge I/O throttling is disabled when the merges are
+ * already throttled by a {@link MergeThrottledDirectory}, so they are not
+ * throttled twice.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class LuceneMergeScheduler extends ConcurrentMergeScheduler {
+
+	/** The number of merges that can be pending per merge thread before indexing stalls */
+	static final int PENDING_MERGES = 5;
+
+	private final AtomicLong merges = new AtomicLong();
+	private final AtomicLong mergeNanos = new AtomicLong();
+	private final AtomicLong mergedBytes = new AtomicLong();
+
+	/**
+	 * Builds a new {@link LuceneMergeScheduler}.
+	 *
+	 * @param threads
+	 *            the max number of merge threads, zero means autodetect them
+	 *            from the number of cores and the disk type
+	 * @param throttled
+	 *            if the merges are throttled out of Lucene
+	 */
+	public LuceneMergeScheduler(int threads, boolean throttled) {
+		if (threads > 0) {
+			setMaxMergesAndThreads(threads + PENDING_MERGES, threads);
+		}
+		if (throttled) {
+			disableAutoIOThrottle();
+		}
+	}
+
+	@Override
+	protected void doMerge(IndexWriter writer, MergePolicy.OneMerge merge) throws IOException {
+		long start = System.nanoTime();
+		try {
+			super.doMerge(writer, merge);
+		} finally {
+			merges.incrementAndGet();
+			mergeNanos.addAndGet(System.nanoTime() - start);
+			mergedBytes.addAndGet(merge.totalBytesSize());
+		}
+	}
+
+	/**
+	 * Returns the number of finished merges.
+	 *
+	 * @return the number of merges
+	 */
+	public long getMerges() {
+		return merges.get();
+	}
+
+	/**
+	 * Returns the total duration of the finished merges, in milliseconds.
+	 *
+	 * @return the merge time in milliseconds
+	 */
+	public long getMergeTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mergeNanos.get());
+	}
+
+	/**
+	 * Returns the total size of the segments merged by the finished merges, in
+	 * bytes.
+	 *
+	 * @return the merged bytes
+	 */
+	public long getMergedBytes() {
+		return mergedBytes.get();
+	}
+}
@@ -0,0 +1,58 @@
+package io.puntanegra.fhir.index.lucene;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
+
+/**
+ * Segment-aware {@link LRUQueryCache} shared by all the searchers of an index.
+ * <br>
+ * Filter clauses such as {@code resource_type:Observation} or
+ * {@code status:final} are repeated in almost every query, so their per-segment
+ * bitsets are cached and reused across searches and NRT refreshes. The
+ * {@link UsageTrackingQueryCachingPolicy} only caches queries that have been
+ * used frequently enough to pay off.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class LuceneQueryCache extends LRUQueryCache {
+
+	/** The max number of cached queries */
+	public static final int MAX_CACHED_QUERIES = 1000;
+
+	private final QueryCachingPolicy policy;
+
+	/**
+	 * Builds a new {@link LuceneQueryCache} with the specified memory budget.
+	 *
+	 * @param maxRamMB
+	 *            the max amount of memory used by the cache, in MB
+	 */
+	public LuceneQueryCache(int maxRamMB) {
+		super(MAX_CACHED_QUERIES, maxRamMB * 1024L * 1024L);
+		this.policy = new UsageTrackingQueryCachingPolicy();
+	}
+
+	/**
+	 * Configures the specified {@link IndexSearcher} to use this cache.
+	 *
+	 * @param searcher
+	 *            the searcher
+	 */
+	public void configure(IndexSearcher searcher) {
+		searcher.setQueryCache(this);
+		searcher.setQueryCachingPolicy(policy);
+	}
+
+	/**
+	 * Returns the ratio of cache lookups that have been served from the cache.
+	 *
+	 * @return the hit rate, between {@code 0} and {@code 1}
+	 */
+	public double getHitRate() {
+		long total = getTotalCount();
+		return total == 0 ? 0 : (double) getHitCount() / total;
+	}
+}
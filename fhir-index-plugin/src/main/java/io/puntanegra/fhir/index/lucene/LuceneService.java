@@ -17,8 +17,16 @@
  */
 package io.puntanegra.fhir.index.lucene;
 
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
@@ -26,11 +34,14 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SortingMergePolicy;
 import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.index.TrackingIndexWriter;
 import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.ControlledRealTimeReopenThread;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
@@ -38,27 +49,33 @@ import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.store.NRTCachingDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.RateLimiter;
+
 import io.puntanegra.fhir.index.FhirIndexException;
 
 /**
  * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
  *
  */
-public class LuceneService {
+public class LuceneService implements LuceneServiceMBean {
 	private static final Logger logger = LoggerFactory.getLogger(LuceneService.class);
 
 	private Path path;
 	private String name;
 
 	private Directory directory;
+	private MergeThrottledDirectory throttledDirectory;
+	private LuceneMergeScheduler mergeScheduler;
+	private Sort indexSort;
+	private final AtomicLong expunges = new AtomicLong();
 	private IndexWriter indexWriter;
+	private TrackingIndexWriter trackingWriter;
 	private SearcherManager searcherManager;
-	private ControlledRealTimeReopenThread<IndexSearcher> searcherReopener;
+	private NRTRefresher refresher;
+	private ObjectName mbean;
 
 	// Disable max boolean query clauses limit
 	static {
@@ -82,32 +99,63 @@ public class LuceneService {
 	 *            the index writer analyzer
 	 * @param refresh
 	 *            the index reader refresh frequency in seconds
+	 * @param minRefresh
+	 *            the min time between index reader refreshes when there are
+	 *            searches waiting for recent writes, in seconds
 	 * @param ramBufferMB
 	 *            the index writer RAM buffer size in MB
+	 * @param directoryType
+	 *            the type of the Lucene directory
+	 * @param preloadExtensions
+	 *            the extensions of the memory mapped files to be preloaded
 	 * @param maxMergeMB
 	 *            the directory max merge size in MB
 	 * @param maxCachedMB
 	 *            the directory max cache size in MB
+	 * @param mergePolicy
+	 *            the segments merge policy, a {@link SortingMergePolicy}
+	 *            makes the searches with its sort early terminate
+	 * @param mergeThreads
+	 *            the max number of merge threads, zero means autodetect them
+	 * @param mergeRateLimiter
+	 *            the limiter of the merged bytes per second, {@code null}
+	 *            means Lucene's adaptive merge throttling
+	 * @param queryCache
+	 *            the query cache shared by all the searchers, {@code null}
+	 *            means no query caching
+	 * @param searchExecutor
+	 *            the executor searching segments concurrently, {@code null}
+	 *            means searching in the calling thread
 	 * @param refreshTask
 	 *            action to be done during refresh
 	 */
-	public void init(String name, String mbeanName, Path path, Analyzer analyzer, double refresh, int ramBufferMB,
-			int maxMergeMB, int maxCachedMB, Runnable refreshTask) {
+	public void init(String name, String mbeanName, Path path, Analyzer analyzer, double refresh, double minRefresh,
+			int ramBufferMB, DirectoryType directoryType, Set<String> preloadExtensions, int maxMergeMB,
+			int maxCachedMB, MergePolicy mergePolicy, int mergeThreads, RateLimiter mergeRateLimiter,
+			LuceneQueryCache queryCache, ExecutorService searchExecutor, Runnable refreshTask) {
 		try {
 
 			this.path = path;
 			this.name = name;
 
 			// Open or create directory
-			FSDirectory fsDirectory = FSDirectory.open(path);
-			this.directory = new NRTCachingDirectory(fsDirectory, maxMergeMB, maxCachedMB);
+			this.directory = directoryType.open(path, preloadExtensions, maxMergeMB, maxCachedMB);
+			if (mergeRateLimiter != null) {
+				this.throttledDirectory = new MergeThrottledDirectory(directory, mergeRateLimiter);
+				this.directory = throttledDirectory;
+			}
+			this.mergeScheduler = new LuceneMergeScheduler(mergeThreads, mergeRateLimiter != null);
+			if (mergePolicy instanceof SortingMergePolicy) {
+				this.indexSort = ((SortingMergePolicy) mergePolicy).getSort();
+			}
 
 			// Setup index writer
 			IndexWriterConfig indexWriterConfig = new IndexWriterConfig(analyzer);
 			indexWriterConfig.setRAMBufferSizeMB(ramBufferMB);
 			indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
 			indexWriterConfig.setUseCompoundFile(true);
-			indexWriterConfig.setMergePolicy(new TieredMergePolicy());
+			indexWriterConfig.setMergePolicy(mergePolicy);
+			indexWriterConfig.setMergeScheduler(mergeScheduler);
 			this.indexWriter = new IndexWriter(this.directory, indexWriterConfig);
 
 			// Setup NRT search
@@ -117,27 +165,83 @@ public class LuceneService {
 					if (refreshTask != null) {
 						refreshTask.run();
 					}
-					IndexSearcher searcher = new IndexSearcher(reader);
+					IndexSearcher searcher = searchExecutor == null ? new IndexSearcher(reader)
+							: new SlicedIndexSearcher(reader, searchExecutor);
 					searcher.setSimilarity(new NoIDFSimilarity());
+					if (queryCache != null) {
+						queryCache.configure(searcher);
+					} else {
+						searcher.setQueryCache(null);
+					}
 					return searcher;
 				}
 			};
-			TrackingIndexWriter trackingWriter = new TrackingIndexWriter(this.indexWriter);
+			this.trackingWriter = new TrackingIndexWriter(this.indexWriter);
 			this.searcherManager = new SearcherManager(this.indexWriter, true, searcherFactory);
-			this.searcherReopener = new ControlledRealTimeReopenThread<>(trackingWriter, this.searcherManager, refresh,
-					refresh);
-			this.searcherReopener.start();
+			this.refresher = new NRTRefresher(name, trackingWriter, searcherManager, refresh,
+					Math.min(minRefresh, refresh));
+			this.refresher.start();
 
 			// Register JMX MBean
-			// mbean = new ObjectName(mbeanName);
-			// ManagementFactory.getPlatformMBeanServer().registerMBean(service,
-			// this.mbean);
+			this.mbean = new ObjectName(mbeanName);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(mbean)) {
+				logger.warn("Replacing already registered MBean {}", mbeanName);
+				server.unregisterMBean(mbean);
+			}
+			server.registerMBean(this, mbean);
 
 		} catch (Exception e) {
 			throw new FhirIndexException(e, "Error while creating index %s", name);
 		}
 	}
 
+	/**
+	 * Returns a new {@link TieredMergePolicy} with the specified settings. The
+	 * max number of segments merged at once is bounded by the segments per
+	 * tier, otherwise merges would be more frequent than needed.
+	 *
+	 * @param segmentsPerTier
+	 *            the number of segments of similar size allowed per tier
+	 * @param maxMergedSegmentMB
+	 *            the max size of the segments produced by normal merges, in MB
+	 * @param compoundFileRatio
+	 *            the max size of a merged segment using a compound file, as a
+	 *            ratio of the total index size
+	 * @param expungeDeletesRatio
+	 *            the ratio of deleted documents of the segments merged by
+	 *            {@link #forceMergeDeletes(boolean)}, zero means Lucene's
+	 *            default
+	 * @return the merge policy
+	 */
+	public static TieredMergePolicy mergePolicy(double segmentsPerTier, int maxMergedSegmentMB,
+			double compoundFileRatio, double expungeDeletesRatio) {
+		TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(segmentsPerTier);
+		mergePolicy.setMaxMergeAtOnce(Math.min(mergePolicy.getMaxMergeAtOnce(), (int) segmentsPerTier));
+		mergePolicy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+		mergePolicy.setNoCFSRatio(compoundFileRatio);
+		if (expungeDeletesRatio > 0) {
+			mergePolicy.setForceMergeDeletesPctAllowed(expungeDeletesRatio * 100);
+		}
+		return mergePolicy;
+	}
+
+	/**
+	 * Returns the specified merge policy sorting the merged segments by the
+	 * specified {@link Sort}. Flushed segments keep the arrival order until
+	 * they are merged.
+	 *
+	 * @param mergePolicy
+	 *            the merge policy selecting the segments to be merged
+	 * @param sort
+	 *            the sort of the merged segments
+	 * @return the sorting merge policy
+	 */
+	public static MergePolicy mergePolicy(MergePolicy mergePolicy, Sort sort) {
+		return new SortingMergePolicy(mergePolicy, sort);
+	}
+
 	/**
 	 * Upserts the specified {@link Document} by first deleting the documents
 	 * containing {@code Term} and then adding the new document. The delete and
@@ -148,11 +252,13 @@ public class LuceneService {
 	 *            the {@link Term} to identify the document(s) to be deleted
 	 * @param document
 	 *            the {@link Document} to be added
+	 * @return the generation of the write, see
+	 *         {@link #waitForGeneration(long, long)}
 	 */
-	public void upsert(Term term, Document document) {
+	public long upsert(Term term, Document document) {
 		logger.debug("Indexing {} with term {} in {}", document, term, name);
 		try {
-			indexWriter.updateDocument(term, document);
+			return refresher.written(trackingWriter.updateDocument(term, document));
 		} catch (Exception e) {
 			throw new FhirIndexException(e, "Error indexing %s with term %s in %s", document, term, name);
 		}
@@ -163,11 +269,13 @@ public class LuceneService {
 	 *
 	 * @param term
 	 *            the {@link Term} identifying the documents to be deleted
+	 * @return the generation of the write, see
+	 *         {@link #waitForGeneration(long, long)}
 	 */
-	public void delete(Term term) {
+	public long delete(Term term) {
 		logger.debug("Deleting {} from {}", term, name);
 		try {
-			indexWriter.deleteDocuments(term);
+			return refresher.written(trackingWriter.deleteDocuments(term));
 		} catch (Exception e) {
 			throw new FhirIndexException(e, "Error deleting %s from %s", term, name);
 		}
@@ -178,11 +286,13 @@ public class LuceneService {
 	 *
 	 * @param query
 	 *            the {@link Query} identifying the documents to be deleted
+	 * @return the generation of the write, see
+	 *         {@link #waitForGeneration(long, long)}
 	 */
-	public void delete(Query query) {
+	public long delete(Query query) {
 		logger.debug("Deleting {} from {}", query, name);
 		try {
-			indexWriter.deleteDocuments(query);
+			return refresher.written(trackingWriter.deleteDocuments(query));
 		} catch (Exception e) {
 			throw new FhirIndexException(e, "Error deleting %s from %s", query, name);
 		}
@@ -193,7 +303,7 @@ public class LuceneService {
 	 */
 	public void truncate() {
 		try {
-			indexWriter.deleteAll();
+			refresher.written(trackingWriter.deleteAll());
 		} catch (Exception e) {
 			throw new FhirIndexException(e, "Error truncating %s", name);
 		}
@@ -213,23 +323,61 @@ public class LuceneService {
 		logger.debug("Committed {}", name);
 	}
 
+	/**
+	 * Commits the pending changes, storing the specified user data in the
+	 * commit. The data is kept in the following commits until it is replaced.
+	 *
+	 * @param commitData
+	 *            the data to be stored in the commit
+	 */
+	public void commit(Map<String, String> commitData) {
+		try {
+			indexWriter.setCommitData(commitData);
+			indexWriter.commit();
+		} catch (Exception e) {
+			throw new FhirIndexException(e, "Error committing %s", name);
+		}
+		logger.debug("Committed {} with {}", name, commitData);
+	}
+
+	/**
+	 * Returns the user data stored in the last commit.
+	 *
+	 * @return the last commit data
+	 */
+	public Map<String, String> getCommitData() {
+		return indexWriter.getCommitData();
+	}
+
 	/**
 	 * Commits all changes to the index, waits for pending merges to complete,
 	 * and closes all associated resources.
 	 */
 	public void close() {
 		try {
-			searcherReopener.interrupt();
+			refresher.close();
 			searcherManager.close();
 			indexWriter.close();
 			directory.close();
-			// ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
 		} catch (Exception e) {
 			throw new FhirIndexException(e, "Error closing %s", name);
+		} finally {
+			unregisterMBean();
 		}
 		logger.info("Closed {}", name);
 	}
 
+	private void unregisterMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (mbean != null && server.isRegistered(mbean)) {
+				server.unregisterMBean(mbean);
+			}
+		} catch (Exception e) {
+			logger.error("Error unregistering MBean {}", mbean, e);
+		}
+	}
+
 	/**
 	 * Closes the index and removes all its files.
 	 */
@@ -264,7 +412,79 @@ public class LuceneService {
 	public LuceneDocumentIterator search(Query query, Sort sort, ScoreDoc after, Integer count, Set<String> fields) {
 		logger.debug("Searching in {}\n" + "count: {}\n" + "after: {}\n" + "query: {}\n" + " sort: {}", name, count,
 				after, query, sort);
-		return new LuceneDocumentIterator(searcherManager, query, sort, after, count, fields);
+		return new LuceneDocumentIterator(searcherManager(), query, sort, after, count, fields, indexSort);
+	}
+
+	/**
+	 * Returns the {@link Sort} of the merged segments of this index.
+	 *
+	 * @return the index sort, {@code null} if segments are not sorted
+	 */
+	public Sort getIndexSort() {
+		return indexSort;
+	}
+
+	/**
+	 * Returns the {@link SearcherManager} of this index to be used in a
+	 * search. The search is recorded to adapt the refresh frequency.
+	 *
+	 * @return the NRT searcher manager
+	 */
+	SearcherManager searcherManager() {
+		refresher.searched();
+		return searcherManager;
+	}
+
+	/**
+	 * Returns the generation of the last write in this index. Waiting for this
+	 * generation makes visible all the writes done before calling this method.
+	 *
+	 * @return the last write generation
+	 */
+	public long getWrittenGeneration() {
+		return refresher.getWrittenGeneration();
+	}
+
+	/**
+	 * Requests the searchers to see the writes of the specified generation
+	 * sooner than the refresh frequency, without waiting for it.
+	 *
+	 * @param generation
+	 *            the generation returned by a write
+	 */
+	public void requestGeneration(long generation) {
+		refresher.requestGeneration(generation);
+	}
+
+	/**
+	 * Waits until the searchers see the writes of the specified generation.
+	 * The searchers are reopened sooner than the refresh frequency while
+	 * there are searches waiting.
+	 *
+	 * @param generation
+	 *            the generation returned by a write
+	 * @param timeoutMillis
+	 *            the max time to wait, in milliseconds
+	 * @return {@code true} if the generation is searchable, {@code false} if
+	 *         the timeout has elapsed
+	 */
+	public boolean waitForGeneration(long generation, long timeoutMillis) {
+		try {
+			return refresher.waitForGeneration(generation, timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FhirIndexException(e, "Interrupted while waiting for generation %s in %s", generation, name);
+		}
+	}
+
+	/**
+	 * Returns the {@link NRTRefresher} of this index, providing the reopen
+	 * latency and staleness metrics.
+	 *
+	 * @return the NRT refresher
+	 */
+	public NRTRefresher getRefresher() {
+		return refresher;
 	}
 
 	/**
@@ -272,7 +492,7 @@ public class LuceneService {
 	 *
 	 * @return the number of {@link Document}s
 	 */
-
+	@Override
 	public long getNumDocs() {
 		logger.debug("Getting {} num docs", name);
 		try {
@@ -292,7 +512,7 @@ public class LuceneService {
 	 *
 	 * @return the number of deleted {@link Document}s
 	 */
-
+	@Override
 	public long getNumDeletedDocs() {
 		logger.debug("Getting %s num deleted docs", name);
 		try {
@@ -307,6 +527,185 @@ public class LuceneService {
 		}
 	}
 
+	/**
+	 * Returns the number of segments of the current index reader.
+	 *
+	 * @return the number of segments
+	 */
+	@Override
+	public int getSegmentCount() {
+		try {
+			IndexSearcher searcher = searcherManager.acquire();
+			try {
+				return searcher.getIndexReader().leaves().size();
+			} finally {
+				searcherManager.release(searcher);
+			}
+		} catch (Exception e) {
+			throw new FhirIndexException(e, "Error getting %s segment count", name);
+		}
+	}
+
+	/**
+	 * Returns the number of segments of the current index reader sorted by
+	 * the index sort. Flushed segments are not sorted until they are merged.
+	 *
+	 * @return the number of sorted segments, zero if the index is not sorted
+	 */
+	@Override
+	public int getSortedSegmentCount() {
+		if (indexSort == null) {
+			return 0;
+		}
+		try {
+			IndexSearcher searcher = searcherManager.acquire();
+			try {
+				int count = 0;
+				for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+					if (SortingMergePolicy.isSorted(leaf.reader(), indexSort)) {
+						count++;
+					}
+				}
+				return count;
+			} finally {
+				searcherManager.release(searcher);
+			}
+		} catch (Exception e) {
+			throw new FhirIndexException(e, "Error getting %s sorted segment count", name);
+		}
+	}
+
+	/**
+	 * Returns the highest ratio of deleted documents of the segments of the
+	 * current index reader.
+	 *
+	 * @return the max segment deleted documents ratio
+	 */
+	@Override
+	public double getMaxSegmentDeletedRatio() {
+		try {
+			IndexSearcher searcher = searcherManager.acquire();
+			try {
+				double max = 0;
+				for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+					LeafReader reader = leaf.reader();
+					if (reader.maxDoc() > 0) {
+						max = Math.max(max, (double) reader.numDeletedDocs() / reader.maxDoc());
+					}
+				}
+				return max;
+			} finally {
+				searcherManager.release(searcher);
+			}
+		} catch (Exception e) {
+			throw new FhirIndexException(e, "Error getting %s segments deleted ratio", name);
+		}
+	}
+
+	/**
+	 * Returns the number of background expunges of deleted documents.
+	 *
+	 * @return the number of expunges
+	 */
+	@Override
+	public long getExpunges() {
+		return expunges.get();
+	}
+
+	/**
+	 * Expunges the deleted documents of the segments having at least the
+	 * specified ratio of deleted documents, if any. The merges run in the
+	 * merge threads, throttled as any other merge, and this method waits for
+	 * them. The merged segments are visible to searches right away, and they
+	 * are persisted by the next commit.
+	 *
+	 * @param ratio
+	 *            the min ratio of deleted documents of the merged segments
+	 * @return {@code true} if any segment has been merged
+	 */
+	public boolean expungeDeletes(double ratio) {
+		double maxRatio = getMaxSegmentDeletedRatio();
+		if (maxRatio < ratio) {
+			return false;
+		}
+		logger.info("Expunging deleted documents of {}, max segment deleted ratio {}", name, maxRatio);
+		long start = System.nanoTime();
+		try {
+			indexWriter.forceMergeDeletes(true);
+			searcherManager.maybeRefresh();
+		} catch (Exception e) {
+			throw new FhirIndexException(e, "Error expunging %s deleted documents", name);
+		}
+		expunges.incrementAndGet();
+		logger.info("Expunged deleted documents of {} in {} ms", name,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return true;
+	}
+
+	/**
+	 * Returns the RAM used by the index writer buffered documents and
+	 * deletions, in bytes.
+	 *
+	 * @return the used RAM buffer in bytes
+	 */
+	@Override
+	public long getRamBufferUsedBytes() {
+		return indexWriter.ramBytesUsed();
+	}
+
+	/**
+	 * Returns the number of finished segment merges.
+	 *
+	 * @return the number of merges
+	 */
+	@Override
+	public long getMerges() {
+		return mergeScheduler.getMerges();
+	}
+
+	/**
+	 * Returns the number of segment merges running now.
+	 *
+	 * @return the number of running merges
+	 */
+	@Override
+	public int getRunningMerges() {
+		return mergeScheduler.mergeThreadCount();
+	}
+
+	/**
+	 * Returns the total duration of the finished segment merges, in
+	 * milliseconds.
+	 *
+	 * @return the merge time in milliseconds
+	 */
+	@Override
+	public long getMergeTimeMillis() {
+		return mergeScheduler.getMergeTimeMillis();
+	}
+
+	/**
+	 * Returns the total size of the segments merged by the finished merges, in
+	 * bytes.
+	 *
+	 * @return the merged bytes
+	 */
+	@Override
+	public long getMergedBytes() {
+		return mergeScheduler.getMergedBytes();
+	}
+
+	/**
+	 * Returns the time the segment merges have been waiting for the merge rate
+	 * limiter, in milliseconds.
+	 *
+	 * @return the throttled time in milliseconds
+	 */
+	@Override
+	public long getMergeThrottledMillis() {
+		return throttledDirectory == null ? 0 : throttledDirectory.getThrottledMillis();
+	}
+
 	/**
 	 * Optimizes the index forcing merge segments leaving the specified number
 	 * of segments. This operation may block until all merging completes.
@@ -318,7 +717,7 @@ public class LuceneService {
 	 *            {@code true} if the call should block until the operation
 	 *            completes
 	 */
-
+	@Override
 	public void forceMerge(int maxNumSegments, boolean doWait) {
 		logger.info("Merging {} segments to {}", name, maxNumSegments);
 		try {
@@ -338,6 +737,7 @@ public class LuceneService {
 	 *            {@code true} if the call should block until the operation
 	 *            completes
 	 */
+	@Override
 	public void forceMergeDeletes(boolean doWait) {
 		logger.info("Merging {} segments with deletions", name);
 		try {
@@ -352,6 +752,7 @@ public class LuceneService {
 	/**
 	 * Refreshes the index readers.
 	 */
+	@Override
 	public void refresh() {
 		logger.debug("Refreshing {} readers...", name);
 		try {
@@ -0,0 +1,127 @@
+package io.puntanegra.fhir.index.lucene;
+
+/**
+ * JMX MBean interface of a {@link LuceneService}, providing the index stats
+ * and the maintenance operations.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public interface LuceneServiceMBean {
+
+	/**
+	 * Returns the total number of documents in the index.
+	 *
+	 * @return the number of documents
+	 */
+	long getNumDocs();
+
+	/**
+	 * Returns the total number of deleted documents in the index.
+	 *
+	 * @return the number of deleted documents
+	 */
+	long getNumDeletedDocs();
+
+	/**
+	 * Returns the number of segments of the index.
+	 *
+	 * @return the number of segments
+	 */
+	int getSegmentCount();
+
+	/**
+	 * Returns the number of segments sorted by the index sort.
+	 *
+	 * @return the number of sorted segments
+	 */
+	int getSortedSegmentCount();
+
+	/**
+	 * Returns the highest ratio of deleted documents of the index segments.
+	 *
+	 * @return the max segment deleted documents ratio
+	 */
+	double getMaxSegmentDeletedRatio();
+
+	/**
+	 * Returns the number of background expunges of deleted documents.
+	 *
+	 * @return the number of expunges
+	 */
+	long getExpunges();
+
+	/**
+	 * Returns the RAM used by the index writer buffered documents and
+	 * deletions, in bytes.
+	 *
+	 * @return the used RAM buffer in bytes
+	 */
+	long getRamBufferUsedBytes();
+
+	/**
+	 * Returns the number of finished segment merges.
+	 *
+	 * @return the number of merges
+	 */
+	long getMerges();
+
+	/**
+	 * Returns the number of segment merges running now.
+	 *
+	 * @return the number of running merges
+	 */
+	int getRunningMerges();
+
+	/**
+	 * Returns the total duration of the finished segment merges, in
+	 * milliseconds.
+	 *
+	 * @return the merge time in milliseconds
+	 */
+	long getMergeTimeMillis();
+
+	/**
+	 * Returns the total size of the segments merged by the finished merges, in
+	 * bytes.
+	 *
+	 * @return the merged bytes
+	 */
+	long getMergedBytes();
+
+	/**
+	 * Returns the time the segment merges have been waiting for the merge rate
+	 * limiter, in milliseconds.
+	 *
+	 * @return the throttled time in milliseconds
+	 */
+	long getMergeThrottledMillis();
+
+	/**
+	 * Optimizes the index forcing merge segments leaving the specified number
+	 * of segments.
+	 *
+	 * @param maxNumSegments
+	 *            the maximum number of segments left in the index after merging
+	 *            finishes
+	 * @param doWait
+	 *            {@code true} if the call should block until the operation
+	 *            completes
+	 */
+	void forceMerge(int maxNumSegments, boolean doWait);
+
+	/**
+	 * Optimizes the index forcing merge of all segments that have deleted
+	 * documents.
+	 *
+	 * @param doWait
+	 *            {@code true} if the call should block until the operation
+	 *            completes
+	 */
+	void forceMergeDeletes(boolean doWait);
+
+	/**
+	 * Commits the pending changes and refreshes the index readers.
+	 */
+	void refresh();
+}
@@ -0,0 +1,133 @@
+package io.puntanegra.fhir.index.lucene;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * {@link Directory} limiting the write rate of the segment merges with a
+ * {@link RateLimiter} of bytes per second. <br>
+ * The rate limiter can be the Cassandra compaction one, so index merges and
+ * SSTable compactions share the {@code compaction_throughput_mb_per_sec}
+ * budget instead of competing for disk I/O. Flushes and commits are never
+ * throttled.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class MergeThrottledDirectory extends FilterDirectory {
+
+	/** The number of bytes written between rate limiter permits requests */
+	static final int CHUNK_BYTES = 64 * 1024;
+
+	private final RateLimiter rateLimiter;
+	private final AtomicLong writtenBytes = new AtomicLong();
+	private final AtomicLong throttledNanos = new AtomicLong();
+
+	/**
+	 * Builds a new {@link MergeThrottledDirectory}.
+	 *
+	 * @param in
+	 *            the throttled directory
+	 * @param rateLimiter
+	 *            the limiter of the merged bytes per second
+	 */
+	public MergeThrottledDirectory(Directory in, RateLimiter rateLimiter) {
+		super(in);
+		this.rateLimiter = rateLimiter;
+	}
+
+	@Override
+	public IndexOutput createOutput(String name, IOContext context) throws IOException {
+		IndexOutput output = in.createOutput(name, context);
+		return context.context == IOContext.Context.MERGE ? new ThrottledIndexOutput(output) : output;
+	}
+
+	/**
+	 * Returns the number of bytes written by merges.
+	 *
+	 * @return the merged bytes
+	 */
+	public long getWrittenBytes() {
+		return writtenBytes.get();
+	}
+
+	/**
+	 * Returns the time the merges have been waiting for the rate limiter, in
+	 * milliseconds.
+	 *
+	 * @return the throttled time in milliseconds
+	 */
+	public long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+	}
+
+	private void acquire(int bytes) {
+		writtenBytes.addAndGet(bytes);
+		double seconds = rateLimiter.acquire(bytes);
+		if (seconds > 0) {
+			throttledNanos.addAndGet((long) (seconds * 1e9));
+		}
+	}
+
+	/**
+	 * {@link IndexOutput} requesting rate limiter permits every
+	 * {@link #CHUNK_BYTES} written bytes.
+	 */
+	private class ThrottledIndexOutput extends IndexOutput {
+
+		private final IndexOutput out;
+		private int pendingBytes;
+
+		ThrottledIndexOutput(IndexOutput out) {
+			super("ThrottledIndexOutput(" + out + ")");
+			this.out = out;
+		}
+
+		private void written(int bytes) {
+			pendingBytes += bytes;
+			if (pendingBytes >= CHUNK_BYTES) {
+				acquire(pendingBytes);
+				pendingBytes = 0;
+			}
+		}
+
+		@Override
+		public void writeByte(byte b) throws IOException {
+			out.writeByte(b);
+			written(1);
+		}
+
+		@Override
+		public void writeBytes(byte[] b, int offset, int length) throws IOException {
+			out.writeBytes(b, offset, length);
+			written(length);
+		}
+
+		@Override
+		public long getFilePointer() {
+			return out.getFilePointer();
+		}
+
+		@Override
+		public long getChecksum() throws IOException {
+			return out.getChecksum();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (pendingBytes > 0) {
+				writtenBytes.addAndGet(pendingBytes);
+				pendingBytes = 0;
+			}
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package io.puntanegra.fhir.index.lucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.puntanegra.fhir.index.FhirIndexException;
+
+/**
+ * Thread reopening the NRT searchers of an index with an adaptive frequency.
+ * <br>
+ * Unlike {@link ControlledRealTimeReopenThread} with a fixed refresh interval,
+ * the reopen interval depends on the index load:
+ * <li>If there are no writes since the last reopen, the searchers are not
+ * reopened.</li>
+ * <li>If a search is waiting for a write generation (read-your-writes), the
+ * searchers are reopened after the min stale time.</li>
+ * <li>If the index has been searched since the last reopen, the searchers are
+ * reopened after the max stale time (the refresh seconds option).</li>
+ * <li>If the index has not been searched since the last reopen, the reopens are
+ * delayed up to {@link #IDLE_BACKOFF} times the max stale time. A search
+ * wakes the thread up, so it doesn't wait for the whole back off.</li>
+ * <p>
+ * The searched write generation is tracked for any refresh, including the
+ * ones not done by this thread, so searches can wait for the generation
+ * returned by a write in the {@link TrackingIndexWriter}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class NRTRefresher extends Thread implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(NRTRefresher.class);
+
+	/** Times the max stale time that reopens are delayed if there are no searches */
+	public static final int IDLE_BACKOFF = 4;
+
+	private final SearcherManager manager;
+	private final TrackingIndexWriter writer;
+	private final long minStaleNanos;
+	private final long maxStaleNanos;
+
+	private final ReentrantLock reopenLock = new ReentrantLock();
+	private final Condition reopenCondition = reopenLock.newCondition();
+	private final ReentrantLock generationLock = new ReentrantLock();
+	private final Condition generationCondition = generationLock.newCondition();
+
+	private volatile boolean finish;
+	private volatile long waitingGen;
+	private volatile long searchingGen;
+	private final AtomicLong writtenGen = new AtomicLong();
+	private long refreshStartGen;
+
+	private volatile long lastReopenNanos = System.nanoTime();
+	private volatile long lastSearchNanos;
+	private final AtomicLong firstPendingWriteNanos = new AtomicLong();
+
+	// Metrics
+	private final AtomicLong reopens = new AtomicLong();
+	private final AtomicLong reopenNanos = new AtomicLong();
+	private volatile long lastReopenLatencyNanos;
+	private volatile long lastStalenessNanos;
+	private volatile LongConsumer reopenListener;
+
+	/**
+	 * Builds a new {@link NRTRefresher}.
+	 *
+	 * @param name
+	 *            the index name, used to name the thread
+	 * @param writer
+	 *            the writer of the index
+	 * @param manager
+	 *            the searcher manager to be refreshed
+	 * @param maxStaleSec
+	 *            the max time a search can see stale data, in seconds
+	 * @param minStaleSec
+	 *            the min time between reopens when a search is waiting for a
+	 *            generation, in seconds
+	 */
+	public NRTRefresher(String name, TrackingIndexWriter writer, SearcherManager manager, double maxStaleSec,
+			double minStaleSec) {
+		super(name + "-refresher");
+		if (minStaleSec > maxStaleSec) {
+			throw new IllegalArgumentException("Min stale time must be lower than max stale time");
+		}
+		this.writer = writer;
+		this.manager = manager;
+		this.maxStaleNanos = (long) (maxStaleSec * TimeUnit.SECONDS.toNanos(1));
+		this.minStaleNanos = (long) (minStaleSec * TimeUnit.SECONDS.toNanos(1));
+		setDaemon(true);
+		manager.addListener(new ReferenceManager.RefreshListener() {
+			@Override
+			public void beforeRefresh() {
+				refreshStartGen = writer.getAndIncrementGeneration();
+			}
+
+			@Override
+			public void afterRefresh(boolean didRefresh) {
+				refreshDone();
+			}
+		});
+	}
+
+	private void refreshDone() {
+		long now = System.nanoTime();
+		generationLock.lock();
+		try {
+			searchingGen = refreshStartGen;
+			long pendingSince = firstPendingWriteNanos.get();
+			if (pendingSince != 0 && !hasPendingWrites() && firstPendingWriteNanos.compareAndSet(pendingSince, 0)) {
+				lastStalenessNanos = now - pendingSince;
+			}
+			generationCondition.signalAll();
+		} finally {
+			generationLock.unlock();
+		}
+	}
+
+	/**
+	 * Records a write in the index.
+	 *
+	 * @param generation
+	 *            the generation returned by the {@link TrackingIndexWriter}
+	 * @return {@code generation}
+	 */
+	public long written(long generation) {
+		writtenGen.accumulateAndGet(generation, Math::max);
+		firstPendingWriteNanos.compareAndSet(0, System.nanoTime());
+		return generation;
+	}
+
+	private boolean hasPendingWrites() {
+		return writtenGen.get() > searchingGen;
+	}
+
+	/**
+	 * Records a search in the index. If the index has pending writes and it has
+	 * not been searched since the last reopen, the searchers are reopened.
+	 */
+	public void searched() {
+		boolean idle = lastSearchNanos <= lastReopenNanos;
+		lastSearchNanos = System.nanoTime();
+		if (idle && hasPendingWrites()) {
+			signal();
+		}
+	}
+
+	private void signal() {
+		reopenLock.lock();
+		try {
+			reopenCondition.signal();
+		} finally {
+			reopenLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the generation of the last write recorded with
+	 * {@link #written(long)}. A search waiting for this generation sees all the
+	 * writes done before calling this method.
+	 *
+	 * @return the last written generation
+	 */
+	public long getWrittenGeneration() {
+		return writtenGen.get();
+	}
+
+	/**
+	 * Waits until the searchers see the writes of the specified generation,
+	 * reopening the searchers as soon as the min stale time allows.
+	 *
+	 * @param targetGen
+	 *            the generation returned by a write
+	 * @param timeoutMillis
+	 *            the max time to wait, in milliseconds
+	 * @return {@code true} if the generation is searchable, {@code false} if
+	 *         the timeout has elapsed
+	 * @throws InterruptedException
+	 *             if the current thread is interrupted while waiting
+	 */
+	public boolean waitForGeneration(long targetGen, long timeoutMillis) throws InterruptedException {
+		if (targetGen > searchingGen) {
+			requestGeneration(targetGen);
+			long nanosLeft = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			generationLock.lock();
+			try {
+				while (targetGen > searchingGen) {
+					if (nanosLeft <= 0) {
+						return false;
+					}
+					nanosLeft = generationCondition.awaitNanos(nanosLeft);
+				}
+			} finally {
+				generationLock.unlock();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Requests the searchers to see the writes of the specified generation as
+	 * soon as the min stale time allows, without waiting for it. This allows to
+	 * request several indexes before waiting for them.
+	 *
+	 * @param targetGen
+	 *            the generation returned by a write
+	 */
+	public void requestGeneration(long targetGen) {
+		if (targetGen > searchingGen) {
+			reopenLock.lock();
+			try {
+				waitingGen = Math.max(waitingGen, targetGen);
+				reopenCondition.signal();
+			} finally {
+				reopenLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the time to wait until the next reopen, in nanoseconds.
+	 */
+	private long nextReopenNanos() {
+		if (waitingGen > searchingGen) {
+			return lastReopenNanos + minStaleNanos;
+		} else if (!hasPendingWrites()) {
+			return Long.MAX_VALUE;
+		} else if (lastSearchNanos > lastReopenNanos) {
+			return lastReopenNanos + maxStaleNanos;
+		} else {
+			return lastReopenNanos + maxStaleNanos * IDLE_BACKOFF;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!finish) {
+			while (!finish) {
+				reopenLock.lock();
+				try {
+					long next = nextReopenNanos();
+					long sleepNanos = next == Long.MAX_VALUE ? maxStaleNanos : next - System.nanoTime();
+					if (next != Long.MAX_VALUE && sleepNanos <= 0) {
+						break;
+					}
+					reopenCondition.awaitNanos(sleepNanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} finally {
+					reopenLock.unlock();
+				}
+			}
+			if (finish) {
+				break;
+			}
+			reopen();
+		}
+	}
+
+	/**
+	 * Reopens the searchers. A failed reopen is logged and retried in the
+	 * following iteration, so it doesn't stop this thread.
+	 */
+	private void reopen() {
+		long start = System.nanoTime();
+		lastReopenNanos = start;
+		try {
+			manager.maybeRefreshBlocking();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Error reopening searchers in " + getName(), e);
+			return;
+		}
+		long latency = System.nanoTime() - start;
+		lastReopenLatencyNanos = latency;
+		reopenNanos.addAndGet(latency);
+		reopens.incrementAndGet();
+		LongConsumer listener = reopenListener;
+		if (listener != null) {
+			listener.accept(latency);
+		}
+		logger.trace("Reopened {} searchers in {} ms", getName(), TimeUnit.NANOSECONDS.toMillis(latency));
+	}
+
+	/**
+	 * Sets the listener to be notified with the latency of each reopen, in
+	 * nanoseconds.
+	 *
+	 * @param listener
+	 *            the reopen latency listener, {@code null} means none
+	 */
+	public void setReopenListener(LongConsumer listener) {
+		this.reopenListener = listener;
+	}
+
+	/**
+	 * Stops this thread.
+	 */
+	@Override
+	public void close() {
+		finish = true;
+		signal();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FhirIndexException(e, "Interrupted while closing %s", getName());
+		}
+	}
+
+	/**
+	 * Returns the number of reopens done by this thread.
+	 *
+	 * @return the number of reopens
+	 */
+	public long getReopens() {
+		return reopens.get();
+	}
+
+	/**
+	 * Returns the latency of the last reopen, in milliseconds.
+	 *
+	 * @return the last reopen latency
+	 */
+	public double getLastReopenMillis() {
+		return lastReopenLatencyNanos / 1e6;
+	}
+
+	/**
+	 * Returns the mean latency of the reopens, in milliseconds.
+	 *
+	 * @return the mean reopen latency
+	 */
+	public double getMeanReopenMillis() {
+		long count = reopens.get();
+		return count == 0 ? 0 : reopenNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * Returns the age of the oldest write not visible to searches, in seconds.
+	 *
+	 * @return the current staleness, {@code 0} if all writes are searchable
+	 */
+	public double getStalenessSeconds() {
+		long pendingSince = firstPendingWriteNanos.get();
+		return pendingSince == 0 || !hasPendingWrites() ? 0 : (System.nanoTime() - pendingSince) / 1e9;
+	}
+
+	/**
+	 * Returns the time between the oldest write and the reopen that made it
+	 * searchable, in seconds, for the last reopen that published pending writes.
+	 *
+	 * @return the last staleness
+	 */
+	public double getLastStalenessSeconds() {
+		return lastStalenessNanos / 1e9;
+	}
+}
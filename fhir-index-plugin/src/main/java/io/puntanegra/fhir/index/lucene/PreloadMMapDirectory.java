@@ -0,0 +1,72 @@
+package io.puntanegra.fhir.index.lucene;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NoLockFactory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * {@link MMapDirectory} preloading into the page cache only the files with the
+ * specified extensions, such as the term dictionaries ({@code tim} and
+ * {@code tip}) and the doc values ({@code dvd} and {@code dvm}), so the first
+ * searches don't wait for their pages to be read from disk. <br>
+ * The preloaded files are opened by a second {@link MMapDirectory} in the same
+ * path, without locking, while the writes and the locks go to the main one.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class PreloadMMapDirectory extends FilterDirectory {
+
+	/** The extension matching all the files */
+	public static final String ALL_EXTENSIONS = "*";
+
+	private final MMapDirectory preloaded;
+	private final Set<String> extensions;
+
+	/**
+	 * Builds a new {@link PreloadMMapDirectory}.
+	 *
+	 * @param path
+	 *            the directory path
+	 * @param extensions
+	 *            the extensions of the files to be preloaded, without the dot,
+	 *            {@link #ALL_EXTENSIONS} means all the files
+	 * @throws IOException
+	 *             if the directory can't be opened
+	 */
+	public PreloadMMapDirectory(Path path, Set<String> extensions) throws IOException {
+		super(new MMapDirectory(path));
+		this.preloaded = new MMapDirectory(path, NoLockFactory.INSTANCE);
+		this.preloaded.setPreload(true);
+		this.extensions = extensions;
+	}
+
+	/**
+	 * Returns if the file with the specified name is preloaded when opened.
+	 *
+	 * @param name
+	 *            the file name
+	 * @return {@code true} if the file is preloaded
+	 */
+	public boolean isPreloaded(String name) {
+		return extensions.contains(ALL_EXTENSIONS) || extensions.contains(IndexFileNames.getExtension(name));
+	}
+
+	@Override
+	public IndexInput openInput(String name, IOContext context) throws IOException {
+		return isPreloaded(name) ? preloaded.openInput(name, context) : in.openInput(name, context);
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOUtils.close(in, preloaded);
+	}
+}
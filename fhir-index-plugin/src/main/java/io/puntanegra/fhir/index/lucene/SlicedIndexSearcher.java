@@ -0,0 +1,69 @@
+package io.puntanegra.fhir.index.lucene;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * {@link IndexSearcher} searching groups of segments concurrently with an
+ * {@link ExecutorService}. <br>
+ * Lucene creates a slice per segment by default, so an index with many small
+ * segments produces many tiny tasks. Here consecutive segments are grouped in
+ * slices of up to {@link #MAX_DOCS_PER_SLICE} documents and
+ * {@link #MAX_SEGMENTS_PER_SLICE} segments, so each task does a similar amount
+ * of work and big segments get their own slice. Slices keep the segments order,
+ * so hits with the same score are still merged in document order, as required
+ * by paging.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class SlicedIndexSearcher extends IndexSearcher {
+
+	/** The max number of documents in a slice of several segments */
+	public static final int MAX_DOCS_PER_SLICE = 250_000;
+
+	/** The max number of segments in a slice */
+	public static final int MAX_SEGMENTS_PER_SLICE = 5;
+
+	/**
+	 * Builds a new {@link SlicedIndexSearcher}.
+	 *
+	 * @param reader
+	 *            the index reader
+	 * @param executor
+	 *            the executor searching the slices
+	 */
+	public SlicedIndexSearcher(IndexReader reader, ExecutorService executor) {
+		super(reader, executor);
+	}
+
+	@Override
+	protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+		List<LeafSlice> slices = new ArrayList<>();
+		List<LeafReaderContext> group = new ArrayList<>();
+		long docs = 0;
+		for (LeafReaderContext leaf : leaves) {
+			int maxDoc = leaf.reader().maxDoc();
+			if (!group.isEmpty() && (docs + maxDoc > MAX_DOCS_PER_SLICE || group.size() == MAX_SEGMENTS_PER_SLICE)) {
+				slices.add(slice(group));
+				group.clear();
+				docs = 0;
+			}
+			group.add(leaf);
+			docs += maxDoc;
+		}
+		if (!group.isEmpty()) {
+			slices.add(slice(group));
+		}
+		return slices.toArray(new LeafSlice[slices.size()]);
+	}
+
+	private static LeafSlice slice(List<LeafReaderContext> leaves) {
+		return new LeafSlice(leaves.toArray(new LeafReaderContext[leaves.size()]));
+	}
+}
@@ -9,6 +9,8 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import ca.uhn.fhir.context.FhirVersionEnum;
 import io.puntanegra.fhir.index.config.ResourceOptions;
+import io.puntanegra.fhir.index.metrics.IndexingTrace;
+import io.puntanegra.fhir.index.metrics.IndexingTrace.Phase;
 import io.puntanegra.fhir.index.search.SearchParamExtractorHelper;
 import io.puntanegra.fhir.index.search.datatypes.AbstractSearchParam;
 import io.puntanegra.fhir.index.search.datatypes.SearchParamString;
@@ -26,6 +28,9 @@ import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
  */
 public class FhirMapper {
 
+	/** The Lucene field containing the FHIR Resource type */
+	public static final String RESOURCE_TYPE_FIELD = "resource_type";
+
 	private ResourceOptions searchOptions;
 
 	private SearchParamExtractorHelper fhirExtractor;
@@ -44,18 +49,44 @@ public class FhirMapper {
 	 *            the FHIR resource as JSON format.
 	 */
 	public void addFields(Document document, String json) {
+		addFields(document, json, null);
+	}
 
+	/**
+	 * Parses Json FHIR Resource and converts to Lucene {@link Field}s, adding
+	 * the time spent in parsing, extraction and field creation to the
+	 * specified trace.
+	 * 
+	 * @param document,
+	 *            the Lucene {@link Document}.
+	 * @param json,
+	 *            the FHIR resource as JSON format.
+	 * @param trace
+	 *            the indexing trace, {@code null} means no tracing
+	 */
+	public void addFields(Document document, String json, IndexingTrace trace) {
+		long start = System.nanoTime();
 		IBaseResource resourceInstance = this.fhirExtractor.parseResource(json);
 		String resourceName = resourceInstance.getClass().getSimpleName();
+		if (trace != null) {
+			trace.setResourceType(resourceName);
+			start = trace.add(Phase.PARSE, start);
+		}
 
 		Set<String> parameters = this.searchOptions.resources.get(resourceName);
-		Set<AbstractSearchParam> values = this.fhirExtractor.extractParametersValues(resourceInstance, parameters);
+		Set<AbstractSearchParam> values = this.fhirExtractor.extractParametersValues(resourceInstance, parameters,
+				trace);
+		if (trace != null) {
+			start = trace.add(Phase.EXTRACT, start);
+		}
 		for (AbstractSearchParam entry : values) {
 			doAddFields(document, entry, false);
 		}
 
-		doAddFields(document, new SearchParamString("resource_type", "", SearchParamTypes.STRING, resourceName), false);
-
+		doAddFields(document, new SearchParamString(RESOURCE_TYPE_FIELD, "", SearchParamTypes.STRING, resourceName), false);
+		if (trace != null) {
+			trace.add(Phase.FIELDS, start);
+		}
 	}
 
 	/**
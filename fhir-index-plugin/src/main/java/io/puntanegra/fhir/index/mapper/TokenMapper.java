@@ -31,7 +31,11 @@ import org.apache.lucene.document.LongField;
 import org.apache.lucene.index.DocValuesType;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
@@ -125,6 +129,37 @@ public final class TokenMapper {
 		return new SortField(FIELD_NAME, SortField.Type.LONG);
 	}
 
+	/**
+	 * Returns a Lucene {@link Sort} for sorting documents/rows according to
+	 * the partitioner's order, as used by the indexes sorted by token.
+	 *
+	 * @return a sort by token
+	 */
+	public static Sort sort() {
+		return new Sort(new SortField(FIELD_NAME, SortField.Type.LONG));
+	}
+
+	/**
+	 * Returns if the specified {@link Query} is a range of tokens, or a boolean
+	 * query requiring one.
+	 *
+	 * @param query
+	 *            a query
+	 * @return {@code true} if {@code query} selects a token range
+	 */
+	public static boolean isTokenRange(Query query) {
+		if (query instanceof NumericRangeQuery) {
+			return FIELD_NAME.equals(((NumericRangeQuery<?>) query).getField());
+		} else if (query instanceof BooleanQuery) {
+			for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+				if (clause.isRequired() && isTokenRange(clause.getQuery())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Returns if the specified lower partition position must be included in a
 	 * filtered range.
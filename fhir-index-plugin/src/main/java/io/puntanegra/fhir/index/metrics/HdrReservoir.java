@@ -0,0 +1,157 @@
+package io.puntanegra.fhir.index.metrics;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * Metrics {@link Reservoir} backed by HDR histograms, so percentiles keep
+ * three significant digits for any latency without sampling. <br>
+ * Values are recorded without locks in a {@link Recorder}. Snapshots contain
+ * the values of the current window and of the previous one, if it has just
+ * ended, so they reflect the recent latencies. Windows are rotated by elapsed
+ * time when a snapshot is read, and the values recorded since the last read
+ * are assigned to the current window. Each snapshot is computed on demand, so
+ * the recording cost doesn't depend on how often the metrics are read.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class HdrReservoir implements Reservoir {
+
+	/** The number of significant value digits of the histograms */
+	public static final int SIGNIFICANT_DIGITS = 3;
+
+	/** The default duration of each window, in seconds */
+	public static final long DEFAULT_WINDOW_SECONDS = 60;
+
+	private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+	private final long windowNanos;
+
+	private Histogram interval;
+	private Histogram current = new Histogram(SIGNIFICANT_DIGITS);
+	private Histogram previous = new Histogram(SIGNIFICANT_DIGITS);
+	private long currentStartNanos = System.nanoTime();
+
+	/**
+	 * Builds a new {@link HdrReservoir} with the default window.
+	 */
+	public HdrReservoir() {
+		this(DEFAULT_WINDOW_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Builds a new {@link HdrReservoir}.
+	 *
+	 * @param window
+	 *            the duration of each window
+	 * @param unit
+	 *            the time unit of {@code window}
+	 */
+	public HdrReservoir(long window, TimeUnit unit) {
+		this.windowNanos = unit.toNanos(window);
+	}
+
+	@Override
+	public void update(long value) {
+		recorder.recordValue(Math.max(0, value));
+	}
+
+	@Override
+	public int size() {
+		return getSnapshot().size();
+	}
+
+	@Override
+	public synchronized Snapshot getSnapshot() {
+		long now = System.nanoTime();
+		long windows = (now - currentStartNanos) / windowNanos;
+		if (windows == 1) {
+			Histogram recycled = previous;
+			previous = current;
+			current = recycled;
+			current.reset();
+		} else if (windows > 1) {
+			previous.reset();
+			current.reset();
+		}
+		currentStartNanos += windows * windowNanos;
+		interval = recorder.getIntervalHistogram(interval);
+		current.add(interval);
+		Histogram histogram = previous.copy();
+		histogram.add(current);
+		return new HdrSnapshot(histogram);
+	}
+
+	/**
+	 * {@link Snapshot} of an HDR histogram.
+	 */
+	static class HdrSnapshot extends Snapshot {
+
+		private final Histogram histogram;
+
+		HdrSnapshot(Histogram histogram) {
+			this.histogram = histogram;
+		}
+
+		@Override
+		public double getValue(double quantile) {
+			return histogram.getValueAtPercentile(quantile * 100);
+		}
+
+		@Override
+		public long[] getValues() {
+			long[] values = new long[size()];
+			int i = 0;
+			for (HistogramIterationValue value : histogram.recordedValues()) {
+				for (long j = 0; j < value.getCountAtValueIteratedTo() && i < values.length; j++) {
+					values[i++] = histogram.highestEquivalentValue(value.getValueIteratedTo());
+				}
+			}
+			return values;
+		}
+
+		@Override
+		public int size() {
+			return (int) Math.min(Integer.MAX_VALUE, histogram.getTotalCount());
+		}
+
+		@Override
+		public long getMax() {
+			return histogram.getTotalCount() == 0 ? 0 : histogram.getMaxValue();
+		}
+
+		@Override
+		public double getMean() {
+			return histogram.getTotalCount() == 0 ? 0 : histogram.getMean();
+		}
+
+		@Override
+		public long getMin() {
+			return histogram.getTotalCount() == 0 ? 0 : histogram.getMinValue();
+		}
+
+		@Override
+		public double getStdDev() {
+			return histogram.getTotalCount() == 0 ? 0 : histogram.getStdDeviation();
+		}
+
+		@Override
+		public void dump(OutputStream output) {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			for (long value : getValues()) {
+				writer.println(value);
+			}
+			writer.flush();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package io.puntanegra.fhir.index.metrics;
+
+import static org.apache.cassandra.metrics.CassandraMetricsRegistry.Metrics;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.cassandra.metrics.CassandraMetricsRegistry.MetricName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+
+import io.puntanegra.fhir.index.metrics.QueryTrace.Phase;
+import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
+
+/**
+ * Metrics of a FHIR index, registered in the Cassandra metrics registry so
+ * they are exported through JMX and the Cassandra metrics reporters along with
+ * the table metrics. <br>
+ * Metric names follow the Cassandra conventions, with the group
+ * {@value #GROUP}, the type {@value #TYPE} and the scope
+ * {@code <keyspace>.<table>.<index>}. The JMX object names are
+ * {@code io.puntanegra.fhir.index:type=FhirIndex,keyspace=<keyspace>,table=<table>,index=<index>,name=<metric>}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class IndexMetrics {
+
+	private static final Logger logger = LoggerFactory.getLogger(IndexMetrics.class);
+
+	/** The group of the metric names */
+	public static final String GROUP = "io.puntanegra.fhir.index";
+
+	/** The type of the metric names */
+	public static final String TYPE = "FhirIndex";
+
+	/** The JMX object name key of the metrics by resource type */
+	public static final String RESOURCE_TYPE_LABEL = "resource";
+
+	/** The JMX object name key of the metrics by search parameter type */
+	public static final String PARAM_TYPE_LABEL = "param_type";
+
+	/** The JMX object name key of the metrics by indexing thread */
+	public static final String THREAD_LABEL = "thread";
+
+	private final String keyspace;
+	private final String table;
+	private final String index;
+	private final List<MetricName> names = new ArrayList<>();
+
+	/** Latency of the Lucene commits */
+	public final Timer commit;
+
+	/** Latency of the Lucene searcher reopens */
+	public final Timer refresh;
+
+	/** Latency of the searches, from the query parsing to the last read */
+	public final Timer query;
+
+	/** Time spent by each search in each one of its phases */
+	private final Map<Phase, Timer> phases = new EnumMap<>(Phase.class);
+
+	/** Latency of the coordinator post processing of the searches */
+	public final Timer postProcess;
+
+	/** Number of partitions read per query */
+	public final Histogram searchPartitions;
+
+	/** Latency of the indexing of a row, from the JSON parsing to the upsert */
+	public final Timer indexing;
+
+	/** Time spent indexing each row in each one of the indexing phases */
+	private final Map<IndexingTrace.Phase, Timer> indexingPhases = new EnumMap<>(IndexingTrace.Phase.class);
+
+	/** Latency of the read-before-write of the updated partitions */
+	public final Timer readBeforeWrite;
+
+	/** The metrics by resource type or search parameter type, created on use */
+	private final Map<String, Metric> labeled = new ConcurrentHashMap<>();
+
+	/**
+	 * Builds and registers the metrics of the specified index.
+	 *
+	 * @param keyspace
+	 *            the keyspace name
+	 * @param table
+	 *            the indexed table name
+	 * @param index
+	 *            the index name
+	 */
+	public IndexMetrics(String keyspace, String table, String index) {
+		this.keyspace = keyspace;
+		this.table = table;
+		this.index = index;
+		commit = timer("CommitLatency");
+		refresh = timer("RefreshLatency");
+		query = timer("QueryLatency");
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, timer(phase.metricName + "Latency"));
+		}
+		postProcess = timer("PostProcessLatency");
+		searchPartitions = register("SearchPartitions", new Histogram(new HdrReservoir()));
+		indexing = timer("IndexingLatency");
+		for (IndexingTrace.Phase phase : IndexingTrace.Phase.values()) {
+			indexingPhases.put(phase, timer("Indexing" + phase.metricName + "Latency"));
+		}
+		readBeforeWrite = timer("ReadBeforeWriteLatency");
+	}
+
+	/**
+	 * Registers a timer with the specified name, whose percentiles are
+	 * computed with a {@link HdrReservoir}.
+	 *
+	 * @param name
+	 *            the metric name
+	 * @return the registered timer
+	 */
+	public Timer timer(String name) {
+		return register(name, new Timer(new HdrReservoir()));
+	}
+
+	/**
+	 * Records the total time and the time of each phase of the specified
+	 * finished search.
+	 *
+	 * @param trace
+	 *            the search trace
+	 */
+	public void record(QueryTrace trace) {
+		query.update(trace.getElapsedNanos(), TimeUnit.NANOSECONDS);
+		phases.forEach((phase, timer) -> timer.update(trace.getNanos(phase), TimeUnit.NANOSECONDS));
+		searchPartitions.update(trace.getPartitions());
+	}
+
+	/**
+	 * Records the total time and the time of each phase of the specified
+	 * indexed row, both for all the rows and for the rows of its resource
+	 * type. The time and the number of values of each search parameter
+	 * extractor are recorded by search parameter type.
+	 *
+	 * @param trace
+	 *            the row indexing trace
+	 */
+	public void record(IndexingTrace trace) {
+		long elapsed = trace.getElapsedNanos();
+		String type = trace.getResourceType();
+		indexing.update(elapsed, TimeUnit.NANOSECONDS);
+		if (type != null) {
+			labeledTimer("IndexingLatency", RESOURCE_TYPE_LABEL, type).update(elapsed, TimeUnit.NANOSECONDS);
+		}
+		indexingPhases.forEach((phase, timer) -> {
+			long nanos = trace.getNanos(phase);
+			timer.update(nanos, TimeUnit.NANOSECONDS);
+			if (type != null) {
+				labeledTimer("Indexing" + phase.metricName + "Latency", RESOURCE_TYPE_LABEL, type).update(nanos,
+						TimeUnit.NANOSECONDS);
+			}
+		});
+		for (SearchParamTypes paramType : SearchParamTypes.values()) {
+			int values = trace.getExtractorValues(paramType);
+			long nanos = trace.getExtractorNanos(paramType);
+			if (values > 0 || nanos > 0) {
+				String name = paramType.name();
+				labeledTimer("ExtractorLatency", PARAM_TYPE_LABEL, name).update(nanos, TimeUnit.NANOSECONDS);
+				labeledCounter("ExtractedValues", PARAM_TYPE_LABEL, name).inc(values);
+			}
+		}
+	}
+
+	private Timer labeledTimer(String name, String label, String value) {
+		return (Timer) labeled.computeIfAbsent(name + '/' + label + '=' + value,
+				key -> register(name(name, label, value), new Timer(new HdrReservoir())));
+	}
+
+	private Counter labeledCounter(String name, String label, String value) {
+		return (Counter) labeled.computeIfAbsent(name + '/' + label + '=' + value,
+				key -> register(name(name, label, value), new Counter()));
+	}
+
+	/**
+	 * Registers a gauge with the specified name, returning the value provided
+	 * by the specified supplier. Errors computing the value are logged and
+	 * reported as {@code null}, so a closing index doesn't break reporters.
+	 *
+	 * @param name
+	 *            the metric name
+	 * @param supplier
+	 *            the gauge value supplier
+	 * @param <T>
+	 *            the type of the gauge value
+	 * @return the registered gauge
+	 */
+	public <T> Gauge<T> gauge(String name, Supplier<T> supplier) {
+		return register(name(name, null, null), gauge(supplier, name));
+	}
+
+	/**
+	 * Registers a gauge with the specified name and label, such as a gauge per
+	 * indexing thread, returning the value provided by the specified supplier.
+	 *
+	 * @param name
+	 *            the metric name
+	 * @param label
+	 *            the JMX object name key of the label
+	 * @param value
+	 *            the label value
+	 * @param supplier
+	 *            the gauge value supplier
+	 * @param <T>
+	 *            the type of the gauge value
+	 * @return the registered gauge
+	 */
+	public <T> Gauge<T> gauge(String name, String label, String value, Supplier<T> supplier) {
+		return register(name(name, label, value), gauge(supplier, name));
+	}
+
+	private <T> Gauge<T> gauge(Supplier<T> supplier, String name) {
+		return (Gauge<T>) () -> {
+			try {
+				return supplier.get();
+			} catch (RuntimeException e) {
+				logger.debug("Error computing metric {} of {}", name, index, e);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Registers the specified metric, replacing any previous metric with the
+	 * same name, such as the ones of a dropped index with the same name.
+	 *
+	 * @param name
+	 *            the metric name
+	 * @param metric
+	 *            the metric to be registered
+	 * @param <T>
+	 *            the type of the metric
+	 * @return the registered metric
+	 */
+	public <T extends Metric> T register(String name, T metric) {
+		return register(name(name, null, null), metric);
+	}
+
+	private synchronized <T extends Metric> T register(MetricName metricName, T metric) {
+		Metrics.remove(metricName);
+		Metrics.register(metricName, metric);
+		if (!names.contains(metricName)) {
+			names.add(metricName);
+		}
+		return metric;
+	}
+
+	private MetricName name(String name, String label, String value) {
+		String scope = keyspace + "." + table + "." + index;
+		String mbeanName = String.format("%s:type=%s,keyspace=%s,table=%s,index=%s", GROUP, TYPE, keyspace, table,
+				index);
+		if (label != null) {
+			scope += "." + value;
+			mbeanName += "," + label + "=" + value;
+		}
+		return new MetricName(GROUP, TYPE, name, scope, mbeanName + ",name=" + name);
+	}
+
+	/**
+	 * Unregisters all the metrics of the index.
+	 */
+	public synchronized void release() {
+		names.forEach(Metrics::remove);
+		names.clear();
+		labeled.clear();
+	}
+}
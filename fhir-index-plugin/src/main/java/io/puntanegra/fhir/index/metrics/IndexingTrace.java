@@ -0,0 +1,151 @@
+package io.puntanegra.fhir.index.metrics;
+
+import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
+
+/**
+ * Time spent indexing a single row in each one of the indexing phases, and in
+ * the search parameter extractor of each search parameter type. <br>
+ * A row is indexed by a single thread, so traces are not thread safe. When the
+ * row has been indexed, the totals are recorded in the index metrics.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class IndexingTrace {
+
+	/**
+	 * The phases of the indexing of a row.
+	 */
+	public enum Phase {
+
+		/** Parsing of the FHIR resource JSON */
+		PARSE("Parse"),
+
+		/** Extraction of the search parameter values with HAPI */
+		EXTRACT("Extract"),
+
+		/** Creation of the Lucene fields of the extracted values */
+		FIELDS("Fields"),
+
+		/** Mapping of the partition and clustering keys to fields and terms */
+		KEY_MAPPING("KeyMapping"),
+
+		/** Lucene document upsert */
+		LUCENE_UPSERT("LuceneUpsert");
+
+		/** The name of the phase in metric names */
+		public final String metricName;
+
+		Phase(String metricName) {
+			this.metricName = metricName;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+	private static final SearchParamTypes[] PARAM_TYPES = SearchParamTypes.values();
+
+	private final long startNanos = System.nanoTime();
+	private final long[] nanos = new long[PHASES.length];
+	private final long[] extractorNanos = new long[PARAM_TYPES.length];
+	private final int[] extractorValues = new int[PARAM_TYPES.length];
+	private String resourceType;
+
+	/**
+	 * Adds the time elapsed since the specified start time to the specified
+	 * phase.
+	 *
+	 * @param phase
+	 *            the phase
+	 * @param startNanos
+	 *            the start of the phase, as returned by
+	 *            {@link System#nanoTime()}
+	 * @return the current time, to be used as the start of the next phase
+	 */
+	public long add(Phase phase, long startNanos) {
+		long now = System.nanoTime();
+		nanos[phase.ordinal()] += now - startNanos;
+		return now;
+	}
+
+	/**
+	 * Adds the time elapsed since the specified start time to the extractor of
+	 * the specified search parameter type, along with the number of extracted
+	 * values.
+	 *
+	 * @param type
+	 *            the search parameter type
+	 * @param startNanos
+	 *            the start of the extraction, as returned by
+	 *            {@link System#nanoTime()}
+	 * @param values
+	 *            the number of extracted values
+	 */
+	public void addExtractor(SearchParamTypes type, long startNanos, int values) {
+		extractorNanos[type.ordinal()] += System.nanoTime() - startNanos;
+		extractorValues[type.ordinal()] += values;
+	}
+
+	/**
+	 * Returns the time spent in the specified phase, in nanoseconds.
+	 *
+	 * @param phase
+	 *            the phase
+	 * @return the time spent in the phase
+	 */
+	public long getNanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	/**
+	 * Returns the time spent in the extractor of the specified search
+	 * parameter type, in nanoseconds.
+	 *
+	 * @param type
+	 *            the search parameter type
+	 * @return the time spent in the extractor
+	 */
+	public long getExtractorNanos(SearchParamTypes type) {
+		return extractorNanos[type.ordinal()];
+	}
+
+	/**
+	 * Returns the number of values extracted by the extractor of the specified
+	 * search parameter type.
+	 *
+	 * @param type
+	 *            the search parameter type
+	 * @return the number of extracted values
+	 */
+	public int getExtractorValues(SearchParamTypes type) {
+		return extractorValues[type.ordinal()];
+	}
+
+	/**
+	 * Returns the time elapsed since the creation of this trace, in
+	 * nanoseconds.
+	 *
+	 * @return the elapsed time
+	 */
+	public long getElapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Returns the FHIR resource type of the indexed row.
+	 *
+	 * @return the resource type, {@code null} if the row has no resource
+	 */
+	public String getResourceType() {
+		return resourceType;
+	}
+
+	/**
+	 * Sets the FHIR resource type of the indexed row.
+	 *
+	 * @param resourceType
+	 *            the resource type
+	 */
+	public void setResourceType(String resourceType) {
+		this.resourceType = resourceType;
+	}
+}
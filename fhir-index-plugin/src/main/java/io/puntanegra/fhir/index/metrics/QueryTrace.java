@@ -0,0 +1,167 @@
+package io.puntanegra.fhir.index.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time spent by a single search in each one of its phases. <br>
+ * Each phase accumulates the time of all its executions during the search,
+ * such as the fetch of each page of hits or the read of each partition. Phases
+ * can be timed concurrently from several threads. When the search finishes,
+ * the totals are recorded in the index metrics.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class QueryTrace {
+
+	/**
+	 * The phases of a search.
+	 */
+	public enum Phase {
+
+		/** Parsing of the search expression into a Lucene query */
+		PARSE("Parse"),
+
+		/** Wait for the previous writes of consistent searches */
+		CONSISTENCY_WAIT("ConsistencyWait"),
+
+		/** Lucene search of the top hits */
+		LUCENE_SEARCH("LuceneSearch"),
+
+		/** Load of the stored fields of the hits */
+		STORED_FIELDS("StoredFields"),
+
+		/** Decoding of the partition and clustering keys of the hits */
+		KEY_DECODING("KeyDecoding"),
+
+		/** Cassandra read of the partitions of the hits */
+		PARTITION_READ("PartitionRead");
+
+		/** The name of the phase in metric names */
+		public final String metricName;
+
+		Phase(String metricName) {
+			this.metricName = metricName;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final long startNanos = System.nanoTime();
+	private final AtomicLongArray nanos = new AtomicLongArray(PHASES.length);
+	private final String expression;
+	private volatile int hits;
+	private volatile int partitions;
+
+	/**
+	 * Builds a new {@link QueryTrace} starting now.
+	 *
+	 * @param expression
+	 *            the search expression, used in the slow query log
+	 */
+	public QueryTrace(String expression) {
+		this.expression = expression;
+	}
+
+	/**
+	 * Returns the search expression.
+	 *
+	 * @return the search expression
+	 */
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Adds the time elapsed since the specified start time to the specified
+	 * phase.
+	 *
+	 * @param phase
+	 *            the phase
+	 * @param startNanos
+	 *            the start of the phase execution, as returned by
+	 *            {@link System#nanoTime()}
+	 * @return the current time, to be used as the start of the next phase
+	 */
+	public long add(Phase phase, long startNanos) {
+		long now = System.nanoTime();
+		nanos.addAndGet(phase.ordinal(), now - startNanos);
+		return now;
+	}
+
+	/**
+	 * Returns the time spent in the specified phase, in nanoseconds.
+	 *
+	 * @param phase
+	 *            the phase
+	 * @return the time spent in the phase
+	 */
+	public long getNanos(Phase phase) {
+		return nanos.get(phase.ordinal());
+	}
+
+	/**
+	 * Returns the time elapsed since the creation of this trace, in
+	 * nanoseconds.
+	 *
+	 * @return the elapsed time
+	 */
+	public long getElapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Adds the specified number of Lucene hits.
+	 *
+	 * @param count
+	 *            the number of hits
+	 */
+	public synchronized void addHits(int count) {
+		hits += count;
+	}
+
+	/**
+	 * Returns the number of Lucene hits.
+	 *
+	 * @return the number of hits
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Sets the number of partitions returned by the search.
+	 *
+	 * @param partitions
+	 *            the number of partitions
+	 */
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Returns the number of partitions returned by the search.
+	 *
+	 * @return the number of partitions
+	 */
+	public int getPartitions() {
+		return partitions;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("total=").append(millis(getElapsedNanos())).append("ms");
+		for (Phase phase : PHASES) {
+			builder.append(", ").append(phase.metricName).append('=').append(millis(getNanos(phase))).append("ms");
+		}
+		builder.append(", hits=").append(hits);
+		builder.append(", partitions=").append(partitions);
+		return builder.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
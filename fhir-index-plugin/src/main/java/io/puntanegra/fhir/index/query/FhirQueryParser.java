@@ -0,0 +1,408 @@
+package io.puntanegra.fhir.index.query;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAccessor;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.DateTools.Resolution;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+
+import io.puntanegra.fhir.index.search.datatypes.SearchParamDates;
+import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
+
+/**
+ * Extension of Lucene {@link QueryParser} used to parse the search expressions
+ * received through CQL {@code expr()}.<br>
+ * Search hints (see {@link SearchHints}) are not analyzed, so their values are
+ * kept as written in the expression.
+ * <p>
+ * The queries over fields with a known type (see {@link SearchFieldTypes})
+ * are built from the type instead of the analyzed text:
+ * <li>{@code NUMBER} and {@code QUANTITY}: numeric ranges, such as
+ * {@code value-quantity:[1 TO 200]} or {@code value-quantity:ge1.5}. Values
+ * without prefix match within their implicit precision, so {@code length:100}
+ * matches {@code [99.5, 100.5)}. Quantities may add the system and code, as
+ * in {@code "5.4|http://unitsofmeasure.org|mg"}.</li>
+ * <li>{@code DATE}: ranges over the dates as indexed, such as
+ * {@code birthdate:ge2000-01-01} or {@code birthdate:[1990 TO 2000-06]}. A
+ * value matches the whole period of its precision, so {@code birthdate:1990}
+ * is any date in 1990. Dates without time zone are in the local one.</li>
+ * <li>{@code TOKEN}: exact keywords, optionally with the system, such as
+ * {@code "http://loinc.org|8867-4"} or {@code "|8867-4"} for no system.</li>
+ * <li>{@code URI} and {@code REFERENCE}: exact phrases of the analyzed
+ * text.</li>
+ * <li>{@code STRING} and unknown fields: analyzed text, as the classic
+ * parser.</li>
+ * <p>
+ * Values may start with a FHIR prefix: {@code eq}, {@code ne}, {@code gt},
+ * {@code lt}, {@code ge}, {@code le}, {@code sa}, {@code eb} or {@code ap}.
+ * Values containing {@code :} or {@code /} must be quoted.
+ * <p>
+ * Besides the Lucene syntax, expressions can be written as FHIR search query
+ * strings, such as {@code birthdate=ge2000-01-01&gender=male,female}, where
+ * parameters are ANDed and comma separated values are ORed. Modifiers are
+ * not supported.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class FhirQueryParser extends QueryParser {
+
+	/** The default field used when the expression doesn't specify one */
+	public static final String DEFAULT_FIELD = "query";
+
+	/** Expressions starting with {@code name=} are FHIR query strings */
+	private static final Pattern FHIR_SYNTAX = Pattern.compile("^\\s*[A-Za-z_][\\w\\-.]*(:[\\w\\-]+)?=");
+
+	/** Date-times with minutes but not seconds */
+	private static final Pattern MINUTES = Pattern.compile(".*T\\d{2}:\\d{2}([Zz+\\-].*)?");
+
+	private final SearchFieldTypes fieldTypes;
+
+	/**
+	 * Builds a new {@link FhirQueryParser} searching all the fields as text.
+	 *
+	 * @param analyzer
+	 *            the analyzer used to find terms in the expression
+	 */
+	public FhirQueryParser(Analyzer analyzer) {
+		this(analyzer, SearchFieldTypes.EMPTY);
+	}
+
+	/**
+	 * Builds a new {@link FhirQueryParser} building the queries of the typed
+	 * fields according to their type.
+	 *
+	 * @param analyzer
+	 *            the analyzer used to find terms in the expression
+	 * @param fieldTypes
+	 *            the types of the indexed fields
+	 */
+	public FhirQueryParser(Analyzer analyzer, SearchFieldTypes fieldTypes) {
+		super(DEFAULT_FIELD, analyzer);
+		setDateResolution(Resolution.SECOND);
+		this.fieldTypes = fieldTypes;
+	}
+
+	@Override
+	public Query parse(String expression) throws ParseException {
+		if (FHIR_SYNTAX.matcher(expression).find()) {
+			return parseQueryString(expression);
+		}
+		return super.parse(expression);
+	}
+
+	/**
+	 * Parses a FHIR search query string, such as
+	 * {@code birthdate=ge2000-01-01&gender=male,female}.
+	 */
+	private Query parseQueryString(String expression) throws ParseException {
+		BooleanQuery.Builder builder = new BooleanQuery.Builder();
+		for (String parameter : expression.trim().split("&")) {
+			if (parameter.trim().isEmpty()) {
+				continue;
+			}
+			int equals = parameter.indexOf('=');
+			if (equals <= 0) {
+				throw new ParseException("Search parameter must be name=value: " + parameter);
+			}
+			String name = parameter.substring(0, equals).trim();
+			if (name.indexOf(':') >= 0) {
+				throw new ParseException("Search parameter modifiers are not supported: " + name);
+			}
+			BooleanQuery.Builder values = new BooleanQuery.Builder();
+			int count = 0;
+			Query query = null;
+			for (String value : parameter.substring(equals + 1).split("(?<!\\\\),")) {
+				value = value.replace("\\,", ",").trim();
+				if (value.isEmpty()) {
+					throw new ParseException("Search parameter without value: " + parameter);
+				}
+				query = getFieldQuery(name, value, false);
+				if (query != null) {
+					values.add(query, Occur.SHOULD);
+					count++;
+				}
+			}
+			if (count > 1) {
+				builder.add(values.build(), Occur.MUST);
+			} else if (count == 1) {
+				builder.add(query, Occur.MUST);
+			}
+		}
+		return builder.build();
+	}
+
+	@Override
+	protected Query getFieldQuery(String field, String queryText, boolean quoted) throws ParseException {
+		if (SearchHints.isHint(field)) {
+			return new TermQuery(new Term(field, queryText));
+		}
+		SearchParamTypes type = fieldTypes.get(field);
+		if (type == null) {
+			return super.getFieldQuery(field, queryText, quoted);
+		}
+		switch (type) {
+		case NUMBER:
+			return numberQuery(field, queryText);
+		case QUANTITY:
+			return quantityQuery(field, queryText);
+		case DATE:
+			return dateQuery(field, queryText);
+		case TOKEN:
+			return tokenQuery(field, queryText);
+		case URI:
+		case REFERENCE:
+			return super.getFieldQuery(field, queryText, true);
+		default:
+			return super.getFieldQuery(field, queryText, quoted);
+		}
+	}
+
+	@Override
+	protected Query getRangeQuery(String field, String part1, String part2, boolean startInclusive,
+			boolean endInclusive) throws ParseException {
+		SearchParamTypes type = fieldTypes.get(field);
+		String lower = "*".equals(part1) ? null : part1;
+		String upper = "*".equals(part2) ? null : part2;
+		if (type == SearchParamTypes.NUMBER || type == SearchParamTypes.QUANTITY) {
+			return NumericRangeQuery.newDoubleRange(field, lower == null ? null : decimal(lower).doubleValue(),
+					upper == null ? null : decimal(upper).doubleValue(), startInclusive, endInclusive);
+		} else if (type == SearchParamTypes.DATE) {
+			// a date is the period of its precision, so the range starts at
+			// the beginning or the end of the lower one
+			Instant[] start = lower == null ? null : interval(lower);
+			Instant[] end = upper == null ? null : interval(upper);
+			return dateRange(field, start == null ? null : startInclusive ? start[0] : start[1],
+					end == null ? null : endInclusive ? end[1] : end[0]);
+		} else if (type == SearchParamTypes.TOKEN) {
+			return TermRangeQuery.newStringRange(field, lower, upper, startInclusive, endInclusive);
+		}
+		return super.getRangeQuery(field, part1, part2, startInclusive, endInclusive);
+	}
+
+	@Override
+	protected Query getPrefixQuery(String field, String termStr) throws ParseException {
+		if (fieldTypes.get(field) == SearchParamTypes.TOKEN) {
+			return new PrefixQuery(new Term(field, termStr));
+		}
+		return super.getPrefixQuery(field, termStr);
+	}
+
+	@Override
+	protected Query getWildcardQuery(String field, String termStr) throws ParseException {
+		if (fieldTypes.get(field) == SearchParamTypes.TOKEN) {
+			return new WildcardQuery(new Term(field, termStr));
+		}
+		return super.getWildcardQuery(field, termStr);
+	}
+
+	/**
+	 * Returns the query for a {@code [prefix]number} value.
+	 */
+	private Query numberQuery(String field, String text) throws ParseException {
+		Prefix prefix = Prefix.of(text);
+		BigDecimal value = decimal(prefix == null ? text : text.substring(2));
+		double number = value.doubleValue();
+		// the implicit precision is half a unit of the last written digit
+		BigDecimal precision = BigDecimal.ONE.movePointLeft(value.scale()).divide(BigDecimal.valueOf(2));
+		double low = value.subtract(precision).doubleValue();
+		double high = value.add(precision).doubleValue();
+		switch (prefix == null ? Prefix.EQ : prefix) {
+		case NE:
+			BooleanQuery.Builder builder = new BooleanQuery.Builder();
+			builder.add(NumericRangeQuery.newDoubleRange(field, null, low, true, false), Occur.SHOULD);
+			builder.add(NumericRangeQuery.newDoubleRange(field, high, null, true, true), Occur.SHOULD);
+			return builder.build();
+		case GT:
+		case SA:
+			return NumericRangeQuery.newDoubleRange(field, number, null, false, true);
+		case LT:
+		case EB:
+			return NumericRangeQuery.newDoubleRange(field, null, number, true, false);
+		case GE:
+			return NumericRangeQuery.newDoubleRange(field, number, null, true, true);
+		case LE:
+			return NumericRangeQuery.newDoubleRange(field, null, number, true, true);
+		case AP:
+			double delta = Math.abs(number) * 0.1;
+			return NumericRangeQuery.newDoubleRange(field, number - delta, number + delta, true, true);
+		default:
+			return NumericRangeQuery.newDoubleRange(field, low, high, true, false);
+		}
+	}
+
+	/**
+	 * Returns the query for a {@code [prefix]number|system|code} value.
+	 */
+	private Query quantityQuery(String field, String text) throws ParseException {
+		String[] parts = text.split("\\|", 3);
+		Query number = numberQuery(field, parts[0]);
+		if (parts.length == 1) {
+			return number;
+		}
+		BooleanQuery.Builder builder = new BooleanQuery.Builder();
+		builder.add(number, Occur.MUST);
+		if (!parts[1].isEmpty()) {
+			builder.add(new TermQuery(new Term(field + SearchFieldTypes.SYSTEM_SUFFIX, parts[1])), Occur.MUST);
+		}
+		if (parts.length > 2 && !parts[2].isEmpty()) {
+			builder.add(new TermQuery(new Term(field + SearchFieldTypes.CODE_SUFFIX, parts[2])), Occur.MUST);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the query for a {@code [prefix]date} value.
+	 */
+	private Query dateQuery(String field, String text) throws ParseException {
+		Prefix prefix = Prefix.of(text);
+		Instant[] interval = interval(prefix == null ? text : text.substring(2));
+		switch (prefix == null ? Prefix.EQ : prefix) {
+		case NE:
+			BooleanQuery.Builder builder = new BooleanQuery.Builder();
+			builder.add(dateRange(field, null, interval[0]), Occur.SHOULD);
+			builder.add(dateRange(field, interval[1], null), Occur.SHOULD);
+			return builder.build();
+		case GT:
+		case SA:
+			return dateRange(field, interval[1], null);
+		case LT:
+		case EB:
+			return dateRange(field, null, interval[0]);
+		case GE:
+			return dateRange(field, interval[0], null);
+		case LE:
+			return dateRange(field, null, interval[1]);
+		case AP:
+			// approximately is a tenth of the distance to now
+			long gap = Math.abs(Instant.now().toEpochMilli() - interval[0].toEpochMilli()) / 10;
+			return dateRange(field, interval[0].minusMillis(gap), interval[1].plusMillis(gap));
+		default:
+			return dateRange(field, interval[0], interval[1]);
+		}
+	}
+
+	/**
+	 * Returns the query for a {@code [system|]code} value.
+	 */
+	private Query tokenQuery(String field, String text) throws ParseException {
+		int bar = text.indexOf('|');
+		String systemField = field + SearchFieldTypes.SYSTEM_SUFFIX;
+		if (bar < 0 || fieldTypes.get(systemField) == null) {
+			return new TermQuery(new Term(field, text));
+		}
+		String system = text.substring(0, bar);
+		String code = text.substring(bar + 1);
+		if (system.isEmpty() && code.isEmpty()) {
+			throw new ParseException("Token without system nor code in " + field);
+		}
+		BooleanQuery.Builder builder = new BooleanQuery.Builder();
+		if (!code.isEmpty()) {
+			builder.add(new TermQuery(new Term(field, code)), Occur.MUST);
+		}
+		if (!system.isEmpty()) {
+			builder.add(new TermQuery(new Term(systemField, system)), Occur.MUST);
+		} else {
+			builder.add(TermRangeQuery.newStringRange(systemField, null, null, true, true), Occur.MUST_NOT);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the query for the indexed dates in {@code [lower, upper)}.
+	 */
+	private static Query dateRange(String field, Instant lower, Instant upper) {
+		return TermRangeQuery.newStringRange(field, lower == null ? null : format(lower),
+				upper == null ? null : format(upper), true, false);
+	}
+
+	private static String format(Instant instant) {
+		return SearchParamDates.format(Date.from(instant));
+	}
+
+	private static BigDecimal decimal(String text) throws ParseException {
+		try {
+			return new BigDecimal(text.trim());
+		} catch (NumberFormatException e) {
+			throw new ParseException("Invalid number: " + text);
+		}
+	}
+
+	/**
+	 * Returns the start, inclusive, and the end, exclusive, of the period of
+	 * the specified FHIR date, according to its precision.
+	 */
+	private static Instant[] interval(String text) throws ParseException {
+		ZoneId zone = ZoneId.systemDefault();
+		String value = text.trim();
+		try {
+			if (value.matches("\\d{4}")) {
+				LocalDate start = LocalDate.of(Integer.parseInt(value), 1, 1);
+				return new Instant[] { start.atStartOfDay(zone).toInstant(),
+						start.plusYears(1).atStartOfDay(zone).toInstant() };
+			} else if (value.matches("\\d{4}-\\d{2}")) {
+				LocalDate start = YearMonth.parse(value).atDay(1);
+				return new Instant[] { start.atStartOfDay(zone).toInstant(),
+						start.plusMonths(1).atStartOfDay(zone).toInstant() };
+			} else if (value.matches("\\d{4}-\\d{2}-\\d{2}")) {
+				LocalDate start = LocalDate.parse(value);
+				return new Instant[] { start.atStartOfDay(zone).toInstant(),
+						start.plusDays(1).atStartOfDay(zone).toInstant() };
+			}
+			TemporalAccessor dateTime = DateTimeFormatter.ISO_DATE_TIME.parseBest(value, ZonedDateTime::from,
+					LocalDateTime::from);
+			Instant instant = dateTime instanceof ZonedDateTime ? ((ZonedDateTime) dateTime).toInstant()
+					: ((LocalDateTime) dateTime).atZone(zone).toInstant();
+			// dates are indexed with second resolution
+			Instant start = instant.truncatedTo(ChronoUnit.SECONDS);
+			return new Instant[] { start, MINUTES.matcher(value).matches() ? start.plus(1, ChronoUnit.MINUTES)
+					: start.plus(1, ChronoUnit.SECONDS) };
+		} catch (DateTimeParseException e) {
+			throw new ParseException("Invalid date: " + text);
+		}
+	}
+
+	/**
+	 * The FHIR search prefixes of ordered values.
+	 */
+	private enum Prefix {
+		EQ, NE, GT, LT, GE, LE, SA, EB, AP;
+
+		/**
+		 * Returns the prefix of the specified value, {@code null} if it has
+		 * none.
+		 */
+		static Prefix of(String value) {
+			if (value.length() > 2 && Character.isLetter(value.charAt(0))) {
+				try {
+					return valueOf(value.substring(0, 2).toUpperCase());
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package io.puntanegra.fhir.index.query;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.parser.DataFormatException;
+import io.puntanegra.fhir.index.config.ResourceOptions;
+import io.puntanegra.fhir.index.search.FhirContextHelper;
+import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
+
+/**
+ * Registry of the {@link SearchParamTypes} of the indexed Lucene fields,
+ * derived from the FHIR search parameters configured in the
+ * {@link ResourceOptions}. <br>
+ * Besides the search parameters, it knows the auxiliary fields written by the
+ * search parameter types, such as {@code <name>_system} and
+ * {@code <name>_code}, which are keywords, and {@code <name>_high}, which is
+ * the end of a date period. A field used with different types by several
+ * resource types has no type, so it is searched as free text.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public final class SearchFieldTypes {
+
+	private static final Logger logger = LoggerFactory.getLogger(SearchFieldTypes.class);
+
+	/** The suffix of the field with the system of tokens and quantities */
+	public static final String SYSTEM_SUFFIX = "_system";
+
+	/** The suffix of the field with the code of quantities */
+	public static final String CODE_SUFFIX = "_code";
+
+	/** The suffix of the field with the end of date periods */
+	public static final String HIGH_SUFFIX = "_high";
+
+	/** Registry without types, all the fields are searched as free text */
+	public static final SearchFieldTypes EMPTY = new SearchFieldTypes(Collections.emptyMap());
+
+	private final Map<String, SearchParamTypes> types;
+
+	private SearchFieldTypes(Map<String, SearchParamTypes> types) {
+		this.types = types;
+	}
+
+	/**
+	 * Returns the field types of the search parameters indexed with the
+	 * specified options. Resource types without configured parameters index
+	 * all their search parameters.
+	 *
+	 * @param options
+	 *            the search options of the index
+	 * @return the field types
+	 */
+	public static SearchFieldTypes of(ResourceOptions options) {
+		FhirContext ctx = FhirContextHelper.getContext(FhirVersionEnum.DSTU3);
+		Map<String, SearchParamTypes> types = new HashMap<>();
+		Set<String> ambiguous = new HashSet<>();
+		options.resources.forEach((resourceName, parameters) -> {
+			RuntimeResourceDefinition def;
+			try {
+				def = ctx.getResourceDefinition(resourceName);
+			} catch (DataFormatException e) {
+				logger.warn("Unknown FHIR resource type {}, its fields are searched as free text", resourceName);
+				return;
+			}
+			List<RuntimeSearchParam> params = def.getSearchParams();
+			for (RuntimeSearchParam param : params) {
+				if (parameters == null || parameters.isEmpty() || parameters.contains(param.getName())) {
+					SearchParamTypes type = SearchParamTypes.valueOf(param.getParamType().getCode().toUpperCase());
+					add(types, ambiguous, param.getName(), type);
+				}
+			}
+		});
+		ambiguous.forEach(types::remove);
+		return new SearchFieldTypes(Collections.unmodifiableMap(types));
+	}
+
+	private static void add(Map<String, SearchParamTypes> types, Set<String> ambiguous, String name,
+			SearchParamTypes type) {
+		put(types, ambiguous, name, type);
+		if (type == SearchParamTypes.TOKEN || type == SearchParamTypes.QUANTITY) {
+			put(types, ambiguous, name + SYSTEM_SUFFIX, SearchParamTypes.TOKEN);
+		}
+		if (type == SearchParamTypes.QUANTITY) {
+			put(types, ambiguous, name + CODE_SUFFIX, SearchParamTypes.TOKEN);
+		}
+		if (type == SearchParamTypes.DATE) {
+			put(types, ambiguous, name + HIGH_SUFFIX, SearchParamTypes.DATE);
+		}
+	}
+
+	private static void put(Map<String, SearchParamTypes> types, Set<String> ambiguous, String field,
+			SearchParamTypes type) {
+		SearchParamTypes previous = types.put(field, type);
+		if (previous != null && previous != type) {
+			logger.warn("Field {} is used as {} and {}, it is searched as free text", field, previous, type);
+			ambiguous.add(field);
+		}
+	}
+
+	/**
+	 * Returns the type of the specified field.
+	 *
+	 * @param field
+	 *            a field name
+	 * @return the type of {@code field}, {@code null} if it is unknown or
+	 *         ambiguous
+	 */
+	public SearchParamTypes get(String field) {
+		return types.get(field);
+	}
+
+	@Override
+	public String toString() {
+		return types.toString();
+	}
+}
@@ -0,0 +1,134 @@
+package io.puntanegra.fhir.index.query;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Search hints contained in a query expression. <br>
+ * A hint is a non prohibited clause over a reserved field, i.e.:
+ * {@code _type:Patient AND family:Pero*}. Hints are not indexed fields, they
+ * tell the index how the search should be executed and are removed from the
+ * Lucene {@link Query} before searching.
+ * <p>
+ * Supported hints:
+ * <li>{@code _type}: the FHIR Resource type being searched.</li>
+ * <li>{@code _consistent}: {@code true} if the search must see all the writes
+ * acknowledged before it started (read-your-writes).</li>
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public final class SearchHints {
+
+	/** Hint with the FHIR Resource type of the searched documents */
+	public static final String RESOURCE_TYPE = "_type";
+
+	/** Hint requesting the search to see all the previous writes */
+	public static final String CONSISTENT = "_consistent";
+
+	private static final Set<String> HINTS = new HashSet<>(Arrays.asList(RESOURCE_TYPE, CONSISTENT));
+
+	private final Query query;
+	private final Map<String, String> values;
+
+	private SearchHints(Query query, Map<String, String> values) {
+		this.query = query;
+		this.values = Collections.unmodifiableMap(values);
+	}
+
+	/**
+	 * Returns if the specified field name is a reserved hint name.
+	 *
+	 * @param field
+	 *            a field name
+	 * @return {@code true} if {@code field} is a hint, {@code false} otherwise
+	 */
+	public static boolean isHint(String field) {
+		return HINTS.contains(field);
+	}
+
+	/**
+	 * Extracts the hints contained in the specified {@link Query}.
+	 *
+	 * @param query
+	 *            the parsed query
+	 * @return the hints and the query without them
+	 */
+	public static SearchHints of(Query query) {
+		Map<String, String> values = new HashMap<>();
+		if (query instanceof TermQuery && isHint(((TermQuery) query).getTerm().field())) {
+			collect((TermQuery) query, values);
+			return new SearchHints(new MatchAllDocsQuery(), values);
+		}
+		if (query instanceof BooleanQuery) {
+			BooleanQuery booleanQuery = (BooleanQuery) query;
+			List<BooleanClause> clauses = booleanQuery.clauses();
+			if (clauses.stream().noneMatch(SearchHints::isHint)) {
+				return new SearchHints(query, values);
+			}
+
+			BooleanQuery.Builder builder = new BooleanQuery.Builder();
+			builder.setDisableCoord(booleanQuery.isCoordDisabled());
+			builder.setMinimumNumberShouldMatch(booleanQuery.getMinimumNumberShouldMatch());
+			boolean positive = false;
+			for (BooleanClause clause : clauses) {
+				if (isHint(clause)) {
+					collect((TermQuery) clause.getQuery(), values);
+				} else {
+					builder.add(clause);
+					positive |= !clause.isProhibited();
+				}
+			}
+			if (!positive) {
+				// a query made only of prohibited clauses doesn't match anything
+				builder.add(new MatchAllDocsQuery(), Occur.MUST);
+			}
+			BooleanQuery stripped = builder.build();
+			stripped.setBoost(booleanQuery.getBoost());
+			return new SearchHints(stripped, values);
+		}
+		return new SearchHints(query, values);
+	}
+
+	private static boolean isHint(BooleanClause clause) {
+		Query query = clause.getQuery();
+		return !clause.isProhibited() && query instanceof TermQuery && isHint(((TermQuery) query).getTerm().field());
+	}
+
+	private static void collect(TermQuery query, Map<String, String> values) {
+		values.put(query.getTerm().field(), query.getTerm().text());
+	}
+
+	/**
+	 * Returns the {@link Query} without the hint clauses.
+	 *
+	 * @return the query to be executed
+	 */
+	public Query query() {
+		return query;
+	}
+
+	/**
+	 * Returns the value of the specified hint.
+	 *
+	 * @param hint
+	 *            the hint name
+	 * @return the hint value, maybe empty
+	 */
+	public Optional<String> get(String hint) {
+		return Optional.ofNullable(values.get(hint));
+	}
+}
@@ -13,6 +13,7 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.context.RuntimeSearchParam;
+import io.puntanegra.fhir.index.metrics.IndexingTrace;
 import io.puntanegra.fhir.index.search.datatypes.AbstractSearchParam;
 import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
 import io.puntanegra.fhir.index.search.extractor.SearchParameterExtractorFactory;
@@ -52,6 +53,25 @@ public class SearchParamExtractorHelper {
 	 * @return
 	 */
 	public Set<AbstractSearchParam> extractParametersValues(IBaseResource instance, Set<String> parameters) {
+		return extractParametersValues(instance, parameters, null);
+	}
+
+	/**
+	 * Extracts search parameter metadata defined in a resource, adding the
+	 * time spent in each search parameter extractor to the specified trace.
+	 * 
+	 * @param instance,
+	 *            the FHIR {@link IBaseResource}
+	 * @param parameters,
+	 *            parameters to index for this resource. If no parameter is
+	 *            defined, then all the FHIR search parameters will be
+	 *            extracted.
+	 * @param trace
+	 *            the indexing trace, {@code null} means no tracing
+	 * @return the extracted values
+	 */
+	public Set<AbstractSearchParam> extractParametersValues(IBaseResource instance, Set<String> parameters,
+			IndexingTrace trace) {
 		Set<AbstractSearchParam> values = new HashSet<AbstractSearchParam>();
 
 		RuntimeResourceDefinition def = this.ctx.getResourceDefinition(instance);
@@ -61,19 +81,20 @@ public class SearchParamExtractorHelper {
 		if (parameters == null || parameters.isEmpty()) {
 			List<RuntimeSearchParam> params = def.getSearchParams();
 			for (RuntimeSearchParam searchParam : params) {
-				values.addAll(doCreateSearchParam(instance, searchParam));
+				values.addAll(doCreateSearchParam(instance, searchParam, trace));
 			}
 		} else {
 			for (String param : parameters) {
 				RuntimeSearchParam searchParam = def.getSearchParam(param);
-				values.addAll(doCreateSearchParam(instance, searchParam));
+				values.addAll(doCreateSearchParam(instance, searchParam, trace));
 
 			}
 		}
 		return values;
 	}
 
-	private Set<AbstractSearchParam> doCreateSearchParam(IBaseResource instance, RuntimeSearchParam searchParam) {
+	private Set<AbstractSearchParam> doCreateSearchParam(IBaseResource instance, RuntimeSearchParam searchParam,
+			IndexingTrace trace) {
 		String nextPath = searchParam.getPath();
 		if (isBlank(nextPath)) {
 			return Collections.emptySet();
@@ -81,8 +102,15 @@ public class SearchParamExtractorHelper {
 
 		String strType = searchParam.getParamType().getCode().toUpperCase();
 
-		SearchParamExtractor extractor = extractorFactory.getParameterExtractor(SearchParamTypes.valueOf(strType));
-		return extractor.extractValues(instance, searchParam);
+		SearchParamTypes type = SearchParamTypes.valueOf(strType);
+		SearchParamExtractor extractor = extractorFactory.getParameterExtractor(type);
+		if (trace == null) {
+			return extractor.extractValues(instance, searchParam);
+		}
+		long start = System.nanoTime();
+		Set<AbstractSearchParam> values = extractor.extractValues(instance, searchParam);
+		trace.addExtractor(type, start, values.size());
+		return values;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -1,6 +1,7 @@
 package io.puntanegra.fhir.index.search.datatypes;
 
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -12,7 +13,8 @@ public class SearchParamDates extends AbstractSearchParam {
 	private Date low;
 	private Date high;
 
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+	private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyyMMddHHmmss")
+			.withZone(ZoneId.systemDefault());
 
 	public SearchParamDates(String name, String path, SearchParamTypes type, Date low, Date high) {
 		super(name, path, type);
@@ -52,14 +54,26 @@ public class SearchParamDates extends AbstractSearchParam {
 		return this.low;
 	}
 
+	/**
+	 * Returns the indexed value of the specified date, with second resolution
+	 * in the local time zone, so the lexicographic order is the date order.
+	 *
+	 * @param date
+	 *            a date
+	 * @return the indexed value of {@code date}
+	 */
+	public static String format(Date date) {
+		return dateFormat.format(date.toInstant());
+	}
+
 	@Override
 	public List<Field> createIndexedFields() {
-		Field fieldLow = new StringField(name, dateFormat.format(this.low), Field.Store.NO);
+		Field fieldLow = new StringField(name, format(this.low), Field.Store.NO);
 
 		// TODO: ver como se busca por un periodo
 		Field fieldHigh = null;
 		if (this.high != null) {
-			fieldHigh = new StringField(name + "_high", dateFormat.format(this.high), Field.Store.NO);
+			fieldHigh = new StringField(name + "_high", format(this.high), Field.Store.NO);
 		}
 
 		if (fieldHigh == null) {
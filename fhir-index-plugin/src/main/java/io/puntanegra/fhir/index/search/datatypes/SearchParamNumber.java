@@ -35,7 +35,6 @@ public class SearchParamNumber extends AbstractSearchParam {
 	@Override
 	public List<Field> createIndexedFields() {
 		Field field = new DoubleField(name, this.value, Field.Store.NO);
-		field.setBoost(0.1f);
 		return Arrays.asList(field);
 	}
 }
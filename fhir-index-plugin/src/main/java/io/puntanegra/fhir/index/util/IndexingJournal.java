@@ -0,0 +1,304 @@
+package io.puntanegra.fhir.index.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.apache.cassandra.io.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.puntanegra.fhir.index.FhirIndexException;
+
+/**
+ * Local append-only journal of the pending asynchronous indexing tasks. <br>
+ * Each entry identifies a row to be indexed. Entries are appended to
+ * memory-mapped segment files before their task is queued, so they survive a
+ * process crash. The journal has several lanes, each one with its own current
+ * segment and lock, so concurrent producers appending to different lanes
+ * don't contend. A commit rolls the journal before waiting for the queued
+ * tasks, and once committed it discards exactly the segments sealed by that
+ * roll. Segments filled while the commit is running are kept for the next
+ * one. At startup, the segments found in the journal directory contain the
+ * rows whose indexing may have been lost, so they have to be reindexed before
+ * being discarded.
+ * <p>
+ * Segments are not synced to disk on each append, so the journal protects
+ * against process crashes but not against operating system crashes.
+ * <p>
+ * Segment layout: a sequence of entries, each one prefixed with its length as
+ * an {@code int}. A zero length marks the end of the written entries.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public class IndexingJournal {
+
+	private static final Logger logger = LoggerFactory.getLogger(IndexingJournal.class);
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private final Path directory;
+	private final int segmentSize;
+
+	/** Segments found at startup, pending replay */
+	private final List<Path> recovered = new ArrayList<>();
+
+	/** Filled segments, not rolled yet */
+	private final List<Path> sealed = new ArrayList<>();
+
+	private final Lane[] lanes;
+	private final AtomicLong nextSegment;
+
+	/** A lane with its own current segment */
+	private static final class Lane {
+		private Path segment;
+		private MappedByteBuffer buffer;
+	}
+
+	/**
+	 * Opens the journal stored in the specified directory, with a single lane.
+	 * The segments found in the directory are kept pending for replay.
+	 *
+	 * @param directory
+	 *            the journal directory
+	 * @param segmentSizeMB
+	 *            the size of each segment file, in MB
+	 */
+	public IndexingJournal(Path directory, int segmentSizeMB) {
+		this(directory, segmentSizeMB, 1);
+	}
+
+	/**
+	 * Opens the journal stored in the specified directory. The segments found
+	 * in the directory are kept pending for replay.
+	 *
+	 * @param directory
+	 *            the journal directory
+	 * @param segmentSizeMB
+	 *            the size of each segment file, in MB
+	 * @param lanes
+	 *            the number of lanes appending concurrently, each one with its
+	 *            own segment
+	 */
+	public IndexingJournal(Path directory, int segmentSizeMB, int lanes) {
+		this.directory = directory;
+		this.segmentSize = segmentSizeMB * 1024 * 1024;
+		this.lanes = new Lane[Math.max(1, lanes)];
+		for (int i = 0; i < this.lanes.length; i++) {
+			this.lanes[i] = new Lane();
+		}
+		try {
+			Files.createDirectories(directory);
+			try (Stream<Path> files = Files.list(directory)) {
+				files.filter(IndexingJournal::isSegment).sorted((a, b) -> Long.compare(id(a), id(b)))
+						.forEach(recovered::add);
+			}
+		} catch (IOException e) {
+			throw new FhirIndexException(e, "Error opening indexing journal %s", directory);
+		}
+		nextSegment = new AtomicLong(recovered.isEmpty() ? 0 : id(recovered.get(recovered.size() - 1)) + 1);
+		if (!recovered.isEmpty()) {
+			logger.info("Indexing journal {} has {} segments pending replay", directory, recovered.size());
+		}
+	}
+
+	private static boolean isSegment(Path path) {
+		String name = path.getFileName().toString();
+		return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+	}
+
+	private static long id(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * Appends the specified entry to the first lane of the journal.
+	 *
+	 * @param entry
+	 *            the entry to be appended
+	 */
+	public void append(ByteBuffer entry) {
+		append(0, entry);
+	}
+
+	/**
+	 * Appends the specified entry to the journal lane chosen by the specified
+	 * number, such as the queue bucket of the task. Only the appends to the
+	 * same lane are serialized.
+	 *
+	 * @param lane
+	 *            any number, the lane is chosen by its modulus
+	 * @param entry
+	 *            the entry to be appended
+	 */
+	public void append(int lane, ByteBuffer entry) {
+		int size = entry.remaining() + 2 * Integer.BYTES;
+		if (size > segmentSize) {
+			throw new FhirIndexException("Indexing journal entry of %s bytes exceeds the segment size", size);
+		}
+		Lane current = lanes[Math.floorMod(lane, lanes.length)];
+		synchronized (current) {
+			if (current.buffer == null || current.buffer.remaining() < size) {
+				Path filled = seal(current);
+				if (filled != null) {
+					synchronized (sealed) {
+						sealed.add(filled);
+					}
+				}
+				newSegment(current);
+			}
+			current.buffer.putInt(entry.remaining());
+			current.buffer.put(entry.duplicate());
+		}
+	}
+
+	private void newSegment(Lane lane) {
+		Path segment = directory.resolve(SEGMENT_PREFIX + nextSegment.getAndIncrement() + SEGMENT_SUFFIX);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			lane.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			lane.segment = segment;
+		} catch (IOException e) {
+			throw new FhirIndexException(e, "Error creating indexing journal segment %s", segment);
+		}
+	}
+
+	/**
+	 * Seals the current segment of the specified lane, which must be locked.
+	 *
+	 * @return the sealed segment, {@code null} if the lane has none
+	 */
+	private static Path seal(Lane lane) {
+		if (lane.buffer == null) {
+			return null;
+		}
+		FileUtils.clean(lane.buffer);
+		Path segment = lane.segment;
+		lane.buffer = null;
+		lane.segment = null;
+		return segment;
+	}
+
+	/**
+	 * Returns if there are segments found at startup pending replay.
+	 *
+	 * @return {@code true} if there are segments to be replayed
+	 */
+	public synchronized boolean hasRecovered() {
+		return !recovered.isEmpty();
+	}
+
+	/**
+	 * Calls the specified consumer for each entry of the segments found at
+	 * startup, in the order they were appended. The segments are kept until
+	 * {@link #discardRecovered()} is called.
+	 *
+	 * @param consumer
+	 *            the entries consumer
+	 * @return the number of replayed entries
+	 */
+	public synchronized long replay(Consumer<ByteBuffer> consumer) {
+		long count = 0;
+		for (Path path : recovered) {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				while (data.remaining() >= Integer.BYTES) {
+					int length = data.getInt();
+					if (length <= 0 || length > data.remaining()) {
+						break;
+					}
+					ByteBuffer entry = data.slice();
+					entry.limit(length);
+					data.position(data.position() + length);
+					consumer.accept(entry);
+					count++;
+				}
+			} catch (IOException e) {
+				throw new FhirIndexException(e, "Error replaying indexing journal segment %s", path);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Deletes the segments found at startup. It must be called once their
+	 * entries have been replayed and committed, or when the index has been
+	 * rebuilt.
+	 */
+	public synchronized void discardRecovered() {
+		recovered.forEach(path -> FileUtils.deleteWithConfirm(path.toFile()));
+		recovered.clear();
+	}
+
+	/**
+	 * Seals the current segment of each lane, so the following entries are
+	 * appended to new segments. It must be called while no entries are being
+	 * appended, so the returned segments contain exactly the entries appended
+	 * before. Segments filled later are not affected by
+	 * {@link #discard(Collection)} of the returned ones.
+	 *
+	 * @return the segments sealed up to now and not discarded yet
+	 */
+	public List<Path> roll() {
+		List<Path> rolled = new ArrayList<>();
+		for (Lane lane : lanes) {
+			synchronized (lane) {
+				Path segment = seal(lane);
+				if (segment != null) {
+					synchronized (sealed) {
+						sealed.add(segment);
+					}
+				}
+			}
+		}
+		synchronized (sealed) {
+			rolled.addAll(sealed);
+		}
+		return rolled;
+	}
+
+	/**
+	 * Deletes the specified segments returned by {@link #roll()}. It must be
+	 * called once the tasks of their entries have been committed.
+	 *
+	 * @param segments
+	 *            the rolled segments to be deleted
+	 */
+	public void discard(Collection<Path> segments) {
+		synchronized (sealed) {
+			sealed.removeAll(segments);
+		}
+		for (Path path : segments) {
+			FileUtils.deleteWithConfirm(path.toFile());
+		}
+		if (!segments.isEmpty()) {
+			logger.debug("Discarded {} indexing journal segments from {}", segments.size(), directory);
+		}
+	}
+
+	/**
+	 * Deletes all the segments and the journal directory.
+	 */
+	public synchronized void delete() {
+		discard(roll());
+		discardRecovered();
+		File file = directory.toFile();
+		if (file.exists()) {
+			FileUtils.deleteRecursive(file);
+		}
+	}
+}
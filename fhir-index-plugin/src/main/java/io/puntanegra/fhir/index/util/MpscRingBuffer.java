@@ -0,0 +1,132 @@
+package io.puntanegra.fhir.index.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer queue backed by a ring
+ * buffer. <br>
+ * Producers claim a slot by incrementing the tail sequence with a CAS and then
+ * publish the element in the slot. The only consumer takes the published
+ * elements in batches, releasing their slots with a single write of the head
+ * sequence. A claimed but not yet published slot stops the batch, so the
+ * elements are always consumed in claim order.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ * @param <T>
+ *            the type of the elements
+ */
+public class MpscRingBuffer<T> {
+
+	private final AtomicReferenceArray<T> buffer;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+
+	/**
+	 * Builds a new {@link MpscRingBuffer}.
+	 *
+	 * @param capacity
+	 *            the min capacity, rounded up to the next power of two
+	 */
+	public MpscRingBuffer(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be strictly positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		buffer = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds the specified element if there is free space. It can be called by
+	 * any thread.
+	 *
+	 * @param element
+	 *            the element to be added
+	 * @return {@code true} if the element has been added, {@code false} if the
+	 *         buffer is full
+	 */
+	public boolean offer(T element) {
+		long capacity = mask + 1;
+		while (true) {
+			long t = tail.get();
+			if (t - head >= capacity) {
+				return false;
+			}
+			if (tail.compareAndSet(t, t + 1)) {
+				buffer.lazySet((int) t & mask, element);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Moves the published elements to the specified array, in insertion order,
+	 * releasing their slots. It must be called only by the consumer thread.
+	 *
+	 * @param batch
+	 *            the array where the elements are copied
+	 * @return the number of elements copied to {@code batch}
+	 */
+	public int drain(T[] batch) {
+		long h = head;
+		int count = 0;
+		while (count < batch.length) {
+			int index = (int) h & mask;
+			T element = buffer.get(index);
+			if (element == null) {
+				break;
+			}
+			buffer.lazySet(index, null);
+			batch[count++] = element;
+			h++;
+		}
+		if (count > 0) {
+			head = h;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of elements added and not yet drained, including the
+	 * ones being published.
+	 *
+	 * @return the number of queued elements
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+
+	/**
+	 * Returns if there are no elements added and not yet drained.
+	 *
+	 * @return {@code true} if this buffer is empty
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Returns the number of elements added since the creation of this buffer,
+	 * which is the sequence number of the last added element.
+	 *
+	 * @return the number of added elements
+	 */
+	public long offered() {
+		return tail.get();
+	}
+
+	/**
+	 * Returns the number of elements that this buffer can hold.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
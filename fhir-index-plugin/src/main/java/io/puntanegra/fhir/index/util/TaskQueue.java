@@ -18,11 +18,18 @@
 
 package io.puntanegra.fhir.index.util;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,15 +41,53 @@ import io.puntanegra.fhir.index.FhirIndexException;
  * an identifier, ensuring that all tasks with same identifier will be executed orderly in the same thread. Each thread
  * has its own task queue.
  *
+ * Each thread queue is a lock-free {@link MpscRingBuffer}, so submitting a task doesn't allocate futures nor take
+ * locks, except a shared read stamp if there is a journal. The threads run the queued tasks in batches. Producers block
+ * while their thread queue is full.
+ *
+ * Each thread publishes the sequence number of its last completed task. Awaiting takes the sequence number of the last
+ * submitted task of each thread and waits for the threads to complete them, so new tasks can be submitted meanwhile.
+ * Synchronous tasks run after such a wait, concurrently with later asynchronous tasks, but not with other synchronous
+ * tasks.
+ *
+ * Identifiers are mixed with the Murmur3 finalizer and spread over a fixed number of buckets, which are assigned to
+ * threads. Optionally, the queue can be rebalanced: a task whose thread queue is at least half full moves its bucket to
+ * the least loaded thread, provided that the bucket has no pending tasks, so the order per identifier is kept.
+ *
  * @author Andres de la Pena {@literal <adelapena@stratio.com>}
  */
 public class TaskQueue {
 
     private static final Logger logger = LoggerFactory.getLogger(TaskQueue.class);
 
-    private BlockingExecutor[] pools;
+    /** The max number of tasks taken from a thread queue at once */
+    public static final int MAX_BATCH_SIZE = 64;
+
+    /** The number of routing buckets per thread */
+    public static final int BUCKETS_PER_THREAD = 16;
+
+    /** The max time a producer sleeps while waiting for space in a full thread queue */
+    private static final long MAX_FULL_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private Stripe[] stripes;
+
+    /** The thread of each bucket */
+    private AtomicIntegerArray buckets;
+
+    /** The pending tasks of each bucket, {@code -1} while the bucket is being moved, only used if rebalancing */
+    private AtomicIntegerArray pending;
+
+    private final AtomicLong rebalances = new AtomicLong();
+
+    private final IndexingJournal journal;
+
+    private final ExecutorService executor;
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** Excludes journal appends while rolling the journal and taking the await sequences */
+    private final StampedLock journalLock = new StampedLock();
+
+    /** Serializes the synchronous tasks */
+    private final Object synchronousLock = new Object();
 
     /**
      * Returns a new {@link TaskQueue}.
@@ -51,23 +96,61 @@ public class TaskQueue {
      * @param queuesSize the max number of tasks in each thread queue before blocking
      */
     public TaskQueue(int numThreads, int queuesSize) {
+        this(numThreads, queuesSize, null);
+    }
+
+    /**
+     * Returns a new {@link TaskQueue} recording the asynchronous tasks in the specified journal.
+     *
+     * @param numThreads the number of executor threads
+     * @param queuesSize the max number of tasks in each thread queue before blocking
+     * @param journal the journal where asynchronous task entries are appended before queueing, {@code null} for none
+     */
+    public TaskQueue(int numThreads, int queuesSize, IndexingJournal journal) {
+        this(numThreads, queuesSize, journal, false);
+    }
+
+    /**
+     * Returns a new {@link TaskQueue} recording the asynchronous tasks in the specified journal.
+     *
+     * @param numThreads the number of executor threads
+     * @param queuesSize the max number of tasks in each thread queue before blocking
+     * @param journal the journal where asynchronous task entries are appended before queueing, {@code null} for none
+     * @param rebalance if the routing buckets must be moved from busy threads to idle ones
+     */
+    public TaskQueue(int numThreads, int queuesSize, IndexingJournal journal, boolean rebalance) {
+        this(numThreads, queuesSize, journal, rebalance, null);
+    }
+
+    /**
+     * Returns a new {@link TaskQueue} running its tasks in the specified executor, such as a virtual threads
+     * executor, instead of in dedicated threads. Each thread queue is drained by one task of the executor at a time,
+     * so the tasks with the same identifier are still executed orderly.
+     *
+     * @param numThreads the number of thread queues, that is, the max number of tasks running concurrently
+     * @param queuesSize the max number of tasks in each thread queue before blocking
+     * @param journal the journal where asynchronous task entries are appended before queueing, {@code null} for none
+     * @param rebalance if the routing buckets must be moved from busy threads to idle ones
+     * @param executor the executor running the tasks, {@code null} for dedicated threads
+     */
+    public TaskQueue(int numThreads, int queuesSize, IndexingJournal journal, boolean rebalance,
+                     ExecutorService executor) {
+        this.journal = journal;
+        this.executor = executor;
         if (numThreads > 0) {
-            pools = new BlockingExecutor[numThreads];
+            stripes = new Stripe[numThreads];
             for (int i = 0; i < numThreads; i++) {
-                pools[i] = new BlockingExecutor(1,
-                                                queuesSize,
-                                                Long.MAX_VALUE,
-                                                TimeUnit.DAYS,
-                                                0,
-                                                TimeUnit.NANOSECONDS,
-                                                null);
-                pools[i].submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        logger.debug("Task queue starts");
-                    }
-                });
+                stripes[i] = new Stripe(i, queuesSize, executor);
             }
+            int numBuckets = Integer.highestOneBit(numThreads * BUCKETS_PER_THREAD - 1) << 1;
+            buckets = new AtomicIntegerArray(numBuckets);
+            for (int i = 0; i < numBuckets; i++) {
+                buckets.set(i, i % numThreads);
+            }
+            if (rebalance) {
+                pending = new AtomicIntegerArray(numBuckets);
+            }
+            logger.debug("Task queue starts with {} threads", numThreads);
         }
     }
 
@@ -80,88 +163,447 @@ public class TaskQueue {
      * @param id the identifier of the task used to choose the thread executor where the task will be queued for
      * asynchronous execution
      * @param task the task to be queued for asynchronous execution
-     * @return a future for the submitted task
      */
-    public Future<?> submitAsynchronous(Object id, Runnable task) {
-        if (pools == null) {
+    public void submitAsynchronous(Object id, Runnable task) {
+        submitAsynchronous(id.hashCode(), null, task);
+    }
+
+    /**
+     * Submits a non value-returning task for asynchronous execution, appending the specified entry to the journal
+     * lane of the task bucket before queueing the task, so producers of different buckets don't contend. The entry is
+     * appended and the task queued while holding a shared read stamp, so the journal segments rolled by a commit task
+     * contain exactly the entries of the tasks awaited by it.
+     *
+     * @param id the identifier of the task used to choose the thread executor where the task will be queued for
+     * asynchronous execution, such as a partition token
+     * @param entry the journal entry identifying the task, {@code null} for none
+     * @param task the task to be queued for asynchronous execution
+     */
+    public void submitAsynchronous(long id, ByteBuffer entry, Runnable task) {
+        if (stripes == null) {
             task.run();
-            return null;
         } else {
-            lock.readLock().lock();
+            long stamp = journal == null ? 0 : journalLock.readLock();
             try {
-                int i = Math.abs(id.hashCode() % pools.length);
-                return pools[i].submit(task);
+                int bucket = (int) mix(id) & (buckets.length() - 1);
+                if (journal != null && entry != null) {
+                    journal.append(bucket, entry);
+                }
+                if (pending == null) {
+                    stripes[buckets.get(bucket)].put(task);
+                } else {
+                    stripes[acquire(bucket)].put(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            pending.decrementAndGet(bucket);
+                        }
+                    });
+                }
+            } catch (FhirIndexException e) {
+                logger.error("Task queue submission failed", e);
+                throw e;
             } catch (Exception e) {
                 logger.error("Task queue submission failed", e);
                 throw new FhirIndexException(e);
             } finally {
-                lock.readLock().unlock();
+                if (journal != null) {
+                    journalLock.unlockRead(stamp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the Murmur3 64-bit finalizer of the specified value, so sequential values are spread over all the bits.
+     *
+     * @param value a value
+     * @return the mixed value
+     */
+    static long mix(long value) {
+        long k = value;
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Registers a pending task in the specified bucket, moving the bucket to the least loaded thread if its thread is
+     * busy and the bucket has no other pending tasks.
+     *
+     * @param bucket the bucket of the task
+     * @return the thread where the task must be queued
+     */
+    private int acquire(int bucket) {
+        while (true) {
+            int count = pending.get(bucket);
+            if (count < 0) {
+                Thread.yield();
+            } else if (count == 0 && pending.compareAndSet(bucket, 0, -1)) {
+                int stripe = buckets.get(bucket);
+                int depth = stripes[stripe].depth();
+                if (depth >= stripes[stripe].capacity() / 2) {
+                    int target = leastLoaded();
+                    if (stripes[target].depth() < depth / 2) {
+                        buckets.set(bucket, target);
+                        rebalances.incrementAndGet();
+                        stripe = target;
+                    }
+                }
+                pending.set(bucket, 1);
+                return stripe;
+            } else if (count > 0 && pending.compareAndSet(bucket, count, count + 1)) {
+                return buckets.get(bucket);
             }
         }
     }
 
+    private int leastLoaded() {
+        int target = 0;
+        for (int i = 1; i < stripes.length; i++) {
+            if (stripes[i].depth() < stripes[target].depth()) {
+                target = i;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Returns the number of threads, each one with its own queue.
+     *
+     * @return the number of threads, {@code 0} if the tasks are executed synchronously
+     */
+    public int getThreads() {
+        return stripes == null ? 0 : stripes.length;
+    }
+
+    /**
+     * Returns the number of tasks queued in the specified thread queue.
+     *
+     * @param thread the thread index, between 0 and {@link #getThreads()}
+     * @return the queue depth of {@code thread}
+     */
+    public int getQueueDepth(int thread) {
+        return stripes[thread].depth();
+    }
+
+    /**
+     * Returns the number of queued tasks of each thread.
+     *
+     * @return the queue depths, empty if the tasks are executed synchronously
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[stripes == null ? 0 : stripes.length];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = stripes[i].depth();
+        }
+        return depths;
+    }
+
     /**
-     * Submits a non value-returning task for synchronous execution. It waits for all synchronous tasks to be
-     * completed.
+     * Returns the number of buckets moved from a busy thread to a less loaded one.
+     *
+     * @return the number of rebalances
+     */
+    public long getRebalances() {
+        return rebalances.get();
+    }
+
+    /**
+     * Submits a non value-returning task for synchronous execution. It waits for all the asynchronous tasks submitted
+     * before to be completed, without stopping new submissions.
      *
      * @param task a task to be executed synchronously
      */
     public void submitSynchronous(Runnable task) {
-        if (pools == null) {
+        if (stripes == null) {
             task.run();
         } else {
-            lock.writeLock().lock();
-            try {
-                await();
+            synchronized (synchronousLock) {
+                await(sequences());
                 task.run();
-            } finally {
-                lock.writeLock().unlock();
             }
         }
     }
 
     /**
-     * Await for task completion.
+     * Submits a non value-returning task making durable the asynchronous tasks submitted before, such as a commit. It
+     * rolls the journal, if any, waits for all the asynchronous tasks submitted before to be completed, without
+     * stopping new submissions, and executes the task. If the task succeeds, the journal segments sealed by the roll
+     * are discarded, while the segments filled by the tasks submitted meanwhile are kept.
+     *
+     * @param task a task making the completed tasks durable
      */
-    public void await() {
-        if (pools != null) {
-            lock.writeLock().lock();
-            try {
-                Future<?>[] futures = new Future<?>[pools.length];
-                for (int i = 0; i < pools.length; i++) {
-                    Future<?> future = pools[i].submit(() -> {
-                    });
-                    futures[i] = future;
+    public void submitCommit(Runnable task) {
+        if (stripes == null) {
+            task.run();
+            if (journal != null) {
+                journal.discard(journal.roll());
+            }
+        } else {
+            synchronized (synchronousLock) {
+                long[] sequences;
+                List<Path> rolled = Collections.emptyList();
+                if (journal == null) {
+                    sequences = sequences();
+                } else {
+                    long stamp = journalLock.writeLock();
+                    try {
+                        rolled = journal.roll();
+                        sequences = sequences();
+                    } finally {
+                        journalLock.unlockWrite(stamp);
+                    }
                 }
-                for (Future<?> future : futures) {
-                    future.get();
+                await(sequences);
+                task.run();
+                if (journal != null) {
+                    journal.discard(rolled);
                 }
-            } catch (InterruptedException e) {
-                logger.error("Task queue await interrupted", e);
-                throw new FhirIndexException(e);
-            } catch (ExecutionException e) {
-                logger.error("Task queue await failed", e);
-                throw new FhirIndexException(e);
-            } finally {
-                lock.writeLock().unlock();
             }
         }
     }
 
     /**
-     * Shutdowns this task.
+     * Await for the completion of the tasks submitted before calling this method. The tasks submitted meanwhile are
+     * not waited for.
+     */
+    public void await() {
+        if (stripes != null) {
+            await(sequences());
+        }
+    }
+
+    /**
+     * Await for the completion of the tasks submitted before calling this method, for at most the specified time. The
+     * tasks submitted meanwhile are not waited for.
+     *
+     * @param timeoutMillis the max time to wait, in milliseconds
+     * @return {@code true} if the tasks are completed, {@code false} if the timeout has elapsed
+     */
+    public boolean await(long timeoutMillis) {
+        if (stripes == null) {
+            return true;
+        }
+        long[] sequences = sequences();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (int i = 0; i < stripes.length; i++) {
+                if (!stripes[i].await(sequences[i], deadline)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            logger.error("Task queue await interrupted", e);
+            Thread.currentThread().interrupt();
+            throw new FhirIndexException(e);
+        }
+    }
+
+    private long[] sequences() {
+        long[] sequences = new long[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            sequences[i] = stripes[i].submitted();
+        }
+        return sequences;
+    }
+
+    private void await(long[] sequences) {
+        try {
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i].await(sequences[i]);
+            }
+        } catch (InterruptedException e) {
+            logger.error("Task queue await interrupted", e);
+            Thread.currentThread().interrupt();
+            throw new FhirIndexException(e);
+        }
+    }
+
+    /**
+     * Shutdowns this task. The already queued tasks are executed.
      */
     public void shutdown() {
-        if (pools != null) {
-            lock.writeLock().lock();
-            try {
-                for (BlockingExecutor pool : pools) {
-                    pool.shutdown();
+        if (stripes != null) {
+            for (Stripe stripe : stripes) {
+                stripe.shutdown();
+            }
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The tasks of a {@link MpscRingBuffer}, run in order either by a dedicated thread or by drains scheduled in an
+     * executor one at a time.
+     */
+    private static class Stripe implements Runnable {
+
+        private final MpscRingBuffer<Runnable> buffer;
+        private final Runnable[] batch;
+        private final Thread thread;
+        private final ExecutorService executor;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean parked;
+        private volatile boolean shutdown;
+
+        /** The sequence number of the last completed task, only written by the running drain */
+        private volatile long completed;
+
+        /** The number of threads waiting for a sequence number, guarded by {@code this} */
+        private volatile int waiters;
+
+        Stripe(int id, int queueSize, ExecutorService executor) {
+            buffer = new MpscRingBuffer<>(queueSize);
+            batch = new Runnable[Math.min(MAX_BATCH_SIZE, buffer.capacity())];
+            this.executor = executor;
+            if (executor == null) {
+                thread = new Thread(this, "TaskQueue-" + id);
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                thread = null;
+            }
+        }
+
+        void put(Runnable task) {
+            if (shutdown) {
+                throw new FhirIndexException("Task queue is shut down");
+            }
+            long backoff = 1;
+            while (!buffer.offer(task)) {
+                wakeUp();
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_FULL_BACKOFF_NANOS);
+            }
+            wakeUp();
+        }
+
+        long submitted() {
+            return buffer.offered();
+        }
+
+        void await(long sequence) throws InterruptedException {
+            if (completed < sequence) {
+                synchronized (this) {
+                    waiters++;
+                    try {
+                        while (completed < sequence) {
+                            wait();
+                        }
+                    } finally {
+                        waiters--;
+                    }
+                }
+            }
+        }
+
+        boolean await(long sequence, long deadlineNanos) throws InterruptedException {
+            if (completed < sequence) {
+                synchronized (this) {
+                    waiters++;
+                    try {
+                        while (completed < sequence) {
+                            long nanosLeft = deadlineNanos - System.nanoTime();
+                            if (nanosLeft <= 0) {
+                                return false;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(this, nanosLeft);
+                        }
+                    } finally {
+                        waiters--;
+                    }
+                }
+            }
+            return true;
+        }
+
+        int depth() {
+            return buffer.size();
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        private void wakeUp() {
+            if (thread != null) {
+                if (parked) {
+                    LockSupport.unpark(thread);
+                }
+            } else if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        void shutdown() {
+            shutdown = true;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Runs a batch of tasks.
+         *
+         * @return the number of run tasks
+         */
+        private int runBatch() {
+            int count = buffer.drain(batch);
+            for (int i = 0; i < count; i++) {
+                Runnable task = batch[i];
+                batch[i] = null;
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.error("Asynchronous task failed", e);
+                }
+                completed++;
+            }
+            if (count > 0 && waiters > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Runs the queued tasks in the executor until the buffer is empty.
+         */
+        private void drain() {
+            do {
+                while (runBatch() > 0) {
+                    // Keep draining
+                }
+                scheduled.set(false);
+            } while (!buffer.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (runBatch() == 0) {
+                    if (!buffer.isEmpty()) {
+                        // A producer has claimed a slot but not yet published its task
+                        Thread.yield();
+                    } else if (shutdown) {
+                        return;
+                    } else {
+                        parked = true;
+                        if (buffer.isEmpty() && !shutdown) {
+                            LockSupport.park(this);
+                        }
+                        parked = false;
+                    }
                 }
-            } finally {
-                lock.writeLock().unlock();
             }
         }
     }
 
-}
\ No newline at end of file
+}
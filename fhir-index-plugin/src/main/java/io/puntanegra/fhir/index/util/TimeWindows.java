@@ -0,0 +1,88 @@
+package io.puntanegra.fhir.index.util;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Daily time windows, such as the low traffic hours of a node, in the local
+ * time zone. <br>
+ * Windows are written as {@code HH:mm-HH:mm} and separated by commas, for
+ * example {@code 01:00-05:00,13:00-14:00}. A window ending before its start
+ * spans midnight, such as {@code 22:00-06:00}.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public final class TimeWindows {
+
+	private final List<LocalTime[]> windows;
+	private final String value;
+
+	private TimeWindows(List<LocalTime[]> windows, String value) {
+		this.windows = windows;
+		this.value = value;
+	}
+
+	/**
+	 * Returns the time windows written in the specified string.
+	 *
+	 * @param value
+	 *            the comma separated {@code HH:mm-HH:mm} windows
+	 * @return the time windows
+	 * @throws IllegalArgumentException
+	 *             if the string is not a list of windows
+	 */
+	public static TimeWindows parse(String value) {
+		List<LocalTime[]> windows = new ArrayList<>();
+		for (String window : value.split(",")) {
+			String[] bounds = window.trim().split("-");
+			if (bounds.length != 2) {
+				throw new IllegalArgumentException("Time window must be HH:mm-HH:mm: " + window);
+			}
+			try {
+				windows.add(new LocalTime[] { LocalTime.parse(bounds[0].trim()), LocalTime.parse(bounds[1].trim()) });
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Time window must be HH:mm-HH:mm: " + window, e);
+			}
+		}
+		return new TimeWindows(Collections.unmodifiableList(windows), value.trim());
+	}
+
+	/**
+	 * Returns if the specified time is inside any of the windows. Windows
+	 * include their start but not their end.
+	 *
+	 * @param time
+	 *            a local time
+	 * @return {@code true} if the time is inside a window
+	 */
+	public boolean contains(LocalTime time) {
+		for (LocalTime[] window : windows) {
+			LocalTime start = window[0];
+			LocalTime end = window[1];
+			boolean inside = start.isAfter(end) ? !time.isBefore(start) || time.isBefore(end)
+					: !time.isBefore(start) && time.isBefore(end);
+			if (inside) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns if the current local time is inside any of the windows.
+	 *
+	 * @return {@code true} if now is inside a window
+	 */
+	public boolean containsNow() {
+		return contains(LocalTime.now());
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
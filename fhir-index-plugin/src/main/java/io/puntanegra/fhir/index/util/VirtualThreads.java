@@ -0,0 +1,80 @@
+package io.puntanegra.fhir.index.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.puntanegra.fhir.index.FhirIndexException;
+
+/**
+ * Utilities to create virtual threads when running on a JDK supporting them
+ * (21 or later). The plugin is compiled for Java 8, so the virtual threads API
+ * is accessed through reflection.
+ *
+ * @author Jorge L. Middleton {@literal <jorge.middleton@gmail.com>}
+ *
+ */
+public final class VirtualThreads {
+
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private static final Method OF_VIRTUAL = method(Thread.class, "ofVirtual");
+	private static final Method NAME = method(className("java.lang.Thread$Builder"), "name", String.class, long.class);
+	private static final Method FACTORY = method(className("java.lang.Thread$Builder"), "factory");
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR = method(Executors.class, "newThreadPerTaskExecutor",
+			ThreadFactory.class);
+
+	private VirtualThreads() {
+	}
+
+	private static Class<?> className(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	private static Method method(Class<?> clazz, String name, Class<?>... parameterTypes) {
+		try {
+			return clazz == null ? null : clazz.getMethod(name, parameterTypes);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns if the running JDK supports virtual threads.
+	 *
+	 * @return {@code true} if virtual threads are supported
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * Returns a new executor starting a virtual thread for each task.
+	 *
+	 * @param name
+	 *            the prefix of the thread names
+	 * @return a new executor, or {@code null} if virtual threads are not
+	 *         supported
+	 */
+	public static ExecutorService newExecutor(String name) {
+		if (!isAvailable()) {
+			logger.warn("Virtual threads are not supported by Java {}", System.getProperty("java.version"));
+			return null;
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 0L);
+			ThreadFactory factory = (ThreadFactory) FACTORY.invoke(builder);
+			return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			throw new FhirIndexException(e, "Error creating virtual thread executor %s", name);
+		}
+	}
+}
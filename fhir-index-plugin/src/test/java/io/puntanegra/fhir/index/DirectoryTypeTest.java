@@ -0,0 +1,88 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.puntanegra.fhir.index.lucene.DirectoryType;
+import io.puntanegra.fhir.index.lucene.PreloadMMapDirectory;
+
+public class DirectoryTypeTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFromName() {
+		assertEquals(DirectoryType.MMAP, DirectoryType.fromName("mmap"));
+		assertEquals(DirectoryType.NIO, DirectoryType.fromName("nio"));
+		assertEquals(DirectoryType.NRT_CACHING, DirectoryType.fromName("nrt_caching"));
+		assertNull(DirectoryType.fromName("ram"));
+	}
+
+	@Test
+	public void testPreloadedExtensions() throws Exception {
+		Set<String> extensions = new HashSet<>(Arrays.asList("tim", "dvd"));
+		try (PreloadMMapDirectory directory = new PreloadMMapDirectory(folder.getRoot().toPath(), extensions)) {
+			assertTrue(directory.isPreloaded("_0_Lucene50_0.tim"));
+			assertTrue(directory.isPreloaded("_1_Lucene50_0.dvd"));
+			assertFalse(directory.isPreloaded("_0.cfs"));
+			assertFalse(directory.isPreloaded("segments_1"));
+		}
+		Set<String> all = Collections.singleton(PreloadMMapDirectory.ALL_EXTENSIONS);
+		try (PreloadMMapDirectory directory = new PreloadMMapDirectory(folder.getRoot().toPath(), all)) {
+			assertTrue(directory.isPreloaded("segments_1"));
+		}
+	}
+
+	@Test
+	public void testWriteAndSearch() throws Exception {
+		Set<String> preload = new HashSet<>(Arrays.asList("tim", "tip"));
+		assertSearch(DirectoryType.MMAP, Collections.emptySet());
+		assertSearch(DirectoryType.MMAP, preload);
+		assertSearch(DirectoryType.NIO, Collections.emptySet());
+		assertSearch(DirectoryType.NRT_CACHING, Collections.emptySet());
+	}
+
+	private void assertSearch(DirectoryType type, Set<String> preload) throws Exception {
+		Path path = folder.newFolder(type.getName() + "-" + preload.size()).toPath();
+		try (Directory directory = type.open(path, preload, 5, 30)) {
+			IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+			config.setUseCompoundFile(false);
+			try (IndexWriter writer = new IndexWriter(directory, config)) {
+				for (int i = 0; i < 10; i++) {
+					Document document = new Document();
+					document.add(new StringField("status", i % 2 == 0 ? "final" : "preliminary", Store.NO));
+					writer.addDocument(document);
+				}
+			}
+		}
+		try (Directory directory = type.open(path, preload, 5, 30);
+				DirectoryReader reader = DirectoryReader.open(directory)) {
+			IndexSearcher searcher = new IndexSearcher(reader);
+			assertEquals(5, searcher.count(new TermQuery(new Term("status", "final"))));
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.Clustering;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.LivenessInfo;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.db.rows.BTreeRow;
+import org.apache.cassandra.db.rows.BufferCell;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.schema.IndexMetadata;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.puntanegra.fhir.index.config.IndexOptions;
+
+public class DroppedRowTest {
+
+	private static final int NOW = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final CFMetaData metadata = CFMetaData.Builder.create("ks", "resources")
+			.withPartitioner(Murmur3Partitioner.instance).addPartitionKey("id", UTF8Type.instance)
+			.addClusteringColumn("version", UTF8Type.instance).addRegularColumn("resource_type", UTF8Type.instance)
+			.addRegularColumn("resource", UTF8Type.instance).build();
+	private final ColumnDefinition resourceType = metadata.getColumnDefinition(ByteBufferUtil.bytes("resource_type"));
+	private final ColumnDefinition resource = metadata.getColumnDefinition(ByteBufferUtil.bytes("resource"));
+
+	@Test
+	public void testRowOfNotIndexedTypeIsDeleted() throws Exception {
+		DecoratedKey key = metadata.decorateKey(ByteBufferUtil.bytes("patient-1"));
+		FhirIndexService service = new FhirIndexService();
+		service.build(metadata, config());
+		try {
+			service.upsert(key, row(1, "Patient", "{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Smith\"}]}"));
+			service.queue.await();
+			service.lucene.refresh();
+			assertEquals(1, service.lucene.getNumDocs());
+
+			// The row is rewritten with a not indexed resource type
+			service.upsert(key, row(2, "Observation", "{\"resourceType\":\"Observation\"}"));
+			service.queue.await();
+			service.lucene.refresh();
+			assertEquals(0, service.lucene.getNumDocs());
+			assertEquals(1, service.getDroppedRows());
+		} finally {
+			service.delete();
+		}
+	}
+
+	private IndexMetadata config() throws Exception {
+		Map<String, String> options = new HashMap<>();
+		options.put("target", "resource");
+		options.put(IndexOptions.DIRECTORY_PATH_OPTION, folder.newFolder("idx").getAbsolutePath());
+		options.put(IndexOptions.INDEXING_THREADS_OPTION, "1");
+		options.put(IndexOptions.RESOURCE_TYPE_COLUMN, "resource_type");
+		options.put(IndexOptions.SEARCH_OPTION, "{\"resources\" : {\"Patient\" : [\"family\"]}}");
+		return IndexMetadata.fromSchemaMetadata("idx", IndexMetadata.Kind.CUSTOM, options);
+	}
+
+	private Row row(long timestamp, String type, String json) {
+		Row.Builder builder = BTreeRow.sortedBuilder();
+		builder.newRow(new Clustering(ByteBufferUtil.bytes("1")));
+		builder.addPrimaryKeyLivenessInfo(LivenessInfo.create(metadata, timestamp, NOW));
+		builder.addCell(BufferCell.live(metadata, resource, timestamp, ByteBufferUtil.bytes(json)));
+		builder.addCell(BufferCell.live(metadata, resourceType, timestamp, ByteBufferUtil.bytes(type)));
+		return builder.build();
+	}
+}
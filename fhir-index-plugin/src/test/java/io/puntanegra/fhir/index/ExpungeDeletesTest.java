@@ -0,0 +1,75 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalTime;
+import java.util.Collections;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.Term;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.puntanegra.fhir.index.lucene.DirectoryType;
+import io.puntanegra.fhir.index.lucene.LuceneService;
+import io.puntanegra.fhir.index.util.TimeWindows;
+
+public class ExpungeDeletesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testExpungeAboveRatio() throws Exception {
+		LuceneService lucene = new LuceneService();
+		lucene.init("expunge", "io.puntanegra.fhir.index:type=LuceneIndex,index=expunge", folder.getRoot().toPath(),
+				new StandardAnalyzer(), 60, 0.1, 16, DirectoryType.NIO, Collections.emptySet(), 5, 30,
+				LuceneService.mergePolicy(10, 1024, 0, 0.3), 1, null, null, null, null);
+		try {
+			for (int i = 0; i < 100; i++) {
+				Document document = new Document();
+				document.add(new StringField("id", Integer.toString(i), Store.YES));
+				lucene.upsert(new Term("id", Integer.toString(i)), document);
+			}
+			lucene.refresh();
+			assertEquals(0, lucene.getMaxSegmentDeletedRatio(), 0);
+			assertFalse(lucene.expungeDeletes(0.3));
+
+			for (int i = 0; i < 40; i++) {
+				lucene.delete(new Term("id", Integer.toString(i)));
+			}
+			lucene.refresh();
+			assertEquals(0.4, lucene.getMaxSegmentDeletedRatio(), 0.01);
+
+			assertTrue(lucene.expungeDeletes(0.3));
+			assertEquals(0, lucene.getMaxSegmentDeletedRatio(), 0);
+			assertEquals(60, lucene.getNumDocs());
+			assertEquals(1, lucene.getExpunges());
+		} finally {
+			lucene.close();
+		}
+	}
+
+	@Test
+	public void testTimeWindows() {
+		TimeWindows windows = TimeWindows.parse("01:00-05:00, 22:30-00:30");
+		assertTrue(windows.contains(LocalTime.of(1, 0)));
+		assertTrue(windows.contains(LocalTime.of(4, 59)));
+		assertFalse(windows.contains(LocalTime.of(5, 0)));
+		assertFalse(windows.contains(LocalTime.of(12, 0)));
+		assertTrue(windows.contains(LocalTime.of(23, 0)));
+		assertTrue(windows.contains(LocalTime.of(0, 15)));
+		assertFalse(windows.contains(LocalTime.of(0, 30)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidTimeWindows() {
+		TimeWindows.parse("01:00");
+	}
+}
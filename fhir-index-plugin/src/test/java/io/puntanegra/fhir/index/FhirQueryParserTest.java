@@ -0,0 +1,150 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import io.puntanegra.fhir.index.config.ResourceOptions;
+import io.puntanegra.fhir.index.mapper.FhirMapper;
+import io.puntanegra.fhir.index.query.FhirQueryParser;
+import io.puntanegra.fhir.index.query.SearchFieldTypes;
+import io.puntanegra.fhir.index.search.datatypes.SearchParamQuantity;
+import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
+
+public class FhirQueryParserTest {
+
+	private static final String UCUM = "http://unitsofmeasure.org";
+
+	private final ResourceOptions options;
+	private final SearchFieldTypes fieldTypes;
+
+	public FhirQueryParserTest() throws Exception {
+		Map<String, Set<String>> resources = new HashMap<>();
+		resources.put("Patient", new HashSet<>(Arrays.asList("birthdate", "gender", "family")));
+		resources.put("Observation", new HashSet<>(Arrays.asList("code", "date", "value-quantity", "subject")));
+		options = new ResourceOptions(null, resources, null);
+		fieldTypes = SearchFieldTypes.of(options);
+	}
+
+	@Test
+	public void testFieldTypes() {
+		assertEquals(SearchParamTypes.DATE, fieldTypes.get("birthdate"));
+		assertEquals(SearchParamTypes.DATE, fieldTypes.get("date_high"));
+		assertEquals(SearchParamTypes.QUANTITY, fieldTypes.get("value-quantity"));
+		assertEquals(SearchParamTypes.TOKEN, fieldTypes.get("value-quantity_code"));
+		assertEquals(SearchParamTypes.TOKEN, fieldTypes.get("code"));
+		assertEquals(SearchParamTypes.TOKEN, fieldTypes.get("code_system"));
+		assertEquals(SearchParamTypes.STRING, fieldTypes.get("family"));
+		assertEquals(SearchParamTypes.REFERENCE, fieldTypes.get("subject"));
+		assertNull(fieldTypes.get("given"));
+	}
+
+	@Test
+	public void testTypedQueries() throws Exception {
+		FhirQueryParser parser = new FhirQueryParser(new WhitespaceAnalyzer(), fieldTypes);
+		assertTrue(parser.parse("value-quantity:[1 TO 200]") instanceof NumericRangeQuery);
+		assertTrue(parser.parse("value-quantity:ge1.5") instanceof NumericRangeQuery);
+		assertTrue(parser.parse("birthdate:[1990 TO 2000]") instanceof TermRangeQuery);
+
+		// without types, ranges are over the text
+		FhirQueryParser untyped = new FhirQueryParser(new WhitespaceAnalyzer());
+		assertTrue(untyped.parse("value-quantity:[1 TO 200]") instanceof TermRangeQuery);
+	}
+
+	@Test(expected = ParseException.class)
+	public void testModifiersNotSupported() throws Exception {
+		new FhirQueryParser(new WhitespaceAnalyzer(), fieldTypes).parse("family:exact=Heuvel");
+	}
+
+	@Test(expected = ParseException.class)
+	public void testInvalidNumber() throws Exception {
+		new FhirQueryParser(new WhitespaceAnalyzer(), fieldTypes).parse("value-quantity:gtabc");
+	}
+
+	@Test
+	public void testSearch() throws Exception {
+		try (RAMDirectory directory = new RAMDirectory()) {
+			try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+				FhirMapper mapper = new FhirMapper(options);
+				for (String resource : Arrays.asList("patient_f001.json", "observation_example001.json")) {
+					Document document = new Document();
+					mapper.addFields(document, json(resource));
+					writer.addDocument(document);
+				}
+				for (double value : new double[] { 5.4, 100, 250 }) {
+					Document document = new Document();
+					new SearchParamQuantity("value-quantity", "", SearchParamTypes.QUANTITY, value, UCUM, "mg")
+							.createIndexedFields().forEach(document::add);
+					writer.addDocument(document);
+				}
+			}
+			try (DirectoryReader reader = DirectoryReader.open(directory)) {
+				IndexSearcher searcher = new IndexSearcher(reader);
+
+				assertCount(searcher, 1, "birthdate:1944");
+				assertCount(searcher, 0, "birthdate:1945");
+				assertCount(searcher, 1, "birthdate=ge1944-11-17");
+				assertCount(searcher, 0, "birthdate=gt1944-11-17");
+				assertCount(searcher, 0, "birthdate:lt1944-11-17");
+				assertCount(searcher, 1, "birthdate:[1940 TO 1944-11]");
+				assertCount(searcher, 0, "birthdate:[1940 TO 1944-11}");
+				assertCount(searcher, 1, "birthdate:ne1950");
+				assertCount(searcher, 1, "date:\"2015-05-14T18:05:19\"");
+				assertCount(searcher, 1, "date:2015-05");
+
+				assertCount(searcher, 2, "value-quantity:[1 TO 200]");
+				assertCount(searcher, 1, "value-quantity:gt100");
+				assertCount(searcher, 1, "value-quantity:100");
+				assertCount(searcher, 0, "value-quantity:5.0");
+				assertCount(searcher, 1, "value-quantity:5");
+				assertCount(searcher, 2, "value-quantity:ne100");
+				assertCount(searcher, 1, "value-quantity=ap105");
+				assertCount(searcher, 1, "value-quantity:\"5.4|" + UCUM + "|mg\"");
+				assertCount(searcher, 0, "value-quantity:\"5.4|" + UCUM + "|g\"");
+
+				assertCount(searcher, 1, "code:\"http://loinc.org|12345-5\"");
+				assertCount(searcher, 1, "code:12345-5");
+				assertCount(searcher, 0, "code:\"|12345-5\"");
+				assertCount(searcher, 1, "code=12345-5,8867-4");
+				assertCount(searcher, 1, "code:12345*");
+				assertCount(searcher, 1, "subject:\"Patient/example\"");
+
+				assertCount(searcher, 1, "gender=male&birthdate=lt2000");
+				assertCount(searcher, 0, "gender=female&birthdate=lt2000");
+				assertCount(searcher, 1, "gender:male AND birthdate:lt2000");
+			}
+		}
+	}
+
+	private void assertCount(IndexSearcher searcher, int expected, String expression) throws Exception {
+		FhirQueryParser parser = new FhirQueryParser(new WhitespaceAnalyzer(), fieldTypes);
+		assertEquals(expression, expected, searcher.count(parser.parse(expression)));
+	}
+
+	private String json(String resource) throws IOException {
+		return new String(Files.readAllBytes(Paths.get(getClass().getClassLoader().getResource("fhir/" + resource)
+				.getPath())), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,141 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.codahale.metrics.Snapshot;
+
+import io.puntanegra.fhir.index.metrics.HdrReservoir;
+import io.puntanegra.fhir.index.metrics.IndexMetrics;
+import io.puntanegra.fhir.index.metrics.IndexingTrace;
+import io.puntanegra.fhir.index.metrics.QueryTrace;
+import io.puntanegra.fhir.index.metrics.QueryTrace.Phase;
+import io.puntanegra.fhir.index.search.SearchParamExtractorHelper;
+import io.puntanegra.fhir.index.search.datatypes.SearchParamTypes;
+
+public class IndexMetricsTest {
+
+	@Test
+	public void testRegisterAndRelease() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName docs = new ObjectName(
+				"io.puntanegra.fhir.index:type=FhirIndex,keyspace=ks,table=resources,index=idx,name=Docs");
+		ObjectName commit = new ObjectName(
+				"io.puntanegra.fhir.index:type=FhirIndex,keyspace=ks,table=resources,index=idx,name=CommitLatency");
+
+		IndexMetrics metrics = new IndexMetrics("ks", "resources", "idx");
+		metrics.gauge("Docs", () -> 42L);
+		metrics.commit.update(5, TimeUnit.MILLISECONDS);
+		assertEquals(42L, server.getAttribute(docs, "Value"));
+		assertEquals(1L, server.getAttribute(commit, "Count"));
+
+		// A recreated index replaces the metrics of the previous one
+		IndexMetrics recreated = new IndexMetrics("ks", "resources", "idx");
+		assertEquals(0L, server.getAttribute(commit, "Count"));
+
+		recreated.release();
+		assertFalse(server.isRegistered(commit));
+		metrics.release();
+		assertFalse(server.isRegistered(docs));
+		assertTrue(server.queryNames(new ObjectName("io.puntanegra.fhir.index:*"), null).isEmpty());
+	}
+
+	@Test
+	public void testLabeledGauge() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName depth = new ObjectName("io.puntanegra.fhir.index:type=FhirIndex,keyspace=ks,table=resources,"
+				+ "index=queued,thread=1,name=IndexingQueueDepth");
+
+		IndexMetrics metrics = new IndexMetrics("ks", "resources", "queued");
+		metrics.gauge("IndexingQueueDepth", IndexMetrics.THREAD_LABEL, "1", () -> 7);
+		assertEquals(7, server.getAttribute(depth, "Value"));
+		metrics.release();
+		assertFalse(server.isRegistered(depth));
+	}
+
+	@Test
+	public void testHdrReservoirPercentiles() {
+		HdrReservoir reservoir = new HdrReservoir();
+		for (long value = 1; value <= 100000; value++) {
+			reservoir.update(value);
+		}
+		Snapshot snapshot = reservoir.getSnapshot();
+		assertEquals(100000, snapshot.size());
+		assertEquals(50000, snapshot.getMedian(), 50);
+		assertEquals(99000, snapshot.get99thPercentile(), 99);
+		assertEquals(100000, snapshot.getMax(), 100);
+	}
+
+	@Test
+	public void testHdrReservoirDropsElapsedWindows() throws Exception {
+		HdrReservoir reservoir = new HdrReservoir(100, TimeUnit.MILLISECONDS);
+		reservoir.update(100);
+		assertEquals(1, reservoir.getSnapshot().size());
+
+		// Nothing is read during more than two windows
+		Thread.sleep(250);
+		reservoir.update(200);
+		Snapshot snapshot = reservoir.getSnapshot();
+		assertEquals(1, snapshot.size());
+		assertEquals(200, snapshot.getMax());
+	}
+
+	@Test
+	public void testRecordQueryTrace() throws Exception {
+		IndexMetrics metrics = new IndexMetrics("ks", "resources", "traced");
+		QueryTrace trace = new QueryTrace("name:smith");
+		trace.add(Phase.LUCENE_SEARCH, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(3));
+		trace.setPartitions(7);
+		metrics.record(trace);
+		metrics.release();
+
+		assertEquals(1, metrics.query.getCount());
+		assertTrue(trace.getNanos(Phase.LUCENE_SEARCH) >= TimeUnit.MILLISECONDS.toNanos(3));
+		assertEquals(0, trace.getNanos(Phase.PARTITION_READ));
+		assertEquals(7, metrics.searchPartitions.getSnapshot().getMax());
+	}
+
+	@Test
+	public void testRecordIndexingTrace() throws Exception {
+		FileReader fileReader = new FileReader(
+				new File(getClass().getClassLoader().getResource("fhir/observation_example001.json").getPath()));
+		IBaseResource resource = new FhirContext(FhirVersionEnum.DSTU3).newJsonParser().parseResource(fileReader);
+		Set<String> parameters = new HashSet<>(Arrays.asList("code", "value-quantity", "date"));
+
+		IndexingTrace trace = new IndexingTrace();
+		trace.setResourceType("Observation");
+		new SearchParamExtractorHelper(FhirVersionEnum.DSTU3).extractParametersValues(resource, parameters, trace);
+		assertTrue(trace.getExtractorValues(SearchParamTypes.TOKEN) > 0);
+		assertTrue(trace.getExtractorValues(SearchParamTypes.DATE) > 0);
+		assertEquals(0, trace.getExtractorValues(SearchParamTypes.URI));
+
+		IndexMetrics metrics = new IndexMetrics("ks", "resources", "indexed");
+		metrics.record(trace);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String prefix = "io.puntanegra.fhir.index:type=FhirIndex,keyspace=ks,table=resources,index=indexed,";
+		assertEquals(1L, server.getAttribute(new ObjectName(prefix + "resource=Observation,name=IndexingLatency"),
+				"Count"));
+		assertEquals(1L, server.getAttribute(new ObjectName(prefix + "param_type=TOKEN,name=ExtractorLatency"),
+				"Count"));
+		assertFalse(server.isRegistered(new ObjectName(prefix + "param_type=URI,name=ExtractorLatency")));
+		metrics.release();
+		assertFalse(server.isRegistered(new ObjectName(prefix + "resource=Observation,name=IndexingLatency")));
+	}
+}
@@ -0,0 +1,98 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import io.puntanegra.fhir.index.util.IndexingJournal;
+import io.puntanegra.fhir.index.util.TaskQueue;
+
+public class IndexingJournalTest {
+
+	@Test
+	public void testReplayAfterRestart() throws Exception {
+		Path directory = Files.createTempDirectory("journal");
+		IndexingJournal journal = new IndexingJournal(directory, 1);
+		assertFalse(journal.hasRecovered());
+		journal.append(entry("committed"));
+		journal.discard(journal.roll());
+		for (int i = 0; i < 100000; i++) {
+			journal.append(entry("pending-" + i));
+		}
+
+		// Simulates a restart without committing
+		IndexingJournal recovered = new IndexingJournal(directory, 1);
+		assertTrue(recovered.hasRecovered());
+		List<String> entries = new ArrayList<>();
+		assertEquals(100000, recovered.replay(entry -> entries.add(StandardCharsets.UTF_8.decode(entry).toString())));
+		assertEquals("pending-0", entries.get(0));
+		assertEquals("pending-99999", entries.get(entries.size() - 1));
+
+		recovered.discardRecovered();
+		assertFalse(new IndexingJournal(directory, 1).hasRecovered());
+		recovered.delete();
+		assertFalse(Files.exists(directory));
+	}
+
+	@Test
+	public void testCommitKeepsEntriesAppendedMeanwhile() throws Exception {
+		Path directory = Files.createTempDirectory("journal");
+		IndexingJournal journal = new IndexingJournal(directory, 1, 2);
+		TaskQueue queue = new TaskQueue(1, 16384, journal);
+		CountDownLatch blocked = new CountDownLatch(1);
+		queue.submitAsynchronous(0, entry("committed"), () -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		Thread committer = new Thread(() -> queue.submitCommit(() -> {
+		}));
+		committer.start();
+		while (committer.getState() != Thread.State.WAITING && committer.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+
+		// The commit waits for the blocked task while another thread fills
+		// several segments, which must not be discarded by the commit
+		String padding = new String(new char[200]).replace('\0', 'x');
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 12000; i++) {
+				queue.submitAsynchronous(i, entry("pending-" + i + padding), () -> {
+				});
+			}
+		});
+		writer.start();
+		writer.join();
+		blocked.countDown();
+		committer.join();
+		queue.shutdown();
+
+		// Simulates a restart
+		IndexingJournal recovered = new IndexingJournal(directory, 1);
+		Set<String> entries = new HashSet<>();
+		assertEquals(12000, recovered.replay(entry -> entries.add(StandardCharsets.UTF_8.decode(entry).toString())));
+		assertFalse(entries.contains("committed"));
+		for (int i = 0; i < 12000; i++) {
+			assertTrue(entries.contains("pending-" + i + padding));
+		}
+		recovered.delete();
+	}
+
+	private static ByteBuffer entry(String value) {
+		return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+	}
+}
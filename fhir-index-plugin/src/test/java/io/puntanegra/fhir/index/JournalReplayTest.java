@@ -0,0 +1,89 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.schema.IndexMetadata;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.document.Document;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.puntanegra.fhir.index.config.IndexOptions;
+import io.puntanegra.fhir.index.mapper.TokenMapper;
+
+public class JournalReplayTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final CFMetaData metadata = CFMetaData.Builder.create("ks", "resources")
+			.withPartitioner(Murmur3Partitioner.instance).addPartitionKey("id", UTF8Type.instance)
+			.addClusteringColumn("version", UTF8Type.instance)
+			.addRegularColumn("resource", UTF8Type.instance).build();
+
+	@Test
+	public void testReplayPartitionDelete() throws Exception {
+		IndexMetadata config = config();
+		DecoratedKey key = metadata.decorateKey(ByteBufferUtil.bytes("patient-1"));
+
+		// Journals a partition delete and stops without committing
+		FhirIndexService service = new FhirIndexService();
+		service.build(metadata, config);
+		service.delete(key);
+		service.queue.await();
+		service.lucene.commit();
+		stop(service);
+
+		// The delete is replayed on restart, removing the partition documents
+		FhirIndexService restarted = new FhirIndexService();
+		restarted.build(metadata, config);
+		Document document = new Document();
+		restarted.partitionMapper.addFields(document, key);
+		restarted.lucene.upsert("Patient", TokenMapper.value(key.getToken()), restarted.partitionMapper.term(key),
+				document);
+		restarted.lucene.commit();
+		restarted.lucene.refresh();
+		assertEquals(1, restarted.lucene.getNumDocs());
+
+		Callable<?> replay = restarted.replayTask();
+		assertNull(replay.call());
+		restarted.lucene.refresh();
+		assertEquals(0, restarted.lucene.getNumDocs());
+		stop(restarted);
+
+		// The replayed entries are discarded
+		FhirIndexService replayed = new FhirIndexService();
+		replayed.build(metadata, config);
+		assertNull(replayed.replayTask());
+		replayed.delete();
+	}
+
+	private IndexMetadata config() throws Exception {
+		Map<String, String> options = new HashMap<>();
+		options.put("target", "resource");
+		options.put(IndexOptions.DIRECTORY_PATH_OPTION, folder.newFolder("idx").getAbsolutePath());
+		options.put(IndexOptions.INDEXING_THREADS_OPTION, "1");
+		options.put(IndexOptions.INDEXING_JOURNAL_MB_OPTION, "1");
+		options.put(IndexOptions.SEARCH_OPTION, "{\"resources\" : {\"Patient\" : [\"family\"]}}");
+		return IndexMetadata.fromSchemaMetadata("idx", IndexMetadata.Kind.CUSTOM, options);
+	}
+
+	/**
+	 * Stops the specified service as a crash would do, keeping its journal.
+	 */
+	private static void stop(FhirIndexService service) {
+		service.queue.shutdown();
+		service.lucene.close();
+		service.metrics.release();
+	}
+}
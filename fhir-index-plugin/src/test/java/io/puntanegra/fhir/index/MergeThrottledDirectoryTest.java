@@ -0,0 +1,72 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import io.puntanegra.fhir.index.lucene.LuceneMergeScheduler;
+import io.puntanegra.fhir.index.lucene.LuceneService;
+import io.puntanegra.fhir.index.lucene.MergeThrottledDirectory;
+
+public class MergeThrottledDirectoryTest {
+
+	@Test
+	public void testOnlyMergesAreThrottled() throws Exception {
+		byte[] bytes = new byte[1024];
+		try (MergeThrottledDirectory directory = new MergeThrottledDirectory(new RAMDirectory(),
+				RateLimiter.create(Double.MAX_VALUE))) {
+			try (IndexOutput output = directory.createOutput("flushed", IOContext.DEFAULT)) {
+				output.writeBytes(bytes, bytes.length);
+			}
+			assertEquals(0, directory.getWrittenBytes());
+
+			IOContext merge = new IOContext(new MergeInfo(10, 100 * 1024, false, -1));
+			try (IndexOutput output = directory.createOutput("merged", merge)) {
+				for (int i = 0; i < 100; i++) {
+					output.writeBytes(bytes, bytes.length);
+				}
+				output.writeByte((byte) 1);
+			}
+			assertEquals(100 * 1024 + 1, directory.getWrittenBytes());
+		}
+	}
+
+	@Test
+	public void testMergeStatistics() throws Exception {
+		LuceneMergeScheduler scheduler = new LuceneMergeScheduler(1, true);
+		try (MergeThrottledDirectory directory = new MergeThrottledDirectory(new RAMDirectory(),
+				RateLimiter.create(Double.MAX_VALUE))) {
+			IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+			config.setMergePolicy(LuceneService.mergePolicy(2, 1024, 1, 0));
+			config.setMergeScheduler(scheduler);
+			try (IndexWriter writer = new IndexWriter(directory, config)) {
+				for (int i = 0; i < 100; i++) {
+					Document document = new Document();
+					document.add(new StringField("id", Integer.toString(i), Store.YES));
+					writer.addDocument(document);
+					if (i % 10 == 0) {
+						writer.commit();
+					}
+				}
+				writer.forceMerge(1);
+			}
+			assertEquals(1, scheduler.getMaxThreadCount());
+			assertTrue(scheduler.getMerges() > 0);
+			assertTrue(scheduler.getMergedBytes() > 0);
+			assertTrue(directory.getWrittenBytes() > 0);
+		}
+	}
+}
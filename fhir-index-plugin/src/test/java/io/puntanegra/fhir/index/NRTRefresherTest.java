@@ -0,0 +1,91 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import io.puntanegra.fhir.index.lucene.NRTRefresher;
+
+public class NRTRefresherTest {
+
+	@Test
+	public void testWaitForGeneration() throws Exception {
+		try (IndexWriter indexWriter = new IndexWriter(new RAMDirectory(),
+				new IndexWriterConfig(new StandardAnalyzer()))) {
+			TrackingIndexWriter writer = new TrackingIndexWriter(indexWriter);
+			SearcherManager manager = new SearcherManager(indexWriter, true, null);
+			NRTRefresher refresher = new NRTRefresher("test", writer, manager, 60, 0.01);
+			refresher.start();
+			try {
+				Document document = new Document();
+				document.add(new StringField("id", "1", Store.NO));
+				long generation = refresher.written(writer.addDocument(document));
+				assertEquals(generation, refresher.getWrittenGeneration());
+				assertTrue(refresher.getStalenessSeconds() >= 0);
+
+				assertTrue("Expected the write to be searchable", refresher.waitForGeneration(generation, 10000));
+				assertEquals(0, refresher.getStalenessSeconds(), 0);
+
+				IndexSearcher searcher = manager.acquire();
+				try {
+					assertEquals(1, searcher.getIndexReader().numDocs());
+				} finally {
+					manager.release(searcher);
+				}
+			} finally {
+				refresher.close();
+				manager.close();
+			}
+		}
+	}
+
+	@Test
+	public void testSurvivesReopenFailure() throws Exception {
+		try (IndexWriter indexWriter = new IndexWriter(new RAMDirectory(),
+				new IndexWriterConfig(new StandardAnalyzer()))) {
+			TrackingIndexWriter writer = new TrackingIndexWriter(indexWriter);
+			SearcherManager manager = new SearcherManager(indexWriter, true, null);
+			NRTRefresher refresher = new NRTRefresher("test", writer, manager, 60, 0.01);
+			AtomicBoolean failed = new AtomicBoolean();
+			manager.addListener(new ReferenceManager.RefreshListener() {
+				@Override
+				public void beforeRefresh() throws IOException {
+					if (failed.compareAndSet(false, true)) {
+						throw new IOException("Transient failure");
+					}
+				}
+
+				@Override
+				public void afterRefresh(boolean didRefresh) {
+				}
+			});
+			refresher.start();
+			try {
+				Document document = new Document();
+				document.add(new StringField("id", "1", Store.NO));
+				long generation = refresher.written(writer.addDocument(document));
+				assertTrue("Expected the write to be searchable", refresher.waitForGeneration(generation, 10000));
+				assertTrue(failed.get());
+				assertTrue(refresher.isAlive());
+			} finally {
+				refresher.close();
+				manager.close();
+			}
+		}
+	}
+}
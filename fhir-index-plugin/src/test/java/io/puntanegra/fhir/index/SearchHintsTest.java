@@ -0,0 +1,65 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+
+import io.puntanegra.fhir.index.query.FhirQueryParser;
+import io.puntanegra.fhir.index.query.SearchHints;
+
+public class SearchHintsTest {
+
+	private FhirQueryParser parser = new FhirQueryParser(new EnglishAnalyzer());
+
+	@Test
+	public void testTypeHint() throws Exception {
+		Query query = parser.parse("_type:Patient AND family:Pero*");
+
+		SearchHints hints = SearchHints.of(query);
+
+		assertEquals("Patient", hints.get(SearchHints.RESOURCE_TYPE).get());
+		assertEquals("+family:pero*", hints.query().toString());
+	}
+
+	@Test
+	public void testOnlyHint() throws Exception {
+		SearchHints hints = SearchHints.of(parser.parse("_type:Observation"));
+
+		assertEquals("Observation", hints.get(SearchHints.RESOURCE_TYPE).get());
+		assertTrue(hints.query() instanceof MatchAllDocsQuery);
+	}
+
+	@Test
+	public void testNegatedQuery() throws Exception {
+		SearchHints hints = SearchHints.of(parser.parse("_type:Patient AND NOT active:false"));
+
+		BooleanQuery query = (BooleanQuery) hints.query();
+		assertEquals(2, query.clauses().size());
+		assertTrue(query.clauses().get(1).getQuery() instanceof MatchAllDocsQuery);
+	}
+
+	@Test
+	public void testConsistentHint() throws Exception {
+		SearchHints hints = SearchHints.of(parser.parse("_consistent:true AND _type:Observation AND code:27113001"));
+
+		assertEquals("true", hints.get(SearchHints.CONSISTENT).get());
+		assertEquals("Observation", hints.get(SearchHints.RESOURCE_TYPE).get());
+		assertEquals("+code:27113001", hints.query().toString());
+	}
+
+	@Test
+	public void testWithoutHints() throws Exception {
+		Query query = parser.parse("code:27113001");
+
+		SearchHints hints = SearchHints.of(query);
+
+		assertFalse(hints.get(SearchHints.RESOURCE_TYPE).isPresent());
+		assertEquals(query, hints.query());
+	}
+}
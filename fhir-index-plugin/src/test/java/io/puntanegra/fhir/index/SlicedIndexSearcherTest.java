@@ -0,0 +1,70 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import io.puntanegra.fhir.index.lucene.SlicedIndexSearcher;
+
+public class SlicedIndexSearcherTest {
+
+	@Test
+	public void testSameResultsAsSequentialSearch() throws Exception {
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+		config.setMergePolicy(NoMergePolicy.INSTANCE);
+		try (IndexWriter writer = new IndexWriter(directory, config)) {
+			for (int i = 0; i < 100; i++) {
+				Document document = new Document();
+				document.add(new StringField("status", i % 3 == 0 ? "final" : "preliminary", Store.NO));
+				writer.addDocument(document);
+				if (i % 7 == 0) {
+					writer.commit();
+				}
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (DirectoryReader reader = DirectoryReader.open(directory)) {
+			IndexSearcher sequential = new IndexSearcher(reader);
+			IndexSearcher sliced = new SlicedIndexSearcher(reader, executor);
+			Query query = new TermQuery(new Term("status", "final"));
+
+			TopDocs expected = sequential.search(query, 10);
+			TopDocs actual = sliced.search(query, 10);
+			assertEquals(expected.totalHits, actual.totalHits);
+			assertDocs(expected.scoreDocs, actual.scoreDocs);
+
+			ScoreDoc after = expected.scoreDocs[expected.scoreDocs.length - 1];
+			assertDocs(sequential.searchAfter(after, query, 10).scoreDocs,
+					sliced.searchAfter(after, query, 10).scoreDocs);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void assertDocs(ScoreDoc[] expected, ScoreDoc[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i].doc, actual[i].doc);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Pair;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.puntanegra.fhir.index.lucene.DirectoryType;
+import io.puntanegra.fhir.index.lucene.LuceneDocumentIterator;
+import io.puntanegra.fhir.index.lucene.LuceneService;
+import io.puntanegra.fhir.index.mapper.TokenMapper;
+
+public class SortByTokenTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSearchInTokenOrder() throws Exception {
+		LuceneService lucene = new LuceneService();
+		lucene.init("sorted", "io.puntanegra.fhir.index:type=LuceneIndex,index=sorted", folder.getRoot().toPath(),
+				new StandardAnalyzer(), 60, 0.1, 16, DirectoryType.NIO, Collections.emptySet(), 5, 30,
+				LuceneService.mergePolicy(LuceneService.mergePolicy(2, 1024, 0, 0), TokenMapper.sort()), 1, null,
+				null, null, null);
+		try {
+			assertEquals(TokenMapper.sort(), lucene.getIndexSort());
+			for (int i = 0; i < 200; i += 20) {
+				index(lucene, i, i + 20);
+			}
+			lucene.forceMerge(1, true);
+			lucene.refresh();
+			assertEquals(1, lucene.getSegmentCount());
+			assertEquals(1, lucene.getSortedSegmentCount());
+			assertTokenOrder(lucene, 200);
+
+			// flushed segments are not sorted until they are merged
+			index(lucene, 200, 250);
+			assertTrue(lucene.getSortedSegmentCount() >= 1);
+			assertTokenOrder(lucene, 250);
+		} finally {
+			lucene.close();
+		}
+	}
+
+	@Test
+	public void testUnsortedIndex() throws Exception {
+		LuceneService lucene = new LuceneService();
+		lucene.init("unsorted", "io.puntanegra.fhir.index:type=LuceneIndex,index=unsorted", folder.getRoot().toPath(),
+				new StandardAnalyzer(), 60, 0.1, 16, DirectoryType.NIO, Collections.emptySet(), 5, 30,
+				LuceneService.mergePolicy(2, 1024, 0, 0), 1, null, null, null, null);
+		try {
+			index(lucene, 0, 100);
+			lucene.forceMerge(1, true);
+			lucene.refresh();
+			assertEquals(null, lucene.getIndexSort());
+			assertEquals(0, lucene.getSortedSegmentCount());
+			assertTokenOrder(lucene, 100);
+		} finally {
+			lucene.close();
+		}
+	}
+
+	@Test
+	public void testTokenSortOnlyForUnscoredQueries() {
+		Query term = new TermQuery(new Term("family", "chalmers"));
+		Query tokenRange = NumericRangeQuery.newLongRange("_token", 0L, 100L, true, true);
+		assertTrue(FhirIndexService.isTokenSortable(new MatchAllDocsQuery()));
+		assertTrue(FhirIndexService.isTokenSortable(new ConstantScoreQuery(term)));
+		assertTrue(FhirIndexService.isTokenSortable(TermRangeQuery.newStringRange("birthdate", "1990", "2000", true,
+				true)));
+		assertTrue(FhirIndexService.isTokenSortable(tokenRange));
+		assertFalse(FhirIndexService.isTokenSortable(term));
+		assertFalse(FhirIndexService.isTokenSortable(new FuzzyQuery(new Term("family", "chalmer"))));
+
+		BooleanQuery.Builder filtered = new BooleanQuery.Builder();
+		filtered.add(term, Occur.FILTER);
+		filtered.add(new TermQuery(new Term("gender", "male")), Occur.MUST_NOT);
+		assertTrue(FhirIndexService.isTokenSortable(filtered.build()));
+
+		BooleanQuery.Builder scored = new BooleanQuery.Builder();
+		scored.add(term, Occur.MUST);
+		scored.add(new TermQuery(new Term("_consistent", "true")), Occur.MUST);
+		assertFalse(FhirIndexService.isTokenSortable(scored.build()));
+
+		scored.add(tokenRange, Occur.FILTER);
+		assertTrue(FhirIndexService.isTokenSortable(scored.build()));
+
+		BooleanQuery.Builder hinted = new BooleanQuery.Builder();
+		hinted.add(new MatchAllDocsQuery(), Occur.MUST);
+		hinted.add(new TermQuery(new Term("_consistent", "true")), Occur.MUST);
+		assertTrue(FhirIndexService.isTokenSortable(hinted.build()));
+	}
+
+	private static void index(LuceneService lucene, int from, int to) {
+		TokenMapper tokenMapper = new TokenMapper();
+		for (int i = from; i < to; i++) {
+			Document document = new Document();
+			document.add(new StringField("id", Integer.toString(i), Store.YES));
+			tokenMapper.addFields(document, Murmur3Partitioner.instance.decorateKey(ByteBufferUtil.bytes(i)));
+			lucene.upsert(new Term("id", Integer.toString(i)), document);
+		}
+		lucene.refresh();
+	}
+
+	private static void assertTokenOrder(LuceneService lucene, int expected) {
+		int hits = 0;
+		long previous = Long.MIN_VALUE;
+		try (LuceneDocumentIterator iterator = lucene.search(new MatchAllDocsQuery(), TokenMapper.sort(), null, 10,
+				Collections.singleton("id"))) {
+			while (iterator.hasNext()) {
+				Pair<Document, ScoreDoc> next = iterator.next();
+				long token = (Long) ((FieldDoc) next.right).fields[0];
+				assertTrue(token >= previous);
+				previous = token;
+				hits++;
+			}
+		}
+		assertEquals(expected, hits);
+	}
+}
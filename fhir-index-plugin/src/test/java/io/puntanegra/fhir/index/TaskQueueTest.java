@@ -0,0 +1,148 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.puntanegra.fhir.index.util.TaskQueue;
+
+public class TaskQueueTest {
+
+	private static final int KEYS = 16;
+	private static final int TASKS = 10000;
+
+	@Test
+	public void testOrderPerKey() throws Exception {
+		assertOrderPerKey(new TaskQueue(4, 8));
+	}
+
+	@Test
+	public void testOrderPerKeyWithRebalance() throws Exception {
+		assertOrderPerKey(new TaskQueue(4, 8, null, true));
+	}
+
+	@Test
+	public void testOrderPerKeyWithExecutor() throws Exception {
+		assertOrderPerKey(new TaskQueue(64, 8, null, false, Executors.newCachedThreadPool()));
+	}
+
+	@Test
+	public void testSequentialIdsSpread() throws Exception {
+		TaskQueue queue = new TaskQueue(4, 4096);
+		CountDownLatch blocked = new CountDownLatch(1);
+		// Ids 0 to 3 are routed to different threads, which get blocked
+		for (int i = 0; i < 4; i++) {
+			queue.submitAsynchronous(i, null, () -> {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		for (long id = 0; id < 4000; id++) {
+			queue.submitAsynchronous(id, null, () -> {
+			});
+		}
+		for (int depth : queue.getQueueDepths()) {
+			assertTrue("Expected balanced queues but got " + depth, depth > 500);
+		}
+		blocked.countDown();
+		queue.shutdown();
+	}
+
+	@Test
+	public void testSynchronousTaskDoesNotBlockSubmissions() throws Exception {
+		TaskQueue queue = new TaskQueue(1, 16);
+		CountDownLatch blocked = new CountDownLatch(1);
+		queue.submitAsynchronous(0, null, () -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		AtomicInteger synchronous = new AtomicInteger();
+		Thread committer = new Thread(() -> queue.submitSynchronous(synchronous::incrementAndGet));
+		committer.start();
+		committer.join(100);
+
+		// The synchronous task waits for the blocked task, but new tasks are accepted
+		AtomicInteger asynchronous = new AtomicInteger();
+		queue.submitAsynchronous(0, null, asynchronous::incrementAndGet);
+		assertEquals(0, synchronous.get());
+		assertTrue(committer.isAlive());
+
+		blocked.countDown();
+		committer.join();
+		assertEquals(1, synchronous.get());
+		queue.await();
+		assertEquals(1, asynchronous.get());
+		queue.shutdown();
+	}
+
+	@Test
+	public void testAwaitTimeout() throws Exception {
+		TaskQueue queue = new TaskQueue(2, 16);
+		CountDownLatch blocked = new CountDownLatch(1);
+		queue.submitAsynchronous(0, null, () -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		long start = System.nanoTime();
+		assertFalse(queue.await(50));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		blocked.countDown();
+		assertTrue(queue.await(10000));
+		queue.shutdown();
+	}
+
+	private static void assertOrderPerKey(TaskQueue queue) throws Exception {
+		List<List<Integer>> executed = new ArrayList<>();
+		for (int key = 0; key < KEYS; key++) {
+			executed.add(new ArrayList<>());
+		}
+		AtomicInteger count = new AtomicInteger();
+
+		// One producer per key, all of them sharing the stripes
+		ExecutorService producers = Executors.newFixedThreadPool(KEYS);
+		for (int key = 0; key < KEYS; key++) {
+			Integer id = key;
+			producers.submit(() -> {
+				for (int i = 0; i < TASKS; i++) {
+					int value = i;
+					queue.submitAsynchronous(id, () -> {
+						executed.get(id).add(value);
+						count.incrementAndGet();
+					});
+				}
+			});
+		}
+		producers.shutdown();
+		assertTrue(producers.awaitTermination(1, TimeUnit.MINUTES));
+
+		queue.await();
+		assertEquals(KEYS * TASKS, count.get());
+		for (List<Integer> values : executed) {
+			assertEquals(TASKS, values.size());
+			for (int i = 0; i < TASKS; i++) {
+				assertEquals(i, values.get(i).intValue());
+			}
+		}
+		queue.shutdown();
+	}
+}
@@ -0,0 +1,172 @@
+package io.puntanegra.fhir.index;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.db.Clustering;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.DeletionTime;
+import org.apache.cassandra.db.LivenessInfo;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.db.rows.BTreeRow;
+import org.apache.cassandra.db.rows.BufferCell;
+import org.apache.cassandra.db.rows.Cell;
+import org.apache.cassandra.db.rows.Row;
+import org.apache.cassandra.db.rows.Rows;
+import org.apache.cassandra.db.rows.UnfilteredRowIterator;
+import org.apache.cassandra.db.rows.UnfilteredRowIterators;
+import org.apache.cassandra.dht.Murmur3Partitioner;
+import org.apache.cassandra.index.transactions.IndexTransaction;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.concurrent.OpOrder;
+import org.junit.Test;
+
+import io.puntanegra.fhir.index.metrics.IndexMetrics;
+
+public class UnchangedUpdateTest {
+
+	private static final int NOW = 1000;
+
+	private final CFMetaData metadata = CFMetaData.Builder.create("ks", "resources")
+			.withPartitioner(Murmur3Partitioner.instance).addPartitionKey("id", UTF8Type.instance)
+			.addRegularColumn("resource_type", UTF8Type.instance).addRegularColumn("resource", UTF8Type.instance)
+			.build();
+	private final ColumnDefinition resourceType = metadata.getColumnDefinition(ByteBufferUtil.bytes("resource_type"));
+	private final ColumnDefinition resource = metadata.getColumnDefinition(ByteBufferUtil.bytes("resource"));
+
+	@Test
+	public void testSameValueIsUnchanged() {
+		Row oldRow = row(1, LivenessInfo.EMPTY, live(resource, 1, "{}"), live(resourceType, 1, "Patient"));
+		Row newRow = row(2, LivenessInfo.EMPTY, live(resource, 2, "{}"), live(resourceType, 2, "Patient"));
+		assertTrue(FhirIndexService.isUnchanged(oldRow, newRow, resource, resourceType, NOW));
+		assertTrue(FhirIndexService.isUnchanged(oldRow, newRow, resource, null, NOW));
+	}
+
+	@Test
+	public void testChangedValueIsReindexed() {
+		Row oldRow = row(1, LivenessInfo.EMPTY, live(resource, 1, "{}"), live(resourceType, 1, "Patient"));
+		Row newRow = row(2, LivenessInfo.EMPTY, live(resource, 2, "{\"id\":1}"), live(resourceType, 2, "Patient"));
+		assertFalse(FhirIndexService.isUnchanged(oldRow, newRow, resource, resourceType, NOW));
+
+		newRow = row(2, LivenessInfo.EMPTY, live(resource, 2, "{}"), live(resourceType, 2, "Observation"));
+		assertFalse(FhirIndexService.isUnchanged(oldRow, newRow, resource, resourceType, NOW));
+	}
+
+	@Test
+	public void testChangedTTLIsReindexed() {
+		Row oldRow = row(1, LivenessInfo.EMPTY, live(resource, 1, "{}"));
+		Row newRow = row(2, LivenessInfo.EMPTY, BufferCell.expiring(resource, 2, 60, NOW + 60, bytes("{}")));
+		assertFalse(FhirIndexService.isUnchanged(oldRow, newRow, resource, null, NOW));
+
+		newRow = row(2, LivenessInfo.expiring(2, 60, NOW + 60), live(resource, 2, "{}"));
+		assertFalse(FhirIndexService.isUnchanged(oldRow, newRow, resource, null, NOW));
+	}
+
+	@Test
+	public void testDeletionIsReindexed() {
+		Row oldRow = row(1, LivenessInfo.EMPTY, live(resource, 1, "{}"));
+		Row newRow = row(2, LivenessInfo.EMPTY, BufferCell.tombstone(resource, 2, NOW));
+		assertFalse(FhirIndexService.isUnchanged(oldRow, newRow, resource, null, NOW));
+
+		Row.Builder builder = BTreeRow.sortedBuilder();
+		builder.newRow(Clustering.EMPTY);
+		builder.addRowDeletion(Row.Deletion.regular(new DeletionTime(1, NOW)));
+		builder.addPrimaryKeyLivenessInfo(LivenessInfo.create(metadata, 2, NOW));
+		builder.addCell(live(resource, 2, "{}"));
+		assertFalse(FhirIndexService.isUnchanged(oldRow, builder.build(), resource, null, NOW));
+	}
+
+	@Test
+	public void testIndexerSkipsUnchangedUpdate() {
+		Row oldRow = row(1, LivenessInfo.EMPTY, live(resource, 1, "{}"));
+		Row newRow = row(2, LivenessInfo.EMPTY, live(resource, 2, "{}"));
+		RecordingService service = new RecordingService();
+		update(service, oldRow, newRow);
+		assertEquals(0, service.reads);
+		assertTrue(service.upserts.isEmpty());
+	}
+
+	@Test
+	public void testIndexerReindexesChangedUpdate() {
+		Row oldRow = row(1, LivenessInfo.EMPTY, live(resource, 1, "{}"));
+		Row newRow = row(2, LivenessInfo.EMPTY, live(resource, 2, "{\"id\":1}"));
+		RecordingService service = new RecordingService();
+		update(service, oldRow, newRow);
+		assertEquals(1, service.reads);
+		assertEquals(1, service.upserts.size());
+		assertEquals(newRow, service.upserts.get(0));
+	}
+
+	private static void update(FhirIndexService service, Row oldRow, Row newRow) {
+		DecoratedKey key = Murmur3Partitioner.instance.decorateKey(bytes("id"));
+		FhirIndexIndexer indexer = new FhirIndexIndexer(service, key, NOW, null, IndexTransaction.Type.UPDATE);
+		try {
+			indexer.begin();
+			indexer.updateRow(oldRow, newRow);
+			indexer.finish();
+		} finally {
+			service.metrics.release();
+		}
+	}
+
+	private Row row(long timestamp, LivenessInfo info, Cell... cells) {
+		Row.Builder builder = BTreeRow.sortedBuilder();
+		builder.newRow(Clustering.EMPTY);
+		builder.addPrimaryKeyLivenessInfo(info.isEmpty() ? LivenessInfo.create(metadata, timestamp, NOW) : info);
+		for (Cell cell : cells) {
+			builder.addCell(cell);
+		}
+		return builder.build();
+	}
+
+	private Cell live(ColumnDefinition column, long timestamp, String value) {
+		return BufferCell.live(metadata, column, timestamp, bytes(value));
+	}
+
+	private static ByteBuffer bytes(String value) {
+		return ByteBufferUtil.bytes(value);
+	}
+
+	/**
+	 * Service comparing the resource column and recording the reads and the
+	 * upserts, without a Cassandra table nor a Lucene index.
+	 */
+	private class RecordingService extends FhirIndexService {
+
+		private int reads;
+		private final List<Row> upserts = new ArrayList<>();
+
+		private RecordingService() {
+			metrics = new IndexMetrics("ks", "resources", "unchanged");
+		}
+
+		@Override
+		public boolean isUnchanged(Row oldRow, Row newRow, int nowInSec) {
+			return isUnchanged(oldRow, newRow, resource, null, nowInSec);
+		}
+
+		@Override
+		public boolean needsReadBeforeWrite(DecoratedKey key, Row row) {
+			return false;
+		}
+
+		@Override
+		public UnfilteredRowIterator read(DecoratedKey key, int nowInSec, OpOrder.Group opGroup) {
+			reads++;
+			return UnfilteredRowIterators.noRowsIterator(metadata, key, Rows.EMPTY_STATIC_ROW, DeletionTime.LIVE,
+					false);
+		}
+
+		@Override
+		public void upsert(DecoratedKey key, Row row) {
+			upserts.add(row);
+		}
+	}
+}